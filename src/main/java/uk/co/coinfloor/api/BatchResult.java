@@ -0,0 +1,160 @@
+package uk.co.coinfloor.api;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The outcome of a batch of requests that were sent together. Each request
+ * succeeds or fails on its own, and the batch is done once every request has
+ * completed. As a {@link Future}, a batch never fails; it yields itself, from
+ * which the result or exception of each request may be read by its index.
+ */
+public class BatchResult<V> implements Future<BatchResult<V>> {
+
+	private final Object[] results;
+	private final boolean[] failed;
+	private final Callback<? super BatchResult<V>> callback;
+
+	private int remaining, failureCount;
+
+	/**
+	 * Constructs a batch of the specified size. The batch is not done until
+	 * {@link #release()} has been called in addition to the completion of
+	 * every request, so that it cannot complete while its requests are still
+	 * being sent.
+	 */
+	BatchResult(int size, Callback<? super BatchResult<V>> callback) {
+		results = new Object[size];
+		failed = new boolean[size];
+		this.callback = callback;
+		remaining = size + 1;
+	}
+
+	public final int size() {
+		return results.length;
+	}
+
+	/**
+	 * Returns the result of the request at the specified index, or
+	 * <code>null</code> if it has failed or has not yet completed.
+	 */
+	@SuppressWarnings("unchecked")
+	public final synchronized V getResult(int index) {
+		return failed[index] ? null : (V) results[index];
+	}
+
+	/**
+	 * Returns the exception with which the request at the specified index has
+	 * failed, or <code>null</code> if it has not failed.
+	 */
+	public final synchronized Exception getException(int index) {
+		return failed[index] ? (Exception) results[index] : null;
+	}
+
+	public final synchronized boolean isFailed(int index) {
+		return failed[index];
+	}
+
+	/**
+	 * Returns the number of requests that have failed so far.
+	 */
+	public final synchronized int getFailureCount() {
+		return failureCount;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return remaining == 0;
+	}
+
+	@Override
+	public synchronized BatchResult<V> get() throws InterruptedException {
+		while (remaining != 0) {
+			wait();
+		}
+		return this;
+	}
+
+	@Override
+	public synchronized BatchResult<V> get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		if (remaining != 0) {
+			for (long deadline = System.nanoTime() + (timeout = unit.toNanos(timeout));;) {
+				TimeUnit.NANOSECONDS.timedWait(this, timeout);
+				if (remaining == 0) {
+					break;
+				}
+				if ((timeout = deadline - System.nanoTime()) <= 0) {
+					throw new TimeoutException();
+				}
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		int remaining, failureCount;
+		synchronized (this) {
+			remaining = this.remaining;
+			failureCount = this.failureCount;
+		}
+		return getClass().getSimpleName() + "[size=" + results.length + ", failures=" + failureCount + (remaining == 0 ? "" : ", pending") + ']';
+	}
+
+	/**
+	 * Returns the callback that completes the request at the specified index.
+	 */
+	final Callback<V> callback(final int index) {
+		return new Callback<V>() {
+
+			@Override
+			public void operationCompleted(V result) {
+				complete(index, result, false);
+			}
+
+			@Override
+			public void operationFailed(Exception exception) {
+				complete(index, exception, true);
+			}
+
+		};
+	}
+
+	final void release() {
+		countDown();
+	}
+
+	private void complete(int index, Object result, boolean failed) {
+		synchronized (this) {
+			results[index] = result;
+			if (this.failed[index] = failed) {
+				++failureCount;
+			}
+		}
+		countDown();
+	}
+
+	private void countDown() {
+		synchronized (this) {
+			if (--remaining != 0) {
+				return;
+			}
+			notifyAll();
+		}
+		if (callback != null) {
+			callback.operationCompleted(this);
+		}
+	}
+
+}
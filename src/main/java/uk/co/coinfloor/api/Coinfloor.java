@@ -1,8 +1,10 @@
 package uk.co.coinfloor.api;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
@@ -23,13 +25,16 @@ import java.security.SignatureException;
 import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPrivateKeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -101,6 +106,217 @@ public class Coinfloor {
 
 	}
 
+	/**
+	 * The outcome of an amendment, which cancels one order and places another
+	 * in its stead. Each leg succeeds or fails on its own: the cancelled order
+	 * is <code>null</code> if the cancellation failed, and the ID of the new
+	 * order is 0 if its placement failed, in which case the corresponding
+	 * exception says why.
+	 */
+	public static class AmendResult {
+
+		public final OrderInfo cancelled;
+		public final Exception cancelException;
+		public final long id, tonce;
+		public final Exception placeException;
+
+		AmendResult(OrderInfo cancelled, Exception cancelException, long id, long tonce, Exception placeException) {
+			this.cancelled = cancelled;
+			this.cancelException = cancelException;
+			this.id = id;
+			this.tonce = tonce;
+			this.placeException = placeException;
+		}
+
+		public final boolean isCancelled() {
+			return cancelException == null;
+		}
+
+		public final boolean isPlaced() {
+			return placeException == null;
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[cancelled=" + (cancelException == null ? cancelled : cancelException) + ", id=" + (placeException == null ? id : placeException) + ", tonce=" + tonce + ']';
+		}
+
+	}
+
+	/**
+	 * A reusable, mutable view of an order. A view passed to a callback or
+	 * visitor is valid only until it returns, and a view must not be shared
+	 * between requests that are in flight at the same time.
+	 */
+	public static class OrderView {
+
+		long id, tonce;
+		int base, counter;
+		long quantity, price, time;
+
+		public OrderView() {
+		}
+
+		/**
+		 * Returns the ID of the order, or 0 if the server did not report it.
+		 */
+		public long getID() {
+			return id;
+		}
+
+		public long getTonce() {
+			return tonce;
+		}
+
+		public int getBase() {
+			return base;
+		}
+
+		public int getCounter() {
+			return counter;
+		}
+
+		public long getQuantity() {
+			return quantity;
+		}
+
+		public long getPrice() {
+			return price;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public OrderInfo toOrderInfo() {
+			return new OrderInfo(tonce, base, counter, quantity, price, time);
+		}
+
+		void set(Map<?, ?> order, int defaultBase, int defaultCounter) {
+			Object idObj = order.get("id"), tonceObj = order.get("tonce"), baseObj = order.get("base"), counterObj = order.get("counter");
+			id = idObj == null ? 0 : ((Number) idObj).longValue();
+			tonce = tonceObj == null ? 0 : ((Number) tonceObj).longValue();
+			base = baseObj == null ? defaultBase : ((Number) baseObj).intValue();
+			counter = counterObj == null ? defaultCounter : ((Number) counterObj).intValue();
+			quantity = ((Number) order.get("quantity")).longValue();
+			price = ((Number) order.get("price")).longValue();
+			time = ((Number) order.get("time")).longValue();
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[id=" + id + ", base=0x" + Integer.toHexString(base) + ", counter=0x" + Integer.toHexString(counter) + ", quantity=" + quantity + ", price=" + price + ", time=" + time + ']';
+		}
+
+	}
+
+	/**
+	 * Receives the orders of a result one at a time through a reusable view.
+	 * The orders are visited on the pump thread while the response is still
+	 * being parsed, so the first order can be acted upon before the last has
+	 * arrived, unless the client delivers completions through a
+	 * {@link ShardedExecutor}.
+	 */
+	public interface OrderVisitor {
+
+		public void visitOrder(OrderView order);
+
+	}
+
+	/**
+	 * A reusable, mutable view of a market order estimate. The same
+	 * restrictions apply as to {@link OrderView}.
+	 */
+	public static class MarketOrderEstimateView {
+
+		int base, counter;
+		long quantity, total;
+
+		public MarketOrderEstimateView() {
+		}
+
+		public int getBase() {
+			return base;
+		}
+
+		public int getCounter() {
+			return counter;
+		}
+
+		public long getQuantity() {
+			return quantity;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		public MarketOrderEstimate toMarketOrderEstimate() {
+			return new MarketOrderEstimate(base, counter, quantity, total);
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[base=0x" + Integer.toHexString(base) + ", counter=0x" + Integer.toHexString(counter) + ", quantity=" + quantity + ", total=" + total + ']';
+		}
+
+	}
+
+	/**
+	 * A reusable, mutable view of a ticker. The same restrictions apply as to
+	 * {@link OrderView}.
+	 */
+	public static class TickerView {
+
+		int base, counter;
+		long last, bid, ask, low, high, volume;
+
+		public TickerView() {
+		}
+
+		public int getBase() {
+			return base;
+		}
+
+		public int getCounter() {
+			return counter;
+		}
+
+		public long getLast() {
+			return last;
+		}
+
+		public long getBid() {
+			return bid;
+		}
+
+		public long getAsk() {
+			return ask;
+		}
+
+		public long getLow() {
+			return low;
+		}
+
+		public long getHigh() {
+			return high;
+		}
+
+		public long getVolume() {
+			return volume;
+		}
+
+		public TickerInfo toTickerInfo() {
+			return new TickerInfo(base, counter, last, bid, ask, low, high, volume);
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[base=0x" + Integer.toHexString(base) + ", counter=0x" + Integer.toHexString(counter) + ", last=" + last + ", bid=" + bid + ", ask=" + ask + ", low=" + low + ", high=" + high + ", volume=" + volume + ']';
+		}
+
+	}
+
 	private static class Ticker {
 
 		long last = -1, bid = -1, ask = -1, low = -1, high = -1, volume = -1;
@@ -110,6 +326,82 @@ public class Coinfloor {
 
 	}
 
+	private static class Subscription {
+
+		final NoticeListener listener;
+		final int base, counter;
+
+		Subscription(NoticeListener listener, int base, int counter) {
+			this.listener = listener;
+			this.base = base;
+			this.counter = counter;
+		}
+
+		boolean matches(int base, int counter) {
+			return (this.base < 0 || this.base == base) && (this.counter < 0 || this.counter == counter);
+		}
+
+		boolean matches(int asset) {
+			return base < 0 && counter < 0 || base == asset || counter == asset;
+		}
+
+	}
+
+	/**
+	 * An order placement with a tonce, retained so that it can be recovered
+	 * if the connection is lost before its response arrives.
+	 */
+	private static class Placement {
+
+		final Map<String, Object> request;
+		final Callback<? super Map<?, ?>> callback;
+
+		Placement(Map<String, Object> request, Callback<? super Map<?, ?>> callback) {
+			this.request = request;
+			this.callback = callback;
+		}
+
+	}
+
+	private static class DispatchedCallback implements Callback<Map<?, ?>> {
+
+		final ShardedExecutor executor;
+		final int base, counter;
+		final Callback<? super Map<?, ?>> callback;
+
+		DispatchedCallback(ShardedExecutor executor, int base, int counter, Callback<? super Map<?, ?>> callback) {
+			this.executor = executor;
+			this.base = base;
+			this.counter = counter;
+			this.callback = callback;
+		}
+
+		@Override
+		public void operationCompleted(final Map<?, ?> result) {
+			executor.execute(base, counter, new Runnable() {
+
+				@Override
+				public void run() {
+					callback.operationCompleted(result);
+				}
+
+			});
+		}
+
+		@Override
+		public void operationFailed(final Exception exception) {
+			executor.execute(base, counter, new Runnable() {
+
+				@Override
+				public void run() {
+					callback.operationFailed(exception);
+				}
+
+			});
+		}
+
+	}
+
 	private static abstract class ResultInterpreter<V> implements Callback<Map<?, ?>> {
 
 		final Callback<? super V> callback;
@@ -239,6 +531,175 @@ public class Coinfloor {
 
 	}
 
+	private static class OrderViewInterpreter extends ResultInterpreter<OrderView> {
+
+		final OrderView view;
+		final long id;
+
+		OrderViewInterpreter(Callback<? super OrderView> callback, OrderView view, long id) {
+			super(callback);
+			if (view == null) {
+				throw new NullPointerException("view");
+			}
+			this.view = view;
+			this.id = id;
+		}
+
+		@Override
+		OrderView interpret(Map<?, ?> result) {
+			view.set(result, -1, -1);
+			if (view.id == 0) {
+				view.id = id;
+			}
+			return view;
+		}
+
+	}
+
+	private static class OrderVisitingInterpreter<V> extends ResultInterpreter<V> {
+
+		final OrderView view;
+		final OrderVisitor visitor;
+		final V result;
+		final int defaultBase, defaultCounter;
+
+		boolean streamed;
+
+		OrderVisitingInterpreter(Callback<? super V> callback, OrderView view, OrderVisitor visitor, V result, int defaultBase, int defaultCounter) {
+			super(callback);
+			if (view == null) {
+				throw new NullPointerException("view");
+			}
+			if (visitor == null) {
+				throw new NullPointerException("visitor");
+			}
+			this.view = view;
+			this.visitor = visitor;
+			this.result = result;
+			this.defaultBase = defaultBase;
+			this.defaultCounter = defaultCounter;
+		}
+
+		@Override
+		V interpret(Map<?, ?> result) {
+			if (!streamed) {
+				for (Object orderObj : (List<?>) result.get("orders")) {
+					visit((Map<?, ?>) orderObj);
+				}
+			}
+			return this.result;
+		}
+
+		void visit(Map<?, ?> order) {
+			view.set(order, defaultBase, defaultCounter);
+			visitor.visitOrder(view);
+		}
+
+	}
+
+	private static class MarketOrderEstimateViewInterpreter extends ResultInterpreter<MarketOrderEstimateView> {
+
+		final MarketOrderEstimateView view;
+		final int defaultBase, defaultCounter;
+
+		MarketOrderEstimateViewInterpreter(Callback<? super MarketOrderEstimateView> callback, MarketOrderEstimateView view, int defaultBase, int defaultCounter) {
+			super(callback);
+			if (view == null) {
+				throw new NullPointerException("view");
+			}
+			this.view = view;
+			this.defaultBase = defaultBase;
+			this.defaultCounter = defaultCounter;
+		}
+
+		@Override
+		MarketOrderEstimateView interpret(Map<?, ?> result) {
+			Object baseObj = result.get("base"), counterObj = result.get("counter");
+			view.base = baseObj == null ? defaultBase : ((Number) baseObj).intValue();
+			view.counter = counterObj == null ? defaultCounter : ((Number) counterObj).intValue();
+			view.quantity = ((Number) result.get("quantity")).longValue();
+			view.total = ((Number) result.get("total")).longValue();
+			return view;
+		}
+
+	}
+
+	private class TickerViewInterpreter extends ResultInterpreter<TickerView> {
+
+		final TickerView view;
+		final int defaultBase, defaultCounter;
+
+		TickerViewInterpreter(Callback<? super TickerView> callback, TickerView view, int defaultBase, int defaultCounter) {
+			super(callback);
+			if (view == null) {
+				throw new NullPointerException("view");
+			}
+			this.view = view;
+			this.defaultBase = defaultBase;
+			this.defaultCounter = defaultCounter;
+		}
+
+		@Override
+		TickerView interpret(Map<?, ?> result) {
+			updateTicker(defaultBase, defaultCounter, result, view);
+			return view;
+		}
+
+	}
+
+	/**
+	 * Passes the orders of a response to the visitor of the request while
+	 * they are being parsed, provided that the tag of the response precedes
+	 * its orders. Otherwise the orders are visited once the whole response
+	 * has been parsed.
+	 */
+	private class OrderStreamer implements JSON.MemberHandler {
+
+		OrderVisitingInterpreter<?> interpreter;
+
+		OrderStreamer() {
+		}
+
+		@Override
+		public boolean streamElements(String key) {
+			return interpreter != null && "orders".equals(key);
+		}
+
+		@Override
+		public void elementParsed(String key, Object element) {
+			interpreter.streamed = true;
+			interpreter.visit((Map<?, ?>) element);
+		}
+
+		@Override
+		public void memberParsed(String key, Object value) {
+			if ("tag".equals(key) && value instanceof Number) {
+				Callback<? super Map<?, ?>> callback;
+				synchronized (requests) {
+					callback = requests.get(((Number) value).intValue());
+				}
+				if (callback instanceof OrderVisitingInterpreter<?>) {
+					interpreter = (OrderVisitingInterpreter<?>) callback;
+				}
+			}
+		}
+
+	}
+
+	private class AuthenticationInterpreter extends NullInterpreter<Void> {
+
+		AuthenticationInterpreter(Callback<? super Void> callback) {
+			super(callback);
+		}
+
+		@Override
+		public void operationCompleted(Map<?, ?> result) {
+			recoverPlacements();
+			super.operationCompleted(result);
+		}
+
+	}
+
 	private class TickerInfoInterpreter extends ResultInterpreter<TickerInfo> {
 
 		final int defaultBase, defaultCounter;
@@ -266,17 +727,39 @@ public class Coinfloor {
 	private static final Provider ecProvider;
 	private static final ECParameterSpec secp224k1;
 	private static final Charset ascii = Charset.forName("US-ASCII"), utf8 = Charset.forName("UTF-8");
+	private static final HashMap<String, Integer> noticeTypes = new HashMap<String, Integer>((5 + 2) / 3 * 4);
+	private static final Subscription[] noSubscriptions = new Subscription[0];
 
 	private final Random random = new Random();
 	private final HashMap<Integer, Callback<? super Map<?, ?>>> requests = new HashMap<Integer, Callback<? super Map<?, ?>>>();
+	private final ArrayList<Runnable> capacityListeners = new ArrayList<Runnable>();
+	private final HashMap<Integer, Placement> placements = new HashMap<Integer, Placement>();
+	private final ArrayList<Placement> retainedPlacements = new ArrayList<Placement>();
 	private final HashMap<Integer, Ticker> tickers = new HashMap<Integer, Ticker>();
+	private final OrderStreamer orderStreamer = new OrderStreamer();
+	private volatile ShardedExecutor dispatchExecutor;
+	private volatile RateLimiter rateLimiter;
+	private volatile TonceGenerator tonceGenerator;
+	private volatile boolean orderRecovery;
+	private volatile HashMap<String, RateLimiter> methodRateLimiters = new HashMap<String, RateLimiter>();
+	private volatile Subscription[][] subscriptions = { noSubscriptions, noSubscriptions, noSubscriptions, noSubscriptions, noSubscriptions };
 
 	private WebSocket websocket;
+	private Journal journal;
 	private byte[] serverNonce;
 	private int tagCounter;
+	private int maxInFlight, inFlightCount, peakInFlightCount; // guarded by requests
+	private long inFlightTimeout, inFlightRejectedCount; // guarded by requests
 	private long lastActivityTime;
+	private byte[] frameBuffer;
+	private boolean replaying;
 
 	static {
+		noticeTypes.put("BalanceChanged", NoticeListener.BALANCE_CHANGED);
+		noticeTypes.put("OrderOpened", NoticeListener.ORDER_OPENED);
+		noticeTypes.put("OrdersMatched", NoticeListener.ORDERS_MATCHED);
+		noticeTypes.put("OrderClosed", NoticeListener.ORDER_CLOSED);
+		noticeTypes.put("TickerChanged", NoticeListener.TICKER_CHANGED);
 		try {
 			AlgorithmParameters algorithmParameters;
 			try {
@@ -356,29 +839,287 @@ public class Coinfloor {
 	}
 
 	/**
-	 * Authenticates as the specified user with the given authentication cookie
-	 * and passphrase.
+	 * Attaches a journal to which the payload of every message received from
+	 * the server is to be appended, or detaches the current journal if
+	 * <code>null</code> is given. The journal is not closed when it is
+	 * detached.
 	 */
-	public final void authenticate(long userID, String cookie, String passphrase) throws IOException, CoinfloorException {
-		getResult(authenticateAsync(userID, cookie, passphrase));
+	public final synchronized void setJournal(Journal journal) {
+		this.journal = journal;
 	}
 
 	/**
-	 * @see #authenticate(long, String, String)
+	 * Registers a listener for all notices of all markets.
 	 */
-	public final Future<Void> authenticateAsync(long userID, String cookie, String passphrase) throws IOException {
-		AsyncResult<Void> asyncResult = new AsyncResult<Void>();
-		authenticateAsync(userID, cookie, passphrase, asyncResult);
-		return asyncResult;
+	public final void addNoticeListener(NoticeListener listener) {
+		addNoticeListener(listener, NoticeListener.ALL, -1, -1);
 	}
 
 	/**
-	 * @see #authenticate(long, String, String)
+	 * Registers a listener for the specified types of notices (a bitwise OR of
+	 * the constants in {@link NoticeListener}) pertaining to the specified
+	 * market. A negative base or counter matches any asset. Balance notices
+	 * are delivered if their asset is the base or counter asset of the
+	 * market, or for any asset if both are negative. A listener that is
+	 * registered more than once is invoked once for each registration.
 	 */
-	public final void authenticateAsync(long userID, String cookie, String passphrase, Callback<? super Void> callback) throws IOException {
-		byte[] clientNonce = new byte[16];
-		random.nextBytes(clientNonce);
-		byte[][] signatureComponents;
+	public final synchronized void addNoticeListener(NoticeListener listener, int notices, int base, int counter) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		Subscription subscription = new Subscription(listener, base, counter);
+		Subscription[][] subscriptions = this.subscriptions.clone();
+		for (int i = 0; i < subscriptions.length; ++i) {
+			if ((notices & 1 << i) != 0) {
+				Subscription[] array = subscriptions[i] = Arrays.copyOf(subscriptions[i], subscriptions[i].length + 1);
+				array[array.length - 1] = subscription;
+			}
+		}
+		this.subscriptions = subscriptions;
+	}
+
+	/**
+	 * Unregisters all registrations of the specified listener.
+	 */
+	public final synchronized void removeNoticeListener(NoticeListener listener) {
+		Subscription[][] subscriptions = this.subscriptions.clone();
+		for (int i = 0; i < subscriptions.length; ++i) {
+			Subscription[] array = subscriptions[i];
+			int n = 0;
+			for (Subscription subscription : array) {
+				if (subscription.listener != listener) {
+					++n;
+				}
+			}
+			if (n < array.length) {
+				Subscription[] newArray = n == 0 ? noSubscriptions : new Subscription[n];
+				n = 0;
+				for (Subscription subscription : array) {
+					if (subscription.listener != listener) {
+						newArray[n++] = subscription;
+					}
+				}
+				subscriptions[i] = newArray;
+			}
+		}
+		this.subscriptions = subscriptions;
+	}
+
+	/**
+	 * Sets the executor on which notices and request completions are to be
+	 * delivered, or reverts to delivering them on the pump thread if
+	 * <code>null</code> is given. Notices pertaining to a market are delivered
+	 * on the worker that serves that market, and balance notices on the worker
+	 * that serves their asset. A request completes on the worker that serves
+	 * the market or asset named in the request, or on the worker for requests
+	 * that are not specific to any market. Only requests made after this call
+	 * are affected.
+	 */
+	public final void setDispatchExecutor(ShardedExecutor executor) {
+		dispatchExecutor = executor;
+	}
+
+	/**
+	 * Sets the generator of tonces for orders that are placed without one, or
+	 * reverts to placing such orders without tonces if <code>null</code> is
+	 * given.
+	 */
+	public final void setTonceGenerator(TonceGenerator generator) {
+		tonceGenerator = generator;
+	}
+
+	/**
+	 * Enables or disables the recovery of order placements across
+	 * reconnections. While recovery is enabled, a limit order that is placed
+	 * with a tonce and whose response has not arrived when the connection is
+	 * lost is not failed but retained, and gives up its place in the
+	 * in-flight window until it is sent again. The next time that the client
+	 * authenticates, it retrieves the open orders and completes each retained
+	 * placement whose tonce it finds among them; the others are sent again,
+	 * which is safe because the server rejects a tonce that has already been
+	 * used. A placement whose order was filled or cancelled before the
+	 * reconnection therefore fails with a {@link CoinfloorException}. Market
+	 * orders never rest in the order book, so whether one was executed cannot
+	 * be told from the open orders; they are failed on disconnection as
+	 * usual. The client must authenticate as the same user as before.
+	 */
+	public final void setOrderRecovery(boolean enabled) {
+		orderRecovery = enabled;
+	}
+
+	/**
+	 * Returns the number of order placements that are retained for recovery.
+	 */
+	public final int getRetainedOrderCount() {
+		synchronized (requests) {
+			return retainedPlacements.size();
+		}
+	}
+
+	/**
+	 * Fails all order placements that are retained for recovery, as they
+	 * would have been failed had recovery not been enabled.
+	 */
+	public final void discardRetainedOrders() {
+		Placement[] retained;
+		synchronized (requests) {
+			retained = retainedPlacements.toArray(new Placement[retainedPlacements.size()]);
+			retainedPlacements.clear();
+		}
+		if (retained.length > 0) {
+			IOException exception = new IOException("disconnected");
+			for (Placement placement : retained) {
+				placement.callback.operationFailed(exception);
+			}
+		}
+	}
+
+	/**
+	 * Limits the number of requests that may be awaiting responses at once,
+	 * or removes the limit if 0 is given. A request that is made while the
+	 * window is full waits for up to the specified timeout for a response to
+	 * free a place, and is then failed with a
+	 * {@link java.util.concurrent.RejectedExecutionException}. With a timeout
+	 * of 0, a request never waits, so the asynchronous methods never block on
+	 * the window. Requests made by callbacks on the pump thread should not
+	 * wait, as the pump cannot free a place while it waits.
+	 */
+	public final void setMaxInFlight(int max, long timeout, TimeUnit unit) {
+		if (max < 0) {
+			throw new IllegalArgumentException("max must not be negative");
+		}
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout must not be negative");
+		}
+		synchronized (requests) {
+			maxInFlight = max;
+			inFlightTimeout = unit.toNanos(timeout);
+			requests.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns whether a request made now would find a place in the in-flight
+	 * window.
+	 */
+	public final boolean hasCapacity() {
+		synchronized (requests) {
+			return maxInFlight <= 0 || inFlightCount < maxInFlight;
+		}
+	}
+
+	/**
+	 * Waits until the in-flight window is not full or the timeout elapses, and
+	 * returns whether the window is not full.
+	 */
+	public final boolean awaitCapacity(long timeout, TimeUnit unit) throws InterruptedException {
+		synchronized (requests) {
+			for (long deadline = System.nanoTime() + unit.toNanos(timeout), remaining; maxInFlight > 0 && inFlightCount >= maxInFlight;) {
+				if ((remaining = deadline - System.nanoTime()) <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(requests, remaining);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Runs the given task once the in-flight window is not full: at once, in
+	 * the calling thread, if it is not full now, or else in the thread that
+	 * frees a place, which is usually the pump thread.
+	 */
+	public final void notifyOnCapacity(Runnable task) {
+		synchronized (requests) {
+			if (maxInFlight > 0 && inFlightCount >= maxInFlight) {
+				capacityListeners.add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	/**
+	 * Returns the number of requests that are awaiting responses or waiting
+	 * in the queue of a rate limiter.
+	 */
+	public final int getInFlightCount() {
+		synchronized (requests) {
+			return inFlightCount;
+		}
+	}
+
+	/**
+	 * Returns the greatest number of requests that have been in flight at
+	 * once.
+	 */
+	public final int getPeakInFlightCount() {
+		synchronized (requests) {
+			return peakInFlightCount;
+		}
+	}
+
+	/**
+	 * Returns the number of requests that were failed because the in-flight
+	 * window was full.
+	 */
+	public final long getInFlightRejectedCount() {
+		synchronized (requests) {
+			return inFlightRejectedCount;
+		}
+	}
+
+	/**
+	 * Sets the rate limiter that applies to all requests, or removes it if
+	 * <code>null</code> is given. A request must obtain a permit from the
+	 * limiter of its method, if any, and then from this limiter before it is
+	 * encoded and sent.
+	 */
+	public final void setRateLimiter(RateLimiter limiter) {
+		rateLimiter = limiter;
+	}
+
+	/**
+	 * Sets the rate limiter that applies to requests of the specified API
+	 * method, such as <code>"PlaceOrder"</code> or
+	 * <code>"CancelOrder"</code>, or removes it if <code>null</code> is
+	 * given. A queuing limiter sends cancellations ahead of other requests.
+	 */
+	public final synchronized void setRateLimiter(String method, RateLimiter limiter) {
+		HashMap<String, RateLimiter> methodRateLimiters = new HashMap<String, RateLimiter>(this.methodRateLimiters);
+		if (limiter == null) {
+			methodRateLimiters.remove(method);
+		}
+		else {
+			methodRateLimiters.put(method, limiter);
+		}
+		this.methodRateLimiters = methodRateLimiters;
+	}
+
+	/**
+	 * Authenticates as the specified user with the given authentication cookie
+	 * and passphrase.
+	 */
+	public final void authenticate(long userID, String cookie, String passphrase) throws IOException, CoinfloorException {
+		getResult(authenticateAsync(userID, cookie, passphrase));
+	}
+
+	/**
+	 * @see #authenticate(long, String, String)
+	 */
+	public final Future<Void> authenticateAsync(long userID, String cookie, String passphrase) throws IOException {
+		AsyncResult<Void> asyncResult = new AsyncResult<Void>();
+		authenticateAsync(userID, cookie, passphrase, asyncResult);
+		return asyncResult;
+	}
+
+	/**
+	 * @see #authenticate(long, String, String)
+	 */
+	public final void authenticateAsync(long userID, String cookie, String passphrase, Callback<? super Void> callback) throws IOException {
+		byte[] clientNonce = new byte[16];
+		random.nextBytes(clientNonce);
+		byte[][] signatureComponents;
 		try {
 			Signature signature = Signature.getInstance("SHA224withECDSA", ecProvider);
 			MessageDigest sha = MessageDigest.getInstance("SHA-224");
@@ -402,7 +1143,7 @@ public class Coinfloor {
 		request.put("cookie", cookie);
 		request.put("nonce", Base64.encode(clientNonce));
 		request.put("signature", Arrays.asList(Base64.encode(signatureComponents[0]), Base64.encode(signatureComponents[1])));
-		doRequest(request, new NullInterpreter<Void>(callback));
+		doRequest(request, new AuthenticationInterpreter(callback));
 	}
 
 	/**
@@ -455,6 +1196,42 @@ public class Coinfloor {
 		doRequest(request, new OrdersInterpreter(callback, -1, -1));
 	}
 
+	/**
+	 * As {@link #getOrders()}, but visits each open order of the authenticated
+	 * user through the given view, and then completes.
+	 */
+	public final void getOrdersAsync(OrderView view, OrderVisitor visitor, Callback<? super Void> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((2 + 2) / 3 * 4);
+		request.put("method", "GetOrders");
+		doRequest(request, new OrderVisitingInterpreter<Void>(callback, view, visitor, null, -1, -1));
+	}
+
+	/**
+	 * As {@link #getOrders()}, but adds the orders to the given table and
+	 * returns it.
+	 */
+	public final OrderTable getOrders(OrderTable table) throws IOException, CoinfloorException {
+		return getResult(getOrdersAsync(table));
+	}
+
+	/**
+	 * @see #getOrders(OrderTable)
+	 */
+	public final Future<OrderTable> getOrdersAsync(OrderTable table) throws IOException {
+		AsyncResult<OrderTable> asyncResult = new AsyncResult<OrderTable>();
+		getOrdersAsync(table, asyncResult);
+		return asyncResult;
+	}
+
+	/**
+	 * @see #getOrders(OrderTable)
+	 */
+	public final void getOrdersAsync(OrderTable table, Callback<? super OrderTable> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((2 + 2) / 3 * 4);
+		request.put("method", "GetOrders");
+		doRequest(request, new OrderVisitingInterpreter<OrderTable>(callback, new OrderView(), table, table, -1, -1));
+	}
+
 	/**
 	 * Estimates the total (in units of the counter asset) for a market order
 	 * trading the specified quantity (in units of the base asset). The
@@ -486,6 +1263,19 @@ public class Coinfloor {
 		doRequest(request, new MarketOrderEstimateInterpreter(callback, base, counter));
 	}
 
+	/**
+	 * As {@link #estimateBaseMarketOrder(int, int, long)}, but completes with
+	 * the estimate in the given view.
+	 */
+	public final void estimateBaseMarketOrderAsync(int base, int counter, long quantity, MarketOrderEstimateView view, Callback<? super MarketOrderEstimateView> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((5 + 2) / 3 * 4);
+		request.put("method", "EstimateMarketOrder");
+		request.put("base", base);
+		request.put("counter", counter);
+		request.put("quantity", quantity);
+		doRequest(request, new MarketOrderEstimateViewInterpreter(callback, view, base, counter));
+	}
+
 	/**
 	 * Estimates the quantity (in units of the base asset) for a market order
 	 * trading the specified total (in units of the counter asset). The total
@@ -516,6 +1306,19 @@ public class Coinfloor {
 		doRequest(request, new MarketOrderEstimateInterpreter(callback, base, counter));
 	}
 
+	/**
+	 * As {@link #estimateCounterMarketOrder(int, int, long)}, but completes
+	 * with the estimate in the given view.
+	 */
+	public final void estimateCounterMarketOrderAsync(int base, int counter, long total, MarketOrderEstimateView view, Callback<? super MarketOrderEstimateView> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((5 + 2) / 3 * 4);
+		request.put("method", "EstimateMarketOrder");
+		request.put("base", base);
+		request.put("counter", counter);
+		request.put("total", total);
+		doRequest(request, new MarketOrderEstimateViewInterpreter(callback, view, base, counter));
+	}
+
 	/**
 	 * Places a limit order to trade the specified quantity (in units of the
 	 * base asset) at the specified price or better. The quantity should be
@@ -545,7 +1348,7 @@ public class Coinfloor {
 		request.put("counter", counter);
 		request.put("quantity", quantity);
 		request.put("price", price);
-		if (tonce > 0) {
+		if ((tonce = nextTonce(tonce)) > 0) {
 			request.put("tonce", tonce);
 		}
 		if (!persist) {
@@ -554,6 +1357,69 @@ public class Coinfloor {
 		doRequest(request, new LongInterpreter(callback, "id"));
 	}
 
+	/**
+	 * Places several limit orders in the same market, sending them together
+	 * as one batch. The orders are given by parallel arrays of quantities,
+	 * prices and tonces, as for
+	 * {@link #placeLimitOrder(int, int, long, long, long, boolean)}; the array
+	 * of tonces may be <code>null</code>. Each order succeeds or fails on its
+	 * own, and the returned batch holds the ID of each order that was placed.
+	 */
+	public final BatchResult<Long> placeLimitOrders(int base, int counter, long[] quantities, long[] prices, long[] tonces, boolean persist) throws IOException {
+		return getResult(placeLimitOrdersAsync(base, counter, quantities, prices, tonces, persist));
+	}
+
+	/**
+	 * @see #placeLimitOrders(int, int, long[], long[], long[], boolean)
+	 */
+	public final BatchResult<Long> placeLimitOrdersAsync(int base, int counter, long[] quantities, long[] prices, long[] tonces, boolean persist) throws IOException {
+		return sendLimitOrders(base, counter, quantities, prices, tonces, persist, null);
+	}
+
+	/**
+	 * @see #placeLimitOrders(int, int, long[], long[], long[], boolean)
+	 */
+	public final void placeLimitOrdersAsync(int base, int counter, long[] quantities, long[] prices, long[] tonces, boolean persist, Callback<? super BatchResult<Long>> callback) throws IOException {
+		if (callback == null) {
+			throw new NullPointerException("callback");
+		}
+		sendLimitOrders(base, counter, quantities, prices, tonces, persist, callback);
+	}
+
+	private BatchResult<Long> sendLimitOrders(int base, int counter, long[] quantities, long[] prices, long[] tonces, boolean persist, Callback<? super BatchResult<Long>> callback) throws IOException {
+		int size = quantities.length;
+		if (prices.length != size || tonces != null && tonces.length != size) {
+			throw new IllegalArgumentException("array lengths differ");
+		}
+		BatchResult<Long> result = new BatchResult<Long>(size, callback);
+		ArrayList<HashMap<String, Object>> batch = new ArrayList<HashMap<String, Object>>(size);
+		ArrayList<Callback<? super Map<?, ?>>> callbacks = new ArrayList<Callback<? super Map<?, ?>>>(size);
+		for (int i = 0; i < size; ++i) {
+			HashMap<String, Object> request = new HashMap<String, Object>((8 + 2) / 3 * 4);
+			request.put("method", "PlaceOrder");
+			request.put("base", base);
+			request.put("counter", counter);
+			request.put("quantity", quantities[i]);
+			request.put("price", prices[i]);
+			long tonce = nextTonce(tonces == null ? 0 : tonces[i]);
+			if (tonce > 0) {
+				request.put("tonce", tonce);
+			}
+			if (!persist) {
+				request.put("persist", persist);
+			}
+			batch.add(request);
+			callbacks.add(new LongInterpreter(result.callback(i), "id"));
+		}
+		try {
+			doRequests(batch, callbacks);
+		}
+		finally {
+			result.release();
+		}
+		return result;
+	}
+
 	@Deprecated
 	public final long placeLimitOrder(int base, int counter, long quantity, long price) throws IOException, CoinfloorException {
 		return placeLimitOrder(base, counter, quantity, price, 0, true);
@@ -597,7 +1463,7 @@ public class Coinfloor {
 		request.put("base", base);
 		request.put("counter", counter);
 		request.put("quantity", quantity);
-		if (tonce > 0) {
+		if ((tonce = nextTonce(tonce)) > 0) {
 			request.put("tonce", tonce);
 		}
 		doRequest(request, new LongInterpreter(callback, "remaining"));
@@ -646,7 +1512,7 @@ public class Coinfloor {
 		request.put("base", base);
 		request.put("counter", counter);
 		request.put("total", total);
-		if (tonce > 0) {
+		if ((tonce = nextTonce(tonce)) > 0) {
 			request.put("tonce", tonce);
 		}
 		doRequest(request, new LongInterpreter(callback, "remaining"));
@@ -693,6 +1559,17 @@ public class Coinfloor {
 		doRequest(request, new OrderInfoInterpreter(callback));
 	}
 
+	/**
+	 * As {@link #cancelOrder(long)}, but completes with the cancelled order in
+	 * the given view.
+	 */
+	public final void cancelOrderAsync(long id, OrderView view, Callback<? super OrderView> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((3 + 2) / 3 * 4);
+		request.put("method", "CancelOrder");
+		request.put("id", id);
+		doRequest(request, new OrderViewInterpreter(callback, view, id));
+	}
+
 	/**
 	 * Cancels the open order that was placed with the specified tonce.
 	 */
@@ -720,100 +1597,408 @@ public class Coinfloor {
 	}
 
 	/**
-	 * Cancels all open orders belonging to the authenticated user.
+	 * As {@link #cancelOrderByTonce(long)}, but completes with the cancelled
+	 * order in the given view.
 	 */
-	public final Map<Long, OrderInfo> cancelAllOrders() throws IOException, CoinfloorException {
-		return getResult(cancelAllOrdersAsync());
+	public final void cancelOrderByTonceAsync(long tonce, OrderView view, Callback<? super OrderView> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((3 + 2) / 3 * 4);
+		request.put("method", "CancelOrder");
+		request.put("tonce", tonce);
+		doRequest(request, new OrderViewInterpreter(callback, view, 0));
 	}
 
 	/**
-	 * @see #cancelAllOrders()
+	 * Cancels several open orders, sending the cancellations together as one
+	 * batch. Each cancellation succeeds or fails on its own, and the returned
+	 * batch holds each order that was cancelled.
 	 */
-	public final Future<Map<Long, OrderInfo>> cancelAllOrdersAsync() throws IOException {
-		AsyncResult<Map<Long, OrderInfo>> asyncResult = new AsyncResult<Map<Long, OrderInfo>>();
-		cancelAllOrdersAsync(asyncResult);
-		return asyncResult;
+	public final BatchResult<OrderInfo> cancelOrders(long[] ids) throws IOException {
+		return getResult(cancelOrdersAsync(ids));
 	}
 
 	/**
-	 * @see #cancelAllOrders()
+	 * @see #cancelOrders(long[])
 	 */
-	public final void cancelAllOrdersAsync(Callback<? super Map<Long, OrderInfo>> callback) throws IOException {
-		HashMap<String, Object> request = new HashMap<String, Object>((2 + 2) / 3 * 4);
-		request.put("method", "CancelAllOrders");
-		doRequest(request, new OrdersInterpreter(callback, -1, -1));
+	public final BatchResult<OrderInfo> cancelOrdersAsync(long[] ids) throws IOException {
+		return sendCancellations("id", ids, null);
 	}
 
 	/**
-	 * Retrieves the trailing 30-day trading volume of the authenticated user
-	 * in the specified asset.
+	 * @see #cancelOrders(long[])
 	 */
-	public final long getTradeVolume(int asset) throws IOException, CoinfloorException {
-		return getResult(getTradeVolumeAsync(asset));
+	public final void cancelOrdersAsync(long[] ids, Callback<? super BatchResult<OrderInfo>> callback) throws IOException {
+		if (callback == null) {
+			throw new NullPointerException("callback");
+		}
+		sendCancellations("id", ids, callback);
 	}
 
 	/**
-	 * @see #getTradeVolume(int)
+	 * Cancels the open orders that were placed with the specified tonces,
+	 * sending the cancellations together as one batch.
 	 */
-	public final Future<Long> getTradeVolumeAsync(int asset) throws IOException {
-		AsyncResult<Long> asyncResult = new AsyncResult<Long>();
-		getTradeVolumeAsync(asset, asyncResult);
-		return asyncResult;
+	public final BatchResult<OrderInfo> cancelOrdersByTonce(long[] tonces) throws IOException {
+		return getResult(cancelOrdersByTonceAsync(tonces));
 	}
 
 	/**
-	 * @see #getTradeVolume(int)
+	 * @see #cancelOrdersByTonce(long[])
 	 */
-	public final void getTradeVolumeAsync(int asset, Callback<? super Long> callback) throws IOException {
-		HashMap<String, Object> request = new HashMap<String, Object>((3 + 2) / 3 * 4);
-		request.put("method", "GetTradeVolume");
-		request.put("asset", asset);
-		doRequest(request, new LongInterpreter(callback, "volume"));
+	public final BatchResult<OrderInfo> cancelOrdersByTonceAsync(long[] tonces) throws IOException {
+		return sendCancellations("tonce", tonces, null);
 	}
 
 	/**
-	 * Subscribes to (or unsubscribes from) the orders feed of the specified
-	 * order book. Subscribing to feeds does not require authentication.
+	 * @see #cancelOrdersByTonce(long[])
 	 */
-	public final Map<Long, OrderInfo> watchOrders(int base, int counter, boolean watch) throws IOException, CoinfloorException {
-		Map<Long, OrderInfo> result = getResult(watchOrdersAsync(base, counter, watch));
-		return watch ? result : null;
+	public final void cancelOrdersByTonceAsync(long[] tonces, Callback<? super BatchResult<OrderInfo>> callback) throws IOException {
+		if (callback == null) {
+			throw new NullPointerException("callback");
+		}
+		sendCancellations("tonce", tonces, callback);
+	}
+
+	private BatchResult<OrderInfo> sendCancellations(String key, long[] values, Callback<? super BatchResult<OrderInfo>> callback) throws IOException {
+		int size = values.length;
+		BatchResult<OrderInfo> result = new BatchResult<OrderInfo>(size, callback);
+		ArrayList<HashMap<String, Object>> batch = new ArrayList<HashMap<String, Object>>(size);
+		ArrayList<Callback<? super Map<?, ?>>> callbacks = new ArrayList<Callback<? super Map<?, ?>>>(size);
+		for (int i = 0; i < size; ++i) {
+			HashMap<String, Object> request = new HashMap<String, Object>((3 + 2) / 3 * 4);
+			request.put("method", "CancelOrder");
+			request.put(key, values[i]);
+			batch.add(request);
+			callbacks.add(new OrderInfoInterpreter(result.callback(i)));
+		}
+		try {
+			doRequests(batch, callbacks);
+		}
+		finally {
+			result.release();
+		}
+		return result;
 	}
 
 	/**
-	 * @see #watchOrders(int, int, boolean)
+	 * Amends an open order by cancelling it and placing a limit order in its
+	 * stead, as for
+	 * {@link #placeLimitOrder(int, int, long, long, long, boolean)}. Both
+	 * requests are written together, so that an amendment takes a single
+	 * round trip, and they are admitted by the in-flight window and the rate
+	 * limiters together: if either would be rejected, both fail, and if
+	 * either would be queued, both are queued. The server does not make the placement conditional on the
+	 * cancellation: if the open order has been filled or cancelled in the
+	 * meantime, the new order is placed nevertheless, and a tonce should be
+	 * given so that it can be cancelled by tonce if need be.
 	 */
-	public final Future<Map<Long, OrderInfo>> watchOrdersAsync(int base, int counter, boolean watch) throws IOException {
-		AsyncResult<Map<Long, OrderInfo>> asyncResult = new AsyncResult<Map<Long, OrderInfo>>();
-		watchOrdersAsync(base, counter, watch, asyncResult);
-		return asyncResult;
+	public final AmendResult amendOrder(long id, int base, int counter, long quantity, long price, long tonce, boolean persist) throws IOException, CoinfloorException {
+		return getResult(amendOrderAsync(id, base, counter, quantity, price, tonce, persist));
 	}
 
 	/**
-	 * @see #watchOrders(int, int, boolean)
+	 * @see #amendOrder(long, int, int, long, long, long, boolean)
 	 */
-	public final void watchOrdersAsync(int base, int counter, boolean watch, Callback<? super Map<Long, OrderInfo>> callback) throws IOException {
-		HashMap<String, Object> request = new HashMap<String, Object>((5 + 2) / 3 * 4);
-		request.put("method", "WatchOrders");
-		request.put("base", base);
-		request.put("counter", counter);
-		request.put("watch", watch);
-		doRequest(request, watch ? new OrdersInterpreter(callback, base, counter) : new NullInterpreter<Map<Long, OrderInfo>>(callback));
+	public final Future<AmendResult> amendOrderAsync(long id, int base, int counter, long quantity, long price, long tonce, boolean persist) throws IOException {
+		AsyncResult<AmendResult> asyncResult = new AsyncResult<AmendResult>();
+		amendOrderAsync(id, base, counter, quantity, price, tonce, persist, asyncResult);
+		return asyncResult;
 	}
 
 	/**
-	 * Subscribes to (or unsubscribes from) the ticker feed of the specified
-	 * order book. Subscribing to feeds does not require authentication.
+	 * @see #amendOrder(long, int, int, long, long, long, boolean)
 	 */
-	public final TickerInfo watchTicker(int base, int counter, boolean watch) throws IOException, CoinfloorException {
-		TickerInfo result = getResult(watchTickerAsync(base, counter, watch));
-		return watch ? result : null;
+	public final void amendOrderAsync(long id, int base, int counter, long quantity, long price, long tonce, boolean persist, Callback<? super AmendResult> callback) throws IOException {
+		sendAmendment("id", id, base, counter, quantity, price, tonce, persist, callback);
 	}
 
 	/**
-	 * @see #watchTicker(int, int, boolean)
+	 * As {@link #amendOrder(long, int, int, long, long, long, boolean)}, but
+	 * cancels the open order that was placed with the specified tonce.
 	 */
-	public final Future<TickerInfo> watchTickerAsync(int base, int counter, boolean watch) throws IOException {
+	public final AmendResult amendOrderByTonce(long oldTonce, int base, int counter, long quantity, long price, long tonce, boolean persist) throws IOException, CoinfloorException {
+		return getResult(amendOrderByTonceAsync(oldTonce, base, counter, quantity, price, tonce, persist));
+	}
+
+	/**
+	 * @see #amendOrderByTonce(long, int, int, long, long, long, boolean)
+	 */
+	public final Future<AmendResult> amendOrderByTonceAsync(long oldTonce, int base, int counter, long quantity, long price, long tonce, boolean persist) throws IOException {
+		AsyncResult<AmendResult> asyncResult = new AsyncResult<AmendResult>();
+		amendOrderByTonceAsync(oldTonce, base, counter, quantity, price, tonce, persist, asyncResult);
+		return asyncResult;
+	}
+
+	/**
+	 * @see #amendOrderByTonce(long, int, int, long, long, long, boolean)
+	 */
+	public final void amendOrderByTonceAsync(long oldTonce, int base, int counter, long quantity, long price, long tonce, boolean persist, Callback<? super AmendResult> callback) throws IOException {
+		sendAmendment("tonce", oldTonce, base, counter, quantity, price, tonce, persist, callback);
+	}
+
+	private void sendAmendment(String key, long value, int base, int counter, long quantity, long price, long requestedTonce, boolean persist, final Callback<? super AmendResult> callback) throws IOException {
+		if (callback == null) {
+			throw new NullPointerException("callback");
+		}
+		final long tonce = nextTonce(requestedTonce);
+		BatchResult<Object> result = new BatchResult<Object>(2, new Callback<BatchResult<Object>>() {
+
+			@Override
+			public void operationCompleted(BatchResult<Object> result) {
+				Long id = (Long) result.getResult(1);
+				callback.operationCompleted(new AmendResult((OrderInfo) result.getResult(0), result.getException(0), id == null ? 0 : id, tonce > 0 ? tonce : 0, result.getException(1)));
+			}
+
+			@Override
+			public void operationFailed(Exception exception) {
+				callback.operationFailed(exception);
+			}
+
+		});
+		ArrayList<HashMap<String, Object>> batch = new ArrayList<HashMap<String, Object>>(2);
+		ArrayList<Callback<? super Map<?, ?>>> callbacks = new ArrayList<Callback<? super Map<?, ?>>>(2);
+		HashMap<String, Object> request = new HashMap<String, Object>((3 + 2) / 3 * 4);
+		request.put("method", "CancelOrder");
+		request.put(key, value);
+		batch.add(request);
+		callbacks.add(new OrderInfoInterpreter(result.callback(0)));
+		request = new HashMap<String, Object>((8 + 2) / 3 * 4);
+		request.put("method", "PlaceOrder");
+		request.put("base", base);
+		request.put("counter", counter);
+		request.put("quantity", quantity);
+		request.put("price", price);
+		if (tonce > 0) {
+			request.put("tonce", tonce);
+		}
+		if (!persist) {
+			request.put("persist", persist);
+		}
+		batch.add(request);
+		callbacks.add(new LongInterpreter(result.callback(1), "id"));
+		try {
+			doRequestsTogether(batch, callbacks);
+		}
+		finally {
+			result.release();
+		}
+	}
+
+	/**
+	 * Cancels all open orders belonging to the authenticated user.
+	 */
+	public final Map<Long, OrderInfo> cancelAllOrders() throws IOException, CoinfloorException {
+		return getResult(cancelAllOrdersAsync());
+	}
+
+	/**
+	 * @see #cancelAllOrders()
+	 */
+	public final Future<Map<Long, OrderInfo>> cancelAllOrdersAsync() throws IOException {
+		AsyncResult<Map<Long, OrderInfo>> asyncResult = new AsyncResult<Map<Long, OrderInfo>>();
+		cancelAllOrdersAsync(asyncResult);
+		return asyncResult;
+	}
+
+	/**
+	 * @see #cancelAllOrders()
+	 */
+	public final void cancelAllOrdersAsync(Callback<? super Map<Long, OrderInfo>> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((2 + 2) / 3 * 4);
+		request.put("method", "CancelAllOrders");
+		doRequest(request, new OrdersInterpreter(callback, -1, -1));
+	}
+
+	/**
+	 * As {@link #cancelAllOrders()}, but visits each cancelled order through
+	 * the given view, and then completes.
+	 */
+	public final void cancelAllOrdersAsync(OrderView view, OrderVisitor visitor, Callback<? super Void> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((2 + 2) / 3 * 4);
+		request.put("method", "CancelAllOrders");
+		doRequest(request, new OrderVisitingInterpreter<Void>(callback, view, visitor, null, -1, -1));
+	}
+
+	/**
+	 * As {@link #cancelAllOrders()}, but adds the cancelled orders to the
+	 * given table and returns it.
+	 */
+	public final OrderTable cancelAllOrders(OrderTable table) throws IOException, CoinfloorException {
+		return getResult(cancelAllOrdersAsync(table));
+	}
+
+	/**
+	 * @see #cancelAllOrders(OrderTable)
+	 */
+	public final Future<OrderTable> cancelAllOrdersAsync(OrderTable table) throws IOException {
+		AsyncResult<OrderTable> asyncResult = new AsyncResult<OrderTable>();
+		cancelAllOrdersAsync(table, asyncResult);
+		return asyncResult;
+	}
+
+	/**
+	 * @see #cancelAllOrders(OrderTable)
+	 */
+	public final void cancelAllOrdersAsync(OrderTable table, Callback<? super OrderTable> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((2 + 2) / 3 * 4);
+		request.put("method", "CancelAllOrders");
+		doRequest(request, new OrderVisitingInterpreter<OrderTable>(callback, new OrderView(), table, table, -1, -1));
+	}
+
+	/**
+	 * Retrieves the trailing 30-day trading volume of the authenticated user
+	 * in the specified asset.
+	 */
+	public final long getTradeVolume(int asset) throws IOException, CoinfloorException {
+		return getResult(getTradeVolumeAsync(asset));
+	}
+
+	/**
+	 * @see #getTradeVolume(int)
+	 */
+	public final Future<Long> getTradeVolumeAsync(int asset) throws IOException {
+		AsyncResult<Long> asyncResult = new AsyncResult<Long>();
+		getTradeVolumeAsync(asset, asyncResult);
+		return asyncResult;
+	}
+
+	/**
+	 * @see #getTradeVolume(int)
+	 */
+	public final void getTradeVolumeAsync(int asset, Callback<? super Long> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((3 + 2) / 3 * 4);
+		request.put("method", "GetTradeVolume");
+		request.put("asset", asset);
+		doRequest(request, new LongInterpreter(callback, "volume"));
+	}
+
+	/**
+	 * Subscribes to (or unsubscribes from) the orders feed of the specified
+	 * order book. Subscribing to feeds does not require authentication.
+	 */
+	public final Map<Long, OrderInfo> watchOrders(int base, int counter, boolean watch) throws IOException, CoinfloorException {
+		Map<Long, OrderInfo> result = getResult(watchOrdersAsync(base, counter, watch));
+		return watch ? result : null;
+	}
+
+	/**
+	 * @see #watchOrders(int, int, boolean)
+	 */
+	public final Future<Map<Long, OrderInfo>> watchOrdersAsync(int base, int counter, boolean watch) throws IOException {
+		AsyncResult<Map<Long, OrderInfo>> asyncResult = new AsyncResult<Map<Long, OrderInfo>>();
+		watchOrdersAsync(base, counter, watch, asyncResult);
+		return asyncResult;
+	}
+
+	/**
+	 * @see #watchOrders(int, int, boolean)
+	 */
+	public final void watchOrdersAsync(int base, int counter, boolean watch, Callback<? super Map<Long, OrderInfo>> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((5 + 2) / 3 * 4);
+		request.put("method", "WatchOrders");
+		request.put("base", base);
+		request.put("counter", counter);
+		request.put("watch", watch);
+		doRequest(request, watch ? new OrdersInterpreter(callback, base, counter) : new NullInterpreter<Map<Long, OrderInfo>>(callback));
+	}
+
+	/**
+	 * As {@link #watchOrders(int, int, boolean)}, but when subscribing, visits
+	 * each order in the order book through the given view, and then completes.
+	 */
+	public final void watchOrdersAsync(int base, int counter, boolean watch, OrderView view, OrderVisitor visitor, Callback<? super Void> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((5 + 2) / 3 * 4);
+		request.put("method", "WatchOrders");
+		request.put("base", base);
+		request.put("counter", counter);
+		request.put("watch", watch);
+		doRequest(request, watch ? new OrderVisitingInterpreter<Void>(callback, view, visitor, null, base, counter) : new NullInterpreter<Void>(callback));
+	}
+
+	/**
+	 * As {@link #watchOrders(int, int, boolean)}, but when subscribing, adds
+	 * the orders in the order book to the given table and returns it.
+	 */
+	public final OrderTable watchOrders(int base, int counter, boolean watch, OrderTable table) throws IOException, CoinfloorException {
+		OrderTable result = getResult(watchOrdersAsync(base, counter, watch, table));
+		return watch ? result : null;
+	}
+
+	/**
+	 * @see #watchOrders(int, int, boolean, OrderTable)
+	 */
+	public final Future<OrderTable> watchOrdersAsync(int base, int counter, boolean watch, OrderTable table) throws IOException {
+		AsyncResult<OrderTable> asyncResult = new AsyncResult<OrderTable>();
+		watchOrdersAsync(base, counter, watch, table, asyncResult);
+		return asyncResult;
+	}
+
+	/**
+	 * @see #watchOrders(int, int, boolean, OrderTable)
+	 */
+	public final void watchOrdersAsync(int base, int counter, boolean watch, OrderTable table, Callback<? super OrderTable> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((5 + 2) / 3 * 4);
+		request.put("method", "WatchOrders");
+		request.put("base", base);
+		request.put("counter", counter);
+		request.put("watch", watch);
+		doRequest(request, watch ? new OrderVisitingInterpreter<OrderTable>(callback, new OrderView(), table, table, base, counter) : new NullInterpreter<OrderTable>(callback));
+	}
+
+	/**
+	 * Subscribes (or unsubscribes) the given book to the orders feed of its
+	 * market. When subscribing, the book is registered as a notice listener
+	 * for the order and ticker notices of its market, its orders are replaced
+	 * by those in the order book, and then it is returned; the book may later
+	 * resubscribe through this client to recover from an inconsistency. When
+	 * unsubscribing, the book is unregistered and keeps its orders.
+	 */
+	public final OrderBook watchOrderBook(OrderBook book, boolean watch) throws IOException, CoinfloorException {
+		OrderBook result = getResult(watchOrderBookAsync(book, watch));
+		return watch ? result : null;
+	}
+
+	/**
+	 * @see #watchOrderBook(OrderBook, boolean)
+	 */
+	public final Future<OrderBook> watchOrderBookAsync(OrderBook book, boolean watch) throws IOException {
+		AsyncResult<OrderBook> asyncResult = new AsyncResult<OrderBook>();
+		watchOrderBookAsync(book, watch, asyncResult);
+		return asyncResult;
+	}
+
+	/**
+	 * @see #watchOrderBook(OrderBook, boolean)
+	 */
+	public final void watchOrderBookAsync(OrderBook book, boolean watch, Callback<? super OrderBook> callback) throws IOException {
+		int base = book.getBase(), counter = book.getCounter();
+		removeNoticeListener(book);
+		if (watch) {
+			addNoticeListener(book, NoticeListener.ORDER_OPENED | NoticeListener.ORDERS_MATCHED | NoticeListener.ORDER_CLOSED | NoticeListener.TICKER_CHANGED, base, counter);
+			book.subscribe(this, false, callback);
+			return;
+		}
+		book.unsubscribe();
+		HashMap<String, Object> request = new HashMap<String, Object>((5 + 2) / 3 * 4);
+		request.put("method", "WatchOrders");
+		request.put("base", base);
+		request.put("counter", counter);
+		request.put("watch", false);
+		doRequest(request, new NullInterpreter<OrderBook>(callback));
+	}
+
+	/**
+	 * Subscribes to (or unsubscribes from) the ticker feed of the specified
+	 * order book. Subscribing to feeds does not require authentication.
+	 */
+	public final TickerInfo watchTicker(int base, int counter, boolean watch) throws IOException, CoinfloorException {
+		TickerInfo result = getResult(watchTickerAsync(base, counter, watch));
+		return watch ? result : null;
+	}
+
+	/**
+	 * @see #watchTicker(int, int, boolean)
+	 */
+	public final Future<TickerInfo> watchTickerAsync(int base, int counter, boolean watch) throws IOException {
 		AsyncResult<TickerInfo> asyncResult = new AsyncResult<TickerInfo>();
 		watchTickerAsync(base, counter, watch, asyncResult);
 		return asyncResult;
@@ -832,92 +2017,580 @@ public class Coinfloor {
 	}
 
 	/**
-	 * A user-supplied callback that is invoked when an available balance of
-	 * the authenticated user has changed.
+	 * As {@link #watchTicker(int, int, boolean)}, but when subscribing,
+	 * completes with the ticker in the given view.
+	 */
+	public final void watchTickerAsync(int base, int counter, boolean watch, TickerView view, Callback<? super TickerView> callback) throws IOException {
+		HashMap<String, Object> request = new HashMap<String, Object>((5 + 2) / 3 * 4);
+		request.put("method", "WatchTicker");
+		request.put("base", base);
+		request.put("counter", counter);
+		request.put("watch", watch);
+		doRequest(request, watch ? new TickerViewInterpreter(callback, view, base, counter) : new NullInterpreter<TickerView>(callback));
+	}
+
+	/**
+	 * A user-supplied callback that is invoked when an available balance of
+	 * the authenticated user has changed.
+	 */
+	protected void balanceChanged(int asset, long balance) {
+	}
+
+	/**
+	 * A user-supplied callback that is invoked when an order is opened. Only
+	 * events pertaining to the authenticated user's own orders are reported to
+	 * this callback unless the client is subscribed to the orders feed of an
+	 * order book.
+	 */
+	protected void orderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time, boolean own) {
+		orderOpened(id, tonce, base, counter, quantity, price, time);
+	}
+
+	@Deprecated
+	protected void orderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time) {
+		orderOpened(id, base, counter, quantity, price, time);
+	}
+
+	@Deprecated
+	protected void orderOpened(long id, int base, int counter, long quantity, long price, long time) {
+	}
+
+	/**
+	 * A user-supplied callback that is invoked when two orders are matched
+	 * (and thus a trade occurs). Only events pertaining to the authenticated
+	 * user's own orders are reported to this callback unless the client is
+	 * subscribed to the orders feed of an order book.
+	 */
+	protected void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+		ordersMatched(bid, ask, base, counter, quantity, price, total, bidRem, askRem, time, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee);
+	}
+
+	@Deprecated
+	protected void ordersMatched(long bid, long ask, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+	}
+
+	/**
+	 * A user-supplied callback that is invoked when an order is closed. Only
+	 * events pertaining to the authenticated user's own orders are reported to
+	 * this callback unless the client is subscribed to the orders feed of an
+	 * order book.
+	 */
+	protected void orderClosed(long id, long tonce, int base, int counter, long quantity, long price, boolean own) {
+		orderClosed(id, tonce, base, counter, quantity, price);
+	}
+
+	@Deprecated
+	protected void orderClosed(long id, long tonce, int base, int counter, long quantity, long price) {
+		orderClosed(id, base, counter, quantity, price);
+	}
+
+	@Deprecated
+	protected void orderClosed(long id, int base, int counter, long quantity, long price) {
+	}
+
+	/**
+	 * A user-supplied callback that is invoked when a ticker changes. Events
+	 * are reported to this callback only if the client is subscribed to the
+	 * ticker feed of an order book.
+	 */
+	protected void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+	}
+
+	/**
+	 * A user-supplied callback that is invoked if the connection to the server
+	 * is terminated, either by {@link #disconnect()} or spuriously.
+	 */
+	protected void disconnected(IOException e) {
+	}
+
+	private void doRequest(Map<String, Object> request, Callback<? super Map<?, ?>> callback) throws IOException {
+		if (!acquireInFlight(callback)) {
+			return;
+		}
+		long delay = limitRequest(0, null, request, callback);
+		if (delay >= 0 && pauseAdmitted(delay, Collections.<Callback<? super Map<?, ?>>> singletonList(callback))) {
+			sendRequest(request, callback);
+		}
+	}
+
+	/**
+	 * Applies the rate limiters to a request, from the given stage onwards:
+	 * the limiter of the request's method is stage 0, and the global limiter
+	 * is stage 1. Returns the number of nanoseconds to wait before sending
+	 * the request, or -1 if the request has been rejected or queued. If a
+	 * limiter rejects the request, the permit that was acquired from the
+	 * limiter of an earlier stage is refunded.
+	 */
+	private long limitRequest(int stage, RateLimiter acquired, final Map<String, Object> request, final Callback<? super Map<?, ?>> callback) {
+		long delay = 0;
+		for (; stage < 2; ++stage) {
+			final RateLimiter limiter = stage == 0 ? methodRateLimiters.get(request.get("method")) : rateLimiter;
+			if (limiter == null) {
+				continue;
+			}
+			switch (limiter.getMode()) {
+				case RateLimiter.MODE_REJECT:
+					if (!limiter.tryAcquire()) {
+						if (acquired != null) {
+							acquired.refund();
+						}
+						releaseInFlight(1);
+						callback.operationFailed(new RejectedExecutionException("rate limit exceeded"));
+						return -1;
+					}
+					break;
+				case RateLimiter.MODE_DELAY:
+					delay = Math.max(delay, limiter.reserve());
+					break;
+				case RateLimiter.MODE_QUEUE: {
+					Object method = request.get("method");
+					final int nextStage = stage + 1;
+					final long deadline = System.nanoTime() + delay;
+					if (!limiter.acquireOrQueue("CancelOrder".equals(method) || "CancelAllOrders".equals(method) ? 0 : 1, new Runnable() {
+
+						@Override
+						public void run() {
+							try {
+								long delay = limitRequest(nextStage, limiter, request, callback);
+								if (delay >= 0 && pauseAdmitted(Math.max(delay, deadline - System.nanoTime()), Collections.<Callback<? super Map<?, ?>>> singletonList(callback))) {
+									sendRequest(request, callback);
+								}
+							}
+							catch (IOException ignored) {
+								// the pump fails the callback when it finds the connection broken
+							}
+							catch (RuntimeException e) {
+								callback.operationFailed(e);
+							}
+						}
+
+					})) {
+						return -1;
+					}
+					break;
+				}
+			}
+			acquired = limiter;
+		}
+		return delay;
+	}
+
+	/**
+	 * Takes a place in the in-flight window for a request, waiting for one to
+	 * become free if the window is full and a timeout is set. Returns
+	 * <code>false</code>, having failed the callback, if no place could be
+	 * taken.
+	 */
+	private boolean acquireInFlight(Callback<? super Map<?, ?>> callback) throws InterruptedIOException {
+		if (acquireInFlight(1)) {
+			return true;
+		}
+		callback.operationFailed(new RejectedExecutionException("too many requests in flight"));
+		return false;
+	}
+
+	/**
+	 * Takes the specified number of places in the in-flight window at once,
+	 * waiting for enough to become free if the window is too full and a
+	 * timeout is set, and returns whether they were taken.
+	 */
+	private boolean acquireInFlight(int count) throws InterruptedIOException {
+		synchronized (requests) {
+			if (maxInFlight > 0 && inFlightCount + count > maxInFlight) {
+				try {
+					for (long deadline = System.nanoTime() + inFlightTimeout, timeout; inFlightCount + count > maxInFlight && maxInFlight > 0 && (timeout = deadline - System.nanoTime()) > 0;) {
+						TimeUnit.NANOSECONDS.timedWait(requests, timeout);
+					}
+				}
+				catch (InterruptedException e) {
+					throw interrupted(e);
+				}
+			}
+			if (maxInFlight <= 0 || inFlightCount + count <= maxInFlight) {
+				if ((inFlightCount += count) > peakInFlightCount) {
+					peakInFlightCount = inFlightCount;
+				}
+				return true;
+			}
+			++inFlightRejectedCount;
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for the specified number of nanoseconds before requests that have
+	 * taken places in the in-flight window are sent. Returns
+	 * <code>false</code>, having given up their places and failed their
+	 * callbacks, if the wait is interrupted; the thread's interrupt status is
+	 * left set.
+	 */
+	private boolean pauseAdmitted(long nanos, List<Callback<? super Map<?, ?>>> callbacks) {
+		try {
+			pause(nanos);
+			return true;
+		}
+		catch (InterruptedIOException e) {
+			releaseInFlight(callbacks.size());
+			for (Callback<? super Map<?, ?>> callback : callbacks) {
+				callback.operationFailed(e);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Frees places in the in-flight window, waking any requests that are
+	 * waiting for a place and running the capacity listeners if the window
+	 * is no longer full.
+	 */
+	private void releaseInFlight(int count) {
+		Runnable[] listeners = null;
+		synchronized (requests) {
+			inFlightCount -= count;
+			if (maxInFlight <= 0 || inFlightCount < maxInFlight) {
+				requests.notifyAll();
+				if (!capacityListeners.isEmpty()) {
+					listeners = capacityListeners.toArray(new Runnable[capacityListeners.size()]);
+					capacityListeners.clear();
+				}
+			}
+		}
+		if (listeners != null) {
+			for (Runnable listener : listeners) {
+				listener.run();
+			}
+		}
+	}
+
+	private synchronized void sendRequest(Map<String, Object> request, Callback<? super Map<?, ?>> callback) throws IOException {
+		if (websocket == null && !replaying) {
+			releaseInFlight(1);
+			throw new IllegalStateException("not connected");
+		}
+		Integer tag = Integer.valueOf(++tagCounter == 0 ? ++tagCounter : tagCounter);
+		request.put("tag", tag);
+		ShardedExecutor executor = dispatchExecutor;
+		synchronized (requests) {
+			requests.put(tag, dispatchedCallback(executor, request, callback));
+			if (orderRecovery) {
+				trackPlacement(tag, request, callback);
+			}
+		}
+		if (replaying) {
+			return;
+		}
+		OutputStreamWriter writer = new OutputStreamWriter(websocket.getOutputStream(0, WebSocket.OP_TEXT, true), utf8);
+		JSON.format(writer, request);
+		writer.close();
+		lastActivityTime = System.nanoTime();
+	}
+
+	/**
+	 * Sends several requests together, less any that the in-flight window or
+	 * the rate limiters reject or queue.
 	 */
-	protected void balanceChanged(int asset, long balance) {
+	private void doRequests(List<HashMap<String, Object>> batch, List<Callback<? super Map<?, ?>>> callbacks) throws IOException {
+		int size = batch.size();
+		ArrayList<HashMap<String, Object>> admitted = new ArrayList<HashMap<String, Object>>(size);
+		ArrayList<Callback<? super Map<?, ?>>> admittedCallbacks = new ArrayList<Callback<? super Map<?, ?>>>(size);
+		long delay = 0;
+		for (int i = 0; i < size; ++i) {
+			if (acquireInFlight(callbacks.get(i))) {
+				long requestDelay = limitRequest(0, null, batch.get(i), callbacks.get(i));
+				if (requestDelay >= 0) {
+					admitted.add(batch.get(i));
+					admittedCallbacks.add(callbacks.get(i));
+					delay = Math.max(delay, requestDelay);
+				}
+			}
+		}
+		if (pauseAdmitted(delay, admittedCallbacks)) {
+			sendRequests(admitted, admittedCallbacks);
+		}
 	}
 
 	/**
-	 * A user-supplied callback that is invoked when an order is opened. Only
-	 * events pertaining to the authenticated user's own orders are reported to
-	 * this callback unless the client is subscribed to the orders feed of an
-	 * order book.
+	 * Sends several requests together, or none of them: they take their
+	 * places in the in-flight window and their permits from the rate
+	 * limiters at once, all fail if any would be rejected, and all are queued
+	 * together if a limiter queues them.
 	 */
-	protected void orderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time, boolean own) {
-		orderOpened(id, tonce, base, counter, quantity, price, time);
+	private void doRequestsTogether(List<HashMap<String, Object>> batch, List<Callback<? super Map<?, ?>>> callbacks) throws IOException {
+		int size = batch.size();
+		if (!acquireInFlight(size)) {
+			RejectedExecutionException exception = new RejectedExecutionException("too many requests in flight");
+			for (Callback<? super Map<?, ?>> callback : callbacks) {
+				callback.operationFailed(exception);
+			}
+			return;
+		}
+		// the limiter of each request's method, then the global limiter once for each request
+		HashMap<String, RateLimiter> methodRateLimiters = this.methodRateLimiters;
+		RateLimiter rateLimiter = this.rateLimiter;
+		RateLimiter[] limiters = new RateLimiter[size << 1];
+		for (int i = 0; i < size; ++i) {
+			limiters[i] = methodRateLimiters.get(batch.get(i).get("method"));
+			limiters[size + i] = rateLimiter;
+		}
+		long delay = limitRequestsTogether(limiters, 0, new ArrayList<RateLimiter>(limiters.length), 0, batch, callbacks);
+		if (delay >= 0 && pauseAdmitted(delay, callbacks)) {
+			sendRequests(batch, callbacks);
+		}
 	}
 
-	@Deprecated
-	protected void orderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time) {
-		orderOpened(id, base, counter, quantity, price, time);
-	}
+	/**
+	 * Acquires a permit for requests that are sent together from each of the
+	 * given limiters, from the given index onwards, after waiting for the
+	 * specified number of nanoseconds. Returns the number of nanoseconds to
+	 * wait before sending the requests, or -1 if they have been rejected or
+	 * queued. If a limiter rejects them, all of the permits that were
+	 * acquired for them are refunded.
+	 */
+	private long limitRequestsTogether(final RateLimiter[] limiters, int index, final List<RateLimiter> acquired, long delay, final List<HashMap<String, Object>> batch, final List<Callback<? super Map<?, ?>>> callbacks) {
+		for (; index < limiters.length; ++index) {
+			final RateLimiter limiter = limiters[index];
+			if (limiter == null) {
+				continue;
+			}
+			switch (limiter.getMode()) {
+				case RateLimiter.MODE_REJECT:
+					if (!limiter.tryAcquire()) {
+						for (RateLimiter permit : acquired) {
+							permit.refund();
+						}
+						releaseInFlight(batch.size());
+						RejectedExecutionException exception = new RejectedExecutionException("rate limit exceeded");
+						for (Callback<? super Map<?, ?>> callback : callbacks) {
+							callback.operationFailed(exception);
+						}
+						return -1;
+					}
+					break;
+				case RateLimiter.MODE_DELAY:
+					delay = Math.max(delay, limiter.reserve());
+					break;
+				case RateLimiter.MODE_QUEUE: {
+					final int nextIndex = index + 1;
+					final long deadline = System.nanoTime() + delay;
+					if (!limiter.acquireOrQueue(1, new Runnable() {
+
+						@Override
+						public void run() {
+							try {
+								acquired.add(limiter);
+								long delay = limitRequestsTogether(limiters, nextIndex, acquired, Math.max(deadline - System.nanoTime(), 0), batch, callbacks);
+								if (delay >= 0 && pauseAdmitted(delay, callbacks)) {
+									sendRequests(batch, callbacks);
+								}
+							}
+							catch (IOException ignored) {
+								// the pump fails the callbacks when it finds the connection broken
+							}
+							catch (RuntimeException e) {
+								for (Callback<? super Map<?, ?>> callback : callbacks) {
+									callback.operationFailed(e);
+								}
+							}
+						}
 
-	@Deprecated
-	protected void orderOpened(long id, int base, int counter, long quantity, long price, long time) {
+					})) {
+						return -1;
+					}
+					break;
+				}
+			}
+			acquired.add(limiter);
+		}
+		return delay;
 	}
 
 	/**
-	 * A user-supplied callback that is invoked when two orders are matched
-	 * (and thus a trade occurs). Only events pertaining to the authenticated
-	 * user's own orders are reported to this callback unless the client is
-	 * subscribed to the orders feed of an order book.
+	 * Sends several requests together. The requests are tagged and their
+	 * callbacks are registered under a single lock acquisition, and their
+	 * frames are collected in one buffer and written to the socket at once.
 	 */
-	protected void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
-		ordersMatched(bid, ask, base, counter, quantity, price, total, bidRem, askRem, time, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee);
+	private synchronized void sendRequests(List<? extends Map<String, Object>> batch, List<Callback<? super Map<?, ?>>> callbacks) throws IOException {
+		int size = batch.size();
+		if (websocket == null && !replaying) {
+			releaseInFlight(size);
+			throw new IllegalStateException("not connected");
+		}
+		Integer[] tags = new Integer[size];
+		for (int i = 0; i < size; ++i) {
+			batch.get(i).put("tag", tags[i] = Integer.valueOf(++tagCounter == 0 ? ++tagCounter : tagCounter));
+		}
+		ShardedExecutor executor = dispatchExecutor;
+		boolean orderRecovery = this.orderRecovery;
+		synchronized (requests) {
+			for (int i = 0; i < size; ++i) {
+				Callback<? super Map<?, ?>> callback = callbacks.get(i);
+				requests.put(tags[i], dispatchedCallback(executor, batch.get(i), callback));
+				if (orderRecovery) {
+					trackPlacement(tags[i], batch.get(i), callback);
+				}
+			}
+		}
+		if (replaying || size == 0) {
+			return;
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(size * 128);
+		for (Map<String, Object> request : batch) {
+			OutputStreamWriter writer = new OutputStreamWriter(websocket.getOutputStream(buffer, 0, WebSocket.OP_TEXT, true), utf8);
+			JSON.format(writer, request);
+			writer.close();
+		}
+		websocket.send(buffer.toByteArray(), 0, buffer.size());
+		lastActivityTime = System.nanoTime();
 	}
 
-	@Deprecated
-	protected void ordersMatched(long bid, long ask, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+	/**
+	 * Retains a request for recovery if it places a limit order with a tonce.
+	 * The caller must hold the lock on the requests.
+	 */
+	private void trackPlacement(Integer tag, Map<String, Object> request, Callback<? super Map<?, ?>> callback) {
+		if ("PlaceOrder".equals(request.get("method")) && request.containsKey("tonce") && request.containsKey("price")) {
+			placements.put(tag, new Placement(request, callback));
+		}
 	}
 
 	/**
-	 * A user-supplied callback that is invoked when an order is closed. Only
-	 * events pertaining to the authenticated user's own orders are reported to
-	 * this callback unless the client is subscribed to the orders feed of an
-	 * order book.
+	 * Retrieves the open orders and, from them, completes or resends the
+	 * placements that were retained when the connection was lost.
 	 */
-	protected void orderClosed(long id, long tonce, int base, int counter, long quantity, long price, boolean own) {
-		orderClosed(id, tonce, base, counter, quantity, price);
+	final void recoverPlacements() {
+		final Placement[] retained;
+		synchronized (requests) {
+			if (retainedPlacements.isEmpty()) {
+				return;
+			}
+			retained = retainedPlacements.toArray(new Placement[retainedPlacements.size()]);
+			retainedPlacements.clear();
+			++inFlightCount; // for the GetOrders request, which bypasses the window
+		}
+		HashMap<String, Object> request = new HashMap<String, Object>((2 + 2) / 3 * 4);
+		request.put("method", "GetOrders");
+		try {
+			sendRequest(request, new OrdersInterpreter(new Callback<Map<Long, OrderInfo>>() {
+
+				@Override
+				public void operationCompleted(Map<Long, OrderInfo> orders) {
+					resolvePlacements(retained, orders);
+				}
+
+				@Override
+				public void operationFailed(Exception exception) {
+					retainPlacements(retained);
+				}
+
+			}, -1, -1));
+		}
+		catch (IOException ignored) {
+			// the callback fails when the pump finds the connection broken
+		}
+		catch (IllegalStateException e) {
+			retainPlacements(retained);
+		}
 	}
 
-	@Deprecated
-	protected void orderClosed(long id, long tonce, int base, int counter, long quantity, long price) {
-		orderClosed(id, base, counter, quantity, price);
+	private void resolvePlacements(Placement[] retained, Map<Long, OrderInfo> orders) {
+		HashMap<Long, Long> ids = new HashMap<Long, Long>((orders.size() + 2) / 3 * 4);
+		for (Map.Entry<Long, OrderInfo> entry : orders.entrySet()) {
+			long tonce = entry.getValue().tonce;
+			if (tonce > 0) {
+				ids.put(tonce, entry.getKey());
+			}
+		}
+		ArrayList<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(retained.length);
+		ArrayList<Callback<? super Map<?, ?>>> callbacks = new ArrayList<Callback<? super Map<?, ?>>>(retained.length);
+		ShardedExecutor executor = dispatchExecutor;
+		for (Placement placement : retained) {
+			Object tonce = placement.request.get("tonce");
+			Long id = ids.get(tonce);
+			if (id == null) {
+				batch.add(placement.request);
+				callbacks.add(placement.callback);
+			}
+			else {
+				HashMap<String, Object> response = new HashMap<String, Object>((2 + 2) / 3 * 4);
+				response.put("id", id);
+				response.put("tonce", tonce);
+				dispatchedCallback(executor, placement.request, placement.callback).operationCompleted(response);
+			}
+		}
+		synchronized (requests) {
+			inFlightCount += batch.size(); // the resent placements bypass the window, as they were admitted before
+		}
+		try {
+			sendRequests(batch, callbacks);
+		}
+		catch (IOException ignored) {
+			// the resent placements are retained again when the pump finds the connection broken
+		}
+		catch (IllegalStateException e) {
+			ArrayList<Placement> unsent = new ArrayList<Placement>(batch.size());
+			for (int i = 0; i < batch.size(); ++i) {
+				unsent.add(new Placement(batch.get(i), callbacks.get(i)));
+			}
+			retainPlacements(unsent.toArray(new Placement[unsent.size()]));
+		}
 	}
 
-	@Deprecated
-	protected void orderClosed(long id, int base, int counter, long quantity, long price) {
+	/**
+	 * Puts placements back to be recovered after the next authentication.
+	 */
+	private void retainPlacements(Placement[] placements) {
+		synchronized (requests) {
+			retainedPlacements.addAll(Arrays.asList(placements));
+		}
 	}
 
 	/**
-	 * A user-supplied callback that is invoked when a ticker changes. Events
-	 * are reported to this callback only if the client is subscribed to the
-	 * ticker feed of an order book.
+	 * Returns the given tonce if it is positive, or else a tonce from the
+	 * generator if there is one.
 	 */
-	protected void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+	private long nextTonce(long tonce) {
+		TonceGenerator generator;
+		return tonce <= 0 && (generator = tonceGenerator) != null ? generator.next() : tonce;
 	}
 
 	/**
-	 * A user-supplied callback that is invoked if the connection to the server
-	 * is terminated, either by {@link #disconnect()} or spuriously.
+	 * Returns a callback that delivers to the given callback on the worker of
+	 * the executor that serves the request, or the given callback itself if
+	 * there is no executor.
 	 */
-	protected void disconnected(IOException e) {
+	private static Callback<? super Map<?, ?>> dispatchedCallback(ShardedExecutor executor, Map<String, Object> request, Callback<? super Map<?, ?>> callback) {
+		if (executor == null) {
+			return callback;
+		}
+		Object baseObj = request.get("base"), counterObj = request.get("counter"), assetObj = request.get("asset");
+		return new DispatchedCallback(executor, baseObj != null ? (Integer) baseObj : assetObj != null ? (Integer) assetObj : -1, counterObj != null ? (Integer) counterObj : -1, callback);
 	}
 
-	private synchronized void doRequest(Map<String, Object> request, Callback<? super Map<?, ?>> callback) throws IOException {
-		if (websocket == null) {
-			throw new IllegalStateException("not connected");
+	private static <V> BatchResult<V> getResult(BatchResult<V> batch) throws InterruptedIOException {
+		try {
+			return batch.get();
 		}
-		Integer tag = Integer.valueOf(++tagCounter == 0 ? ++tagCounter : tagCounter);
-		request.put("tag", tag);
-		synchronized (requests) {
-			requests.put(tag, callback);
+		catch (InterruptedException e) {
+			throw interrupted(e);
+		}
+	}
+
+	private static void pause(long nanos) throws InterruptedIOException {
+		if (nanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			}
+			catch (InterruptedException e) {
+				throw interrupted(e);
+			}
 		}
-		OutputStreamWriter writer = new OutputStreamWriter(websocket.getOutputStream(0, WebSocket.OP_TEXT, true), utf8);
-		JSON.format(writer, request);
-		writer.close();
-		lastActivityTime = System.nanoTime();
+	}
+
+	private static InterruptedIOException interrupted(InterruptedException e) {
+		Thread.currentThread().interrupt();
+		InterruptedIOException iioe = new InterruptedIOException();
+		iioe.initCause(e);
+		return iioe;
 	}
 
 	private static <V> V getResult(Future<V> future) throws IOException, CoinfloorException {
@@ -925,10 +2598,7 @@ public class Coinfloor {
 			return future.get();
 		}
 		catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
-			InterruptedIOException iioe = new InterruptedIOException();
-			iioe.initCause(e);
-			throw iioe;
+			throw interrupted(e);
 		}
 		catch (ExecutionException e) {
 			Throwable cause = e.getCause();
@@ -941,12 +2611,32 @@ public class Coinfloor {
 		}
 	}
 
+	/**
+	 * Puts this client into replay mode. Requests made in replay mode are
+	 * tagged and their callbacks are registered as usual, but nothing is
+	 * sent, so a replayed response completes the request that was given the
+	 * same tag in the recorded session.
+	 */
+	final synchronized void beginReplay() {
+		if (websocket != null) {
+			throw new IllegalStateException("already connected");
+		}
+		replaying = true;
+		tagCounter = 0;
+	}
+
+	final synchronized void endReplay() {
+		replaying = false;
+	}
+
 	final void pump() throws IOException {
 		for (;;) {
 			WebSocket websocket;
+			Journal journal;
 			int timeout;
 			synchronized (this) {
 				websocket = this.websocket;
+				journal = this.journal;
 				timeout = (int) TimeUnit.NANOSECONDS.toMillis(lastActivityTime + KEEPALIVE_INTERVAL_NS - System.nanoTime());
 			}
 			if (websocket == null) {
@@ -960,56 +2650,21 @@ public class Coinfloor {
 			if (in == null) {
 				continue;
 			}
-			lastActivityTime = System.nanoTime();
-			switch (in.getOpcode()) {
-				case WebSocket.OP_TEXT: {
-					Map<?, ?> message = (Map<?, ?>) JSON.parse(new PushbackReader(new InputStreamReader(in, utf8)));
-					Object tagObj = message.get("tag");
-					if (tagObj != null) {
-						Callback<? super Map<?, ?>> callback;
-						synchronized (requests) {
-							callback = requests.remove(((Number) tagObj).intValue());
-						}
-						if (callback != null) {
-							Object errorCodeObj = message.get("error_code");
-							if (errorCodeObj != null) {
-								int errorCode = ((Number) message.get("error_code")).intValue();
-								if (errorCode != 0) {
-									callback.operationFailed(new CoinfloorException(errorCode, (String) message.get("error_msg")));
-									continue;
-								}
-							}
-							callback.operationCompleted(message);
-						}
-						continue;
-					}
-					Object notice = message.get("notice");
-					if (notice != null) {
-						if ("BalanceChanged".equals(notice)) {
-							balanceChanged(((Number) message.get("asset")).intValue(), ((Number) message.get("balance")).longValue());
-						}
-						else if ("OrderOpened".equals(notice)) {
-							Object tonceObj = message.get("tonce");
-							orderOpened(((Number) message.get("id")).longValue(), tonceObj == null ? 0 : ((Number) tonceObj).longValue(), ((Number) message.get("base")).intValue(), ((Number) message.get("counter")).intValue(), ((Number) message.get("quantity")).longValue(), ((Number) message.get("price")).longValue(), ((Number) message.get("time")).longValue(), tonceObj != null || message.containsKey("tonce"));
-						}
-						else if ("OrdersMatched".equals(notice)) {
-                                                    Object bidObj = message.get("bid"), askObj = message.get("ask"), bidRemObj = message.get("bid_rem"), askRemObj = message.get("ask_rem"), bidBaseFeeObj = message.get("bid_base_fee"), bidCounterFeeObj = message.get("bid_counter_fee"), askBaseFeeObj = message.get("ask_base_fee"), askCounterFeeObj = message.get("ask_counter_fee");
-                                                    ordersMatched(bidObj == null ? -1 : ((Number) bidObj).longValue(), getBidTonce(message), askObj == null ? -1 : ((Number) askObj).longValue(), getAskTonce(message), ((Number) message.get("base")).intValue(), ((Number) message.get("counter")).intValue(), ((Number) message.get("quantity")).longValue(), ((Number) message.get("price")).longValue(), ((Number) message.get("total")).longValue(), bidRemObj == null ? -1 : ((Number) bidRemObj).longValue(), askRemObj == null ? -1 : ((Number) askRemObj).longValue(), ((Number) message.get("time")).longValue(), bidBaseFeeObj == null ? -1 : ((Number) bidBaseFeeObj).longValue(), bidCounterFeeObj == null ? -1 : ((Number) bidCounterFeeObj).longValue(), askBaseFeeObj == null ? -1 : ((Number) askBaseFeeObj).longValue(), askCounterFeeObj == null ? -1 : ((Number) askCounterFeeObj).longValue());
-                                                }
-						else if ("OrderClosed".equals(notice)) {
-							Object tonceObj = message.get("tonce");
-							orderClosed(((Number) message.get("id")).longValue(), tonceObj == null ? 0 : ((Number) tonceObj).longValue(), ((Number) message.get("base")).intValue(), ((Number) message.get("counter")).intValue(), ((Number) message.get("quantity")).longValue(), ((Number) message.get("price")).longValue(), tonceObj != null || message.containsKey("tonce"));
-						}
-						else if ("TickerChanged".equals(notice)) {
-							TickerInfo tickerInfo = makeTickerInfo(-1, -1, message);
-							tickerChanged(tickerInfo.base, tickerInfo.counter, tickerInfo.last, tickerInfo.bid, tickerInfo.ask, tickerInfo.low, tickerInfo.high, tickerInfo.volume);
-						}
-					}
-                                    break;
-				}
+			long receiveTime = lastActivityTime = System.nanoTime();
+			int opcode = in.getOpcode();
+			InputStream payload = in;
+			if (journal != null && (opcode == WebSocket.OP_TEXT || opcode == WebSocket.OP_PING)) {
+				int length = readFrame(in);
+				journal.append(receiveTime, opcode, frameBuffer, 0, length);
+				payload = new ByteArrayInputStream(frameBuffer, 0, length);
+			}
+			switch (opcode) {
+				case WebSocket.OP_TEXT:
+					dispatch(payload);
+					break;
 				case WebSocket.OP_PING: {
 					WebSocket.MessageOutputStream out = websocket.getOutputStream(0, WebSocket.OP_PONG, true);
-					for (int c; (c = in.read()) >= 0;) {
+					for (int c; (c = payload.read()) >= 0;) {
 						out.write(c);
 					}
 					out.close();
@@ -1020,8 +2675,226 @@ public class Coinfloor {
 		}
 	}
 
+	/**
+	 * Decodes a text message from the server and dispatches it either to the
+	 * callback of the request to which it responds or to the notice hooks.
+	 */
+	final void dispatch(InputStream payload) throws IOException {
+		Map<?, ?> message;
+		try {
+			message = (Map<?, ?>) JSON.parse(new PushbackReader(new InputStreamReader(payload, utf8)), orderStreamer);
+		}
+		finally {
+			orderStreamer.interpreter = null;
+		}
+		Object tagObj = message.get("tag");
+		if (tagObj != null) {
+			Callback<? super Map<?, ?>> callback;
+			synchronized (requests) {
+				callback = requests.remove(((Number) tagObj).intValue());
+				if (!placements.isEmpty()) {
+					placements.remove(((Number) tagObj).intValue());
+				}
+			}
+			if (callback != null) {
+				releaseInFlight(1);
+				Object errorCodeObj = message.get("error_code");
+				if (errorCodeObj != null) {
+					int errorCode = ((Number) message.get("error_code")).intValue();
+					if (errorCode != 0) {
+						callback.operationFailed(new CoinfloorException(errorCode, (String) message.get("error_msg")));
+						return;
+					}
+				}
+				callback.operationCompleted(message);
+			}
+			return;
+		}
+		Integer type = noticeTypes.get(message.get("notice"));
+		if (type == null) {
+			return;
+		}
+		final Subscription[] subscriptions = this.subscriptions[Integer.numberOfTrailingZeros(type)];
+		ShardedExecutor executor = dispatchExecutor;
+		switch (type) {
+			case NoticeListener.BALANCE_CHANGED: {
+				final int asset = ((Number) message.get("asset")).intValue();
+				final long balance = ((Number) message.get("balance")).longValue();
+				if (executor == null) {
+					fireBalanceChanged(subscriptions, asset, balance);
+				}
+				else {
+					executor.execute(asset, -1, new Runnable() {
+
+						@Override
+						public void run() {
+							fireBalanceChanged(subscriptions, asset, balance);
+						}
+
+					});
+				}
+				break;
+			}
+			case NoticeListener.ORDER_OPENED: {
+				Object tonceObj = message.get("tonce");
+				final long id = ((Number) message.get("id")).longValue(), tonce = tonceObj == null ? 0 : ((Number) tonceObj).longValue();
+				final int base = ((Number) message.get("base")).intValue(), counter = ((Number) message.get("counter")).intValue();
+				final long quantity = ((Number) message.get("quantity")).longValue(), price = ((Number) message.get("price")).longValue(), time = ((Number) message.get("time")).longValue();
+				final boolean own = tonceObj != null || message.containsKey("tonce");
+				if (executor == null) {
+					fireOrderOpened(subscriptions, id, tonce, base, counter, quantity, price, time, own);
+				}
+				else {
+					executor.execute(base, counter, new Runnable() {
+
+						@Override
+						public void run() {
+							fireOrderOpened(subscriptions, id, tonce, base, counter, quantity, price, time, own);
+						}
+
+					});
+				}
+				break;
+			}
+			case NoticeListener.ORDERS_MATCHED: {
+				Object bidObj = message.get("bid"), askObj = message.get("ask"), bidRemObj = message.get("bid_rem"), askRemObj = message.get("ask_rem"), bidBaseFeeObj = message.get("bid_base_fee"), bidCounterFeeObj = message.get("bid_counter_fee"), askBaseFeeObj = message.get("ask_base_fee"), askCounterFeeObj = message.get("ask_counter_fee");
+				final long bid = bidObj == null ? -1 : ((Number) bidObj).longValue(), bidTonce = getBidTonce(message), ask = askObj == null ? -1 : ((Number) askObj).longValue(), askTonce = getAskTonce(message);
+				final int base = ((Number) message.get("base")).intValue(), counter = ((Number) message.get("counter")).intValue();
+				final long quantity = ((Number) message.get("quantity")).longValue(), price = ((Number) message.get("price")).longValue(), total = ((Number) message.get("total")).longValue();
+				final long bidRem = bidRemObj == null ? -1 : ((Number) bidRemObj).longValue(), askRem = askRemObj == null ? -1 : ((Number) askRemObj).longValue(), time = ((Number) message.get("time")).longValue();
+				final long bidBaseFee = bidBaseFeeObj == null ? -1 : ((Number) bidBaseFeeObj).longValue(), bidCounterFee = bidCounterFeeObj == null ? -1 : ((Number) bidCounterFeeObj).longValue(), askBaseFee = askBaseFeeObj == null ? -1 : ((Number) askBaseFeeObj).longValue(), askCounterFee = askCounterFeeObj == null ? -1 : ((Number) askCounterFeeObj).longValue();
+				if (executor == null) {
+					fireOrdersMatched(subscriptions, bid, bidTonce, ask, askTonce, base, counter, quantity, price, total, bidRem, askRem, time, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee);
+				}
+				else {
+					executor.execute(base, counter, new Runnable() {
+
+						@Override
+						public void run() {
+							fireOrdersMatched(subscriptions, bid, bidTonce, ask, askTonce, base, counter, quantity, price, total, bidRem, askRem, time, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee);
+						}
+
+					});
+				}
+				break;
+			}
+			case NoticeListener.ORDER_CLOSED: {
+				Object tonceObj = message.get("tonce");
+				final long id = ((Number) message.get("id")).longValue(), tonce = tonceObj == null ? 0 : ((Number) tonceObj).longValue();
+				final int base = ((Number) message.get("base")).intValue(), counter = ((Number) message.get("counter")).intValue();
+				final long quantity = ((Number) message.get("quantity")).longValue(), price = ((Number) message.get("price")).longValue();
+				final boolean own = tonceObj != null || message.containsKey("tonce");
+				if (executor == null) {
+					fireOrderClosed(subscriptions, id, tonce, base, counter, quantity, price, own);
+				}
+				else {
+					executor.execute(base, counter, new Runnable() {
+
+						@Override
+						public void run() {
+							fireOrderClosed(subscriptions, id, tonce, base, counter, quantity, price, own);
+						}
+
+					});
+				}
+				break;
+			}
+			case NoticeListener.TICKER_CHANGED: {
+				final TickerInfo tickerInfo = makeTickerInfo(-1, -1, message);
+				if (executor == null) {
+					fireTickerChanged(subscriptions, tickerInfo);
+				}
+				else {
+					executor.execute(tickerInfo.base, tickerInfo.counter, new Runnable() {
+
+						@Override
+						public void run() {
+							fireTickerChanged(subscriptions, tickerInfo);
+						}
+
+					});
+				}
+				break;
+			}
+		}
+	}
+
+	private void fireBalanceChanged(Subscription[] subscriptions, int asset, long balance) {
+		balanceChanged(asset, balance);
+		for (Subscription subscription : subscriptions) {
+			if (subscription.matches(asset)) {
+				subscription.listener.balanceChanged(asset, balance);
+			}
+		}
+	}
+
+	private void fireOrderOpened(Subscription[] subscriptions, long id, long tonce, int base, int counter, long quantity, long price, long time, boolean own) {
+		orderOpened(id, tonce, base, counter, quantity, price, time, own);
+		for (Subscription subscription : subscriptions) {
+			if (subscription.matches(base, counter)) {
+				subscription.listener.orderOpened(id, tonce, base, counter, quantity, price, time, own);
+			}
+		}
+	}
+
+	private void fireOrdersMatched(Subscription[] subscriptions, long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+		ordersMatched(bid, bidTonce, ask, askTonce, base, counter, quantity, price, total, bidRem, askRem, time, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee);
+		for (Subscription subscription : subscriptions) {
+			if (subscription.matches(base, counter)) {
+				subscription.listener.ordersMatched(bid, bidTonce, ask, askTonce, base, counter, quantity, price, total, bidRem, askRem, time, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee);
+			}
+		}
+	}
+
+	private void fireOrderClosed(Subscription[] subscriptions, long id, long tonce, int base, int counter, long quantity, long price, boolean own) {
+		orderClosed(id, tonce, base, counter, quantity, price, own);
+		for (Subscription subscription : subscriptions) {
+			if (subscription.matches(base, counter)) {
+				subscription.listener.orderClosed(id, tonce, base, counter, quantity, price, own);
+			}
+		}
+	}
+
+	private void fireTickerChanged(Subscription[] subscriptions, TickerInfo tickerInfo) {
+		tickerChanged(tickerInfo.base, tickerInfo.counter, tickerInfo.last, tickerInfo.bid, tickerInfo.ask, tickerInfo.low, tickerInfo.high, tickerInfo.volume);
+		for (Subscription subscription : subscriptions) {
+			if (subscription.matches(tickerInfo.base, tickerInfo.counter)) {
+				subscription.listener.tickerChanged(tickerInfo.base, tickerInfo.counter, tickerInfo.last, tickerInfo.bid, tickerInfo.ask, tickerInfo.low, tickerInfo.high, tickerInfo.volume);
+			}
+		}
+	}
+
+	/**
+	 * Reads the remainder of the current message into the frame buffer,
+	 * growing it as needed, and returns the number of bytes read.
+	 */
+	private int readFrame(InputStream in) throws IOException {
+		byte[] buffer = frameBuffer;
+		if (buffer == null) {
+			frameBuffer = buffer = new byte[8192];
+		}
+		int length = 0;
+		for (int n; (n = in.read(buffer, length, buffer.length - length)) >= 0;) {
+			if ((length += n) == buffer.length) {
+				frameBuffer = buffer = Arrays.copyOf(buffer, buffer.length << 1);
+			}
+		}
+		return length;
+	}
+
 	final void failRequests(Exception exception) {
+		int count = 0;
 		synchronized (requests) {
+			if (!placements.isEmpty()) {
+				// placements with tonces are retained for recovery rather than failed, and give up their places
+				for (Map.Entry<Integer, Placement> entry : placements.entrySet()) {
+					if (requests.remove(entry.getKey()) != null) {
+						retainedPlacements.add(entry.getValue());
+						++count;
+					}
+				}
+				placements.clear();
+			}
 			if (!requests.isEmpty()) {
 				if (exception == null) {
 					exception = new IOException("disconnected");
@@ -1029,22 +2902,75 @@ public class Coinfloor {
 				for (Callback<?> callback : requests.values()) {
 					callback.operationFailed(exception);
 				}
+				count += requests.size();
 				requests.clear();
 			}
 		}
+		if (count > 0) {
+			releaseInFlight(count);
+		}
 	}
 
 	final TickerInfo makeTickerInfo(int defaultBase, int defaultCounter, Map<?, ?> response) {
-		Object baseObj = response.get("base"), counterObj = response.get("counter"), lastObj = response.get("last"), bidObj = response.get("bid"), askObj = response.get("ask"), lowObj = response.get("low"), highObj = response.get("high"), volumeObj = response.get("volume");
+		Object baseObj = response.get("base"), counterObj = response.get("counter");
 		int base = baseObj == null ? defaultBase : ((Number) baseObj).intValue(), counter = counterObj == null ? defaultCounter : ((Number) counterObj).intValue();
-		boolean lastPresent = lastObj != null || response.containsKey("last"), bidPresent = bidObj != null || response.containsKey("bid"), askPresent = askObj != null || response.containsKey("ask"), lowPresent = lowObj != null || response.containsKey("low"), highPresent = highObj != null || response.containsKey("high"), volumePresent = volumeObj != null || response.containsKey("volume");
 		synchronized (tickers) {
-			Ticker ticker;
-			if ((ticker = tickers.get(base << 16 | counter)) == null) {
-				tickers.put(base << 16 | counter, ticker = new Ticker());
-			}
-			return new TickerInfo(base, counter, lastPresent ? (ticker.last = lastObj == null ? -1 : ((Number) lastObj).longValue()) : ticker.last, bidPresent ? (ticker.bid = bidObj == null ? -1 : ((Number) bidObj).longValue()) : ticker.bid, askPresent ? (ticker.ask = askObj == null ? -1 : ((Number) askObj).longValue()) : ticker.ask, lowPresent ? (ticker.low = lowObj == null ? -1 : ((Number) lowObj).longValue()) : ticker.low, highPresent ? (ticker.high = highObj == null ? -1 : ((Number) highObj).longValue()) : ticker.high, volumePresent ? (ticker.volume = volumeObj == null ? -1 : ((Number) volumeObj).longValue()) : ticker.volume);
+			Ticker ticker = mergeTicker(base, counter, response);
+			return new TickerInfo(base, counter, ticker.last, ticker.bid, ticker.ask, ticker.low, ticker.high, ticker.volume);
+		}
+	}
+
+	/**
+	 * Merges the fields present in a ticker response or notice into the
+	 * retained state of its market and copies the merged state to the given
+	 * view.
+	 */
+	final void updateTicker(int defaultBase, int defaultCounter, Map<?, ?> response, TickerView view) {
+		Object baseObj = response.get("base"), counterObj = response.get("counter");
+		int base = baseObj == null ? defaultBase : ((Number) baseObj).intValue(), counter = counterObj == null ? defaultCounter : ((Number) counterObj).intValue();
+		synchronized (tickers) {
+			Ticker ticker = mergeTicker(base, counter, response);
+			view.base = base;
+			view.counter = counter;
+			view.last = ticker.last;
+			view.bid = ticker.bid;
+			view.ask = ticker.ask;
+			view.low = ticker.low;
+			view.high = ticker.high;
+			view.volume = ticker.volume;
+		}
+	}
+
+	/**
+	 * Merges the fields present in a ticker response or notice into the
+	 * retained state of the specified market and returns that state. The
+	 * caller must hold the lock on the tickers.
+	 */
+	private Ticker mergeTicker(int base, int counter, Map<?, ?> response) {
+		Object lastObj = response.get("last"), bidObj = response.get("bid"), askObj = response.get("ask"), lowObj = response.get("low"), highObj = response.get("high"), volumeObj = response.get("volume");
+		Ticker ticker;
+		if ((ticker = tickers.get(base << 16 | counter)) == null) {
+			tickers.put(base << 16 | counter, ticker = new Ticker());
+		}
+		if (lastObj != null || response.containsKey("last")) {
+			ticker.last = lastObj == null ? -1 : ((Number) lastObj).longValue();
+		}
+		if (bidObj != null || response.containsKey("bid")) {
+			ticker.bid = bidObj == null ? -1 : ((Number) bidObj).longValue();
+		}
+		if (askObj != null || response.containsKey("ask")) {
+			ticker.ask = askObj == null ? -1 : ((Number) askObj).longValue();
+		}
+		if (lowObj != null || response.containsKey("low")) {
+			ticker.low = lowObj == null ? -1 : ((Number) lowObj).longValue();
+		}
+		if (highObj != null || response.containsKey("high")) {
+			ticker.high = highObj == null ? -1 : ((Number) highObj).longValue();
+		}
+		if (volumeObj != null || response.containsKey("volume")) {
+			ticker.volume = volumeObj == null ? -1 : ((Number) volumeObj).longValue();
 		}
+		return ticker;
 	}
 
 	// see ITU-T Rec. X.690 (07/2002)
@@ -13,6 +13,25 @@ import java.util.Map;
 
 class JSON {
 
+	/**
+	 * Observes the members of the top-level object as they are parsed.
+	 */
+	interface MemberHandler {
+
+		/**
+		 * Returns whether the elements of the array that is the value of the
+		 * specified member are to be passed to
+		 * {@link #elementParsed(String, Object)} as they are parsed instead
+		 * of being collected. The value of such a member is an empty list.
+		 */
+		public boolean streamElements(String key);
+
+		public void elementParsed(String key, Object element) throws IOException;
+
+		public void memberParsed(String key, Object value) throws IOException;
+
+	}
+
 	/**
 	 * Not instantiable.
 	 */
@@ -113,7 +132,21 @@ class JSON {
 	}
 
 	public static Object parse(PushbackReader reader) throws IOException {
-		Object value = parseValue(reader);
+		return parse(reader, null);
+	}
+
+	public static Object parse(PushbackReader reader, MemberHandler handler) throws IOException {
+		Object value;
+		int c = IO.readSkipWhitespace(reader);
+		if (c == '{') {
+			value = parseObject(reader, handler);
+		}
+		else {
+			if (c >= 0) {
+				reader.unread(c);
+			}
+			value = parseValue(reader);
+		}
 		if (!(value instanceof Map<?, ?>) && !(value instanceof List<?>)) {
 			throw new StreamCorruptedException("expected object or array");
 		}
@@ -127,7 +160,7 @@ class JSON {
 		}
 		switch (c) {
 			case '{':
-				return parseObject(reader);
+				return parseObject(reader, null);
 			case '[':
 				return parseArray(reader);
 			case '"':
@@ -164,7 +197,7 @@ class JSON {
 		throw new StreamCorruptedException("expected object, array, string, number, boolean, or null" + ": " + (char) c);
 	}
 
-	private static Map<?, ?> parseObject(PushbackReader reader) throws IOException {
+	private static Map<?, ?> parseObject(PushbackReader reader, MemberHandler handler) throws IOException {
 		LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>();
 		for (int c; (c = IO.readSkipWhitespace(reader)) >= 0;) {
 			if (c == '}') {
@@ -193,33 +226,62 @@ class JSON {
 			if (c != ':') {
 				throw new StreamCorruptedException("expected colon" + ": " + (char) c);
 			}
-			map.put(key, parseValue(reader));
+			if (handler == null) {
+				map.put(key, parseValue(reader));
+			}
+			else {
+				Object value;
+				if (handler.streamElements(key)) {
+					if ((c = IO.readSkipWhitespace(reader)) != '[') {
+						reader.unread(c);
+						value = parseValue(reader);
+					}
+					else {
+						value = parseArray(reader, key, handler);
+					}
+				}
+				else {
+					value = parseValue(reader);
+				}
+				map.put(key, value);
+				handler.memberParsed(key, value);
+			}
 		}
 		throw new EOFException("unterminated object");
 	}
 
 	private static List<?> parseArray(PushbackReader reader) throws IOException {
-		ArrayList<Object> list = new ArrayList<Object>();
+		return parseArray(reader, null, null);
+	}
+
+	private static List<?> parseArray(PushbackReader reader, String key, MemberHandler handler) throws IOException {
+		ArrayList<Object> list = new ArrayList<Object>(handler == null ? 10 : 0);
+		boolean first = true;
 		for (int c; (c = IO.readSkipWhitespace(reader)) >= 0;) {
 			if (c == ']') {
 				return list;
 			}
-			if (list.isEmpty()) {
+			if (first) {
 				reader.unread(c);
+				first = false;
 			}
 			else if (c != ',') {
 				throw new StreamCorruptedException("expected comma or closing bracket: " + (char) c);
 			}
-			list.add(parseValue(reader));
+			if (handler == null) {
+				list.add(parseValue(reader));
+			}
+			else {
+				handler.elementParsed(key, parseValue(reader));
+			}
 		}
 		throw new EOFException("unterminated array");
 	}
 
 	private static Number parseNumber(PushbackReader reader) throws IOException {
-		StringBuilder sb = new StringBuilder();
 		int c = IO.readSkipWhitespace(reader);
-		if (c == '-') {
-			sb.append('-');
+		boolean negative = c == '-';
+		if (negative) {
 			c = reader.read();
 		}
 		if (c < 0) {
@@ -228,24 +290,41 @@ class JSON {
 		if (c < '0' || c > '9') {
 			throw new StreamCorruptedException("expected number" + ": " + (char) c);
 		}
-		sb.append((char) c);
+		// integers are accumulated negatively, so that Long.MIN_VALUE is representable, and text is kept only for non-integers
+		long value = 0;
+		StringBuilder sb = null;
 		if (c == '0') {
 			c = reader.read();
 		}
 		else {
-			while ((c = reader.read()) >= '0' && c <= '9') {
-				sb.append((char) c);
-			}
+			do {
+				int digit = c - '0';
+				if (sb != null) {
+					sb.append((char) c);
+				}
+				else if (value < (Long.MIN_VALUE + digit) / 10) {
+					sb = appendInteger(new StringBuilder(), negative, value).append((char) c);
+				}
+				else {
+					value = value * 10 - digit;
+				}
+			} while ((c = reader.read()) >= '0' && c <= '9');
 		}
 		boolean fp = false;
 		if (c == '.') {
 			fp = true;
+			if (sb == null) {
+				sb = appendInteger(new StringBuilder(), negative, value);
+			}
 			do {
 				sb.append((char) c);
 			} while ((c = reader.read()) >= '0' && c <= '9');
 		}
 		if (c == 'E' || c == 'e') {
 			fp = true;
+			if (sb == null) {
+				sb = appendInteger(new StringBuilder(), negative, value);
+			}
 			sb.append((char) c);
 			if ((c = reader.read()) == '-' || c == '+') {
 				sb.append((char) c);
@@ -257,8 +336,21 @@ class JSON {
 			}
 		}
 		reader.unread(c);
-		String str = sb.toString();
-		return fp ? (Number) Double.valueOf(str) : (Number) Long.valueOf(str);
+		if (sb != null) {
+			String str = sb.toString();
+			return fp ? (Number) Double.valueOf(str) : (Number) Long.valueOf(str);
+		}
+		if (!negative && value == Long.MIN_VALUE) {
+			throw new NumberFormatException("For input string: \"9223372036854775808\"");
+		}
+		return Long.valueOf(negative ? value : -value);
+	}
+
+	private static StringBuilder appendInteger(StringBuilder sb, boolean negative, long negatedValue) {
+		if (negative) {
+			sb.append('-');
+		}
+		return negatedValue == Long.MIN_VALUE ? sb.append("9223372036854775808") : sb.append(-negatedValue);
 	}
 
 	private static String parseString(PushbackReader reader) throws IOException {
@@ -0,0 +1,427 @@
+package uk.co.coinfloor.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * An append-only record of the frames received from a Coinfloor API server.
+ * Each record holds the opcode and raw payload of a frame along with the time
+ * at which it was received, in nanoseconds since the epoch. Records are
+ * written to rolling memory-mapped segment files, and a sparse index is kept
+ * alongside each segment so that a {@link Reader} can seek by time.
+ * <p>
+ * A journal has a single writer, which is normally the pump thread of the
+ * {@link Coinfloor} instance to which it is attached. Appending never waits
+ * for the disk; the next segment is mapped in the background while the
+ * current one is being filled.
+ */
+public class Journal implements Closeable {
+
+	/**
+	 * Reads the records of a journal in order, starting from the oldest
+	 * segment or from a point in time chosen by {@link #seek(long)}.
+	 */
+	public static class Reader implements Closeable {
+
+		private final File directory;
+		private final String prefix;
+
+		private int[] segmentNumbers;
+		private long listTime; // System.nanoTime() at which the segments were last listed
+		private int segmentIndex = -1;
+		private ByteBuffer data, index, nextData;
+		private int recordPosition;
+
+		private long timestamp;
+		private int opcode;
+		private ByteBuffer payload;
+
+		public Reader(File directory, String prefix) throws IOException {
+			this.directory = directory;
+			this.prefix = prefix;
+			listSegments();
+		}
+
+		/**
+		 * Positions this reader so that the next call to {@link #next()}
+		 * returns the first record received at or after the specified time (in
+		 * nanoseconds since the epoch). Returns false if there is no such
+		 * record.
+		 */
+		public boolean seek(long timestamp) throws IOException {
+			int[] segmentNumbers = listSegments();
+			int lo = 0, hi = segmentNumbers.length - 1;
+			while (lo < hi) {
+				int mid = lo + hi + 1 >>> 1;
+				ByteBuffer index = mapIndex(segmentNumbers[mid]);
+				long first = index.getLong(0);
+				if (first != 0 && first <= timestamp) {
+					lo = mid;
+				}
+				else {
+					hi = mid - 1;
+				}
+			}
+			if (!openSegment(lo)) {
+				return false;
+			}
+			ByteBuffer index = this.index;
+			int entries = 0;
+			while ((entries + 1) * INDEX_ENTRY_SIZE <= index.capacity() && index.getLong(entries * INDEX_ENTRY_SIZE) != 0) {
+				++entries;
+			}
+			int offset = 0;
+			for (int l = 0, h = entries - 1; l <= h;) {
+				int mid = l + h >>> 1;
+				if (index.getLong(mid * INDEX_ENTRY_SIZE) <= timestamp) {
+					offset = (int) index.getLong(mid * INDEX_ENTRY_SIZE + 8);
+					l = mid + 1;
+				}
+				else {
+					h = mid - 1;
+				}
+			}
+			data.position(offset);
+			while (next()) {
+				if (this.timestamp >= timestamp) {
+					// rewind so that next() yields this record again
+					data.position(recordPosition);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Advances to the next record. Returns false if the end of the journal
+		 * has been reached.
+		 */
+		public boolean next() throws IOException {
+			for (;;) {
+				if (data == null && !openSegment(segmentIndex + 1)) {
+					// the writer may have created the next segment since the segments were listed
+					listSegments();
+					if (!openSegment(segmentIndex + 1)) {
+						return false;
+					}
+				}
+				ByteBuffer data = this.data;
+				int position = data.position();
+				if (data.capacity() - position >= 8) {
+					int opcode = data.getInt(position + 4);
+					if (opcode == 0 && !hasLaterRecords()) {
+						// the writer has not got this far yet
+						return false;
+					}
+					if (opcode != 0 && opcode != END_OF_SEGMENT) {
+						int length = data.getInt(position);
+						timestamp = data.getLong(position + 8);
+						this.opcode = opcode;
+						data.limit(position + RECORD_HEADER_SIZE + length).position(position + RECORD_HEADER_SIZE);
+						payload = data.slice();
+						data.limit(data.capacity()).position(position + recordSize(length));
+						recordPosition = position;
+						return true;
+					}
+				}
+				this.data = null;
+			}
+		}
+
+		/**
+		 * Returns the time at which the current record was received, in
+		 * nanoseconds since the epoch.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Returns the WebSocket opcode of the current record.
+		 */
+		public int getOpcode() {
+			return opcode;
+		}
+
+		/**
+		 * Returns a read-only view of the payload of the current record. The
+		 * view shares the mapped segment and is not copied.
+		 */
+		public ByteBuffer getPayload() {
+			return payload.asReadOnlyBuffer();
+		}
+
+		@Override
+		public void close() {
+			data = index = nextData = payload = null;
+		}
+
+		/**
+		 * Returns whether the writer has moved past the current segment
+		 * without marking its end, in which case the unwritten tail of the
+		 * segment was left by a writer that stopped abruptly. It has if the
+		 * next segment holds a record, or if there is a segment after that
+		 * one, since a writer only ever prepares the segment after its
+		 * current one. The next segment is mapped only once, and while the
+		 * reader waits at the tail of the journal, the segments are listed
+		 * again at most once per {@link #RELIST_INTERVAL_NS}.
+		 */
+		private boolean hasLaterRecords() throws IOException {
+			if (segmentIndex + 2 >= segmentNumbers.length && System.nanoTime() - listTime >= RELIST_INTERVAL_NS) {
+				listSegments();
+			}
+			if (segmentIndex + 2 < segmentNumbers.length) {
+				return true;
+			}
+			if (segmentIndex + 1 >= segmentNumbers.length) {
+				return false;
+			}
+			if (nextData == null || nextData.capacity() < 8) {
+				// a segment that is still being created may be empty
+				nextData = map(segmentFile(directory, prefix, segmentNumbers[segmentIndex + 1], DATA_SUFFIX), FileChannel.MapMode.READ_ONLY, 0);
+			}
+			return nextData.capacity() >= 8 && nextData.getInt(4) != 0;
+		}
+
+		private int[] listSegments() {
+			listTime = System.nanoTime();
+			return segmentNumbers = Journal.listSegments(directory, prefix);
+		}
+
+		private boolean openSegment(int segmentIndex) throws IOException {
+			if (segmentIndex < 0 || segmentIndex >= segmentNumbers.length) {
+				return false;
+			}
+			int number = segmentNumbers[segmentIndex];
+			data = map(segmentFile(directory, prefix, number, DATA_SUFFIX), FileChannel.MapMode.READ_ONLY, 0);
+			index = mapIndex(number);
+			nextData = null;
+			this.segmentIndex = segmentIndex;
+			return true;
+		}
+
+		private ByteBuffer mapIndex(int number) throws IOException {
+			return map(segmentFile(directory, prefix, number, INDEX_SUFFIX), FileChannel.MapMode.READ_ONLY, 0);
+		}
+
+	}
+
+	private static class Segment {
+
+		final int number;
+		final MappedByteBuffer data, index;
+
+		Segment(File directory, String prefix, int number, int size, int indexInterval) throws IOException {
+			this.number = number;
+			data = map(segmentFile(directory, prefix, number, DATA_SUFFIX), FileChannel.MapMode.READ_WRITE, size);
+			index = map(segmentFile(directory, prefix, number, INDEX_SUFFIX), FileChannel.MapMode.READ_WRITE, (size / indexInterval + 1) * INDEX_ENTRY_SIZE);
+		}
+
+	}
+
+	static final int RECORD_HEADER_SIZE = 16; // length, opcode, timestamp
+	static final int INDEX_ENTRY_SIZE = 16; // timestamp, offset
+	static final int END_OF_SEGMENT = -1;
+
+	static final long RELIST_INTERVAL_NS = 100L * 1000 * 1000; // 100 milliseconds
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20; // 64 MiB
+	public static final int DEFAULT_INDEX_INTERVAL = 4 << 10; // 4 KiB
+
+	static final String DATA_SUFFIX = ".journal", INDEX_SUFFIX = ".index";
+
+	private final File directory;
+	private final String prefix;
+	private final int segmentSize, indexInterval;
+	private final long epochOffset = System.currentTimeMillis() * 1000 * 1000 - System.nanoTime();
+
+	private Segment segment;
+	private FutureTask<Segment> nextSegment;
+	private int nextIndexPosition, indexCount;
+
+	public Journal(File directory, String prefix) throws IOException {
+		this(directory, prefix, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_INTERVAL);
+	}
+
+	public Journal(File directory, String prefix, int segmentSize, int indexInterval) throws IOException {
+		if (segmentSize < RECORD_HEADER_SIZE) {
+			throw new IllegalArgumentException("segmentSize");
+		}
+		if (indexInterval <= 0) {
+			throw new IllegalArgumentException("indexInterval");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create directory: " + directory);
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		this.indexInterval = indexInterval;
+		int[] segmentNumbers = listSegments(directory, prefix);
+		segment = new Segment(directory, prefix, segmentNumbers.length == 0 ? 0 : segmentNumbers[segmentNumbers.length - 1] + 1, segmentSize, indexInterval);
+		prepareNextSegment();
+	}
+
+	/**
+	 * Converts a value of {@link System#nanoTime()} to nanoseconds since the
+	 * epoch, as recorded in this journal.
+	 */
+	public final long toEpochNanos(long nanoTime) {
+		return epochOffset + nanoTime;
+	}
+
+	/**
+	 * Appends a record to this journal. The receive time is given as a value
+	 * of {@link System#nanoTime()}.
+	 */
+	public final synchronized void append(long receiveTime, int opcode, byte[] b, int off, int len) throws IOException {
+		Segment segment = this.segment;
+		if (segment == null) {
+			throw new IOException("closed");
+		}
+		int recordSize = recordSize(len);
+		MappedByteBuffer data = segment.data;
+		int position = data.position();
+		if (data.capacity() - position < recordSize) {
+			segment = roll(recordSize);
+			data = segment.data;
+			position = 0;
+		}
+		long timestamp = epochOffset + receiveTime;
+		if (position >= nextIndexPosition) {
+			int entry = indexCount++ * INDEX_ENTRY_SIZE;
+			segment.index.putLong(entry + 8, position);
+			segment.index.putLong(entry, timestamp);
+			nextIndexPosition = position + indexInterval;
+		}
+		data.putInt(position, len);
+		data.putLong(position + 8, timestamp);
+		data.position(position + RECORD_HEADER_SIZE);
+		data.put(b, off, len);
+		data.putInt(position + 4, opcode); // written last, as it marks the record as present
+		data.position(position + recordSize);
+	}
+
+	@Override
+	public final synchronized void close() throws IOException {
+		Segment segment = this.segment;
+		if (segment != null) {
+			this.segment = null;
+			MappedByteBuffer data = segment.data;
+			if (data.capacity() - data.position() >= 8) {
+				// mark the end, so that readers move on to the segments of a later journal
+				data.putInt(data.position() + 4, END_OF_SEGMENT);
+			}
+			data.force();
+			segment.index.force();
+			try {
+				Segment next = nextSegment.get();
+				segmentFile(directory, prefix, next.number, DATA_SUFFIX).delete();
+				segmentFile(directory, prefix, next.number, INDEX_SUFFIX).delete();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException ignored) {
+			}
+		}
+	}
+
+	private Segment roll(int recordSize) throws IOException {
+		MappedByteBuffer data = this.segment.data;
+		if (data.capacity() - data.position() >= 8) {
+			data.putInt(data.position() + 4, END_OF_SEGMENT);
+		}
+		Segment segment;
+		try {
+			segment = nextSegment.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			segment = null;
+		}
+		catch (ExecutionException e) {
+			segment = null;
+		}
+		if (segment == null || segment.data.capacity() < recordSize) {
+			// oversized record, or the background mapping failed
+			int number = segment == null ? this.segment.number + 1 : segment.number;
+			segment = new Segment(directory, prefix, number, Math.max(segmentSize, recordSize), indexInterval);
+		}
+		this.segment = segment;
+		nextIndexPosition = indexCount = 0;
+		prepareNextSegment();
+		return segment;
+	}
+
+	private void prepareNextSegment() {
+		final int number = segment.number + 1;
+		Thread thread = new Thread(nextSegment = new FutureTask<Segment>(new Callable<Segment>() {
+
+			@Override
+			public Segment call() throws IOException {
+				return new Segment(directory, prefix, number, segmentSize, indexInterval);
+			}
+
+		}), getClass().getSimpleName() + " Segment Allocator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	static int recordSize(int payloadLength) {
+		return RECORD_HEADER_SIZE + payloadLength + 7 & ~7;
+	}
+
+	static File segmentFile(File directory, String prefix, int number, String suffix) {
+		return new File(directory, prefix + '-' + String.format("%08d", number) + suffix);
+	}
+
+	static int[] listSegments(File directory, final String prefix) {
+		String[] names = directory.list(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix + '-') && name.endsWith(DATA_SUFFIX);
+			}
+
+		});
+		if (names == null) {
+			return new int[0];
+		}
+		int[] ret = new int[names.length];
+		int n = 0;
+		for (String name : names) {
+			try {
+				ret[n] = Integer.parseInt(name.substring(prefix.length() + 1, name.length() - DATA_SUFFIX.length()));
+				++n;
+			}
+			catch (NumberFormatException ignored) {
+			}
+		}
+		ret = Arrays.copyOf(ret, n);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	static MappedByteBuffer map(File file, FileChannel.MapMode mode, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(mode, 0, mode == FileChannel.MapMode.READ_ONLY ? channel.size() : size);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+}
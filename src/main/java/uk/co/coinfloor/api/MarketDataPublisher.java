@@ -0,0 +1,337 @@
+package uk.co.coinfloor.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes decoded market data to a memory-mapped ring file, from which any
+ * number of {@link MarketDataSubscriber}s, in this or other processes on the
+ * same host, read it without copying. One client thus serves the market data
+ * of a host over one connection and with one decoding of each message.
+ * <p>
+ * A publisher is registered with a client as a {@link NoticeListener} for
+ * tickers and trades, for instance by <code>addNoticeListener(publisher,
+ * NoticeListener.TICKER_CHANGED | NoticeListener.ORDERS_MATCHED, -1,
+ * -1)</code>, and with any number of {@link OrderBook}s by
+ * {@link #addOrderBook(OrderBook, int)} for changes to their top levels. Each
+ * item becomes a fixed-size record in the next slot of the ring, overwriting
+ * the oldest record once the ring is full, so the publisher never waits for
+ * its subscribers.
+ * <p>
+ * Since changes to the top levels are published only as they happen, a
+ * subscriber that starts late or loses records could not otherwise learn of
+ * the levels that have not changed since. The publisher therefore publishes a
+ * snapshot of the top levels of each book when the book is added, on demand
+ * by {@link #publishSnapshots()} and periodically once
+ * {@link #startSnapshots(long, TimeUnit)} is called. A snapshot is a
+ * {@link #TYPE_SNAPSHOT_BEGIN} record, a {@link #TYPE_DEPTH_SNAPSHOT} record
+ * for each level and a {@link #TYPE_SNAPSHOT_END} record, in consecutive
+ * slots, so the ring must have room for twice the depth plus two records.
+ * <p>
+ * The file begins with a header of {@value #HEADER_SIZE} bytes that holds a
+ * magic number, the format version, the number and size of the slots, the
+ * number of records published so far and a flag that is set once the
+ * publisher is closed. Each slot of {@value #SLOT_SIZE} bytes holds the
+ * sequence of its record plus one, which is 0 while the slot is being
+ * written, then the type of the record, its market as
+ * <code>base &lt;&lt; 16 | counter</code>, and six fields whose meaning
+ * depends on the type. Numbers are in the native byte order of the host.
+ * The ring has a single writer; the methods of a publisher are synchronized
+ * so that it may be fed by several threads.
+ */
+public class MarketDataPublisher extends NoticeAdapter implements OrderBook.DepthListener, Closeable {
+
+	static final int MAGIC = 0x43464D44; // "CFMD"
+	static final int VERSION = 1;
+
+	public static final int HEADER_SIZE = 64;
+	public static final int SLOT_SIZE = 64;
+
+	// layout of the header
+	static final int HEADER_MAGIC = 0, HEADER_VERSION = 4, HEADER_SLOT_COUNT = 8, HEADER_SLOT_SIZE = 12, HEADER_CURSOR = 16, HEADER_CLOSED = 24;
+	// layout of each slot
+	static final int SLOT_SEQUENCE = 0, SLOT_TYPE = 8, SLOT_MARKET = 12, SLOT_FIELDS = 16;
+
+	/**
+	 * A ticker, whose fields are last, bid, ask, low, high and volume.
+	 */
+	public static final int TYPE_TICKER = 1;
+	/**
+	 * A trade, whose fields are time, price, quantity, total, bid ID and ask
+	 * ID.
+	 */
+	public static final int TYPE_TRADE = 2;
+	/**
+	 * A change to a top level of an order book, whose fields are side (one of
+	 * the <code>SIDE_</code> constants of {@link OrderBook}), price and
+	 * quantity.
+	 */
+	public static final int TYPE_DEPTH = 3;
+	/**
+	 * The beginning of a snapshot of the top levels of an order book, whose
+	 * first field is the depth of the snapshot. The levels of the snapshot
+	 * replace any levels of the book that a subscriber holds.
+	 */
+	public static final int TYPE_SNAPSHOT_BEGIN = 4;
+	/**
+	 * A level of a snapshot, whose fields are as for {@link #TYPE_DEPTH}. The
+	 * bids come first and then the asks, each best first.
+	 */
+	public static final int TYPE_DEPTH_SNAPSHOT = 5;
+	/**
+	 * The end of a snapshot, whose first field is the sequence of its
+	 * {@link #TYPE_SNAPSHOT_BEGIN} record.
+	 */
+	public static final int TYPE_SNAPSHOT_END = 6;
+
+	private static class Book {
+
+		final OrderBook book;
+		final int depth;
+
+		Book(OrderBook book, int depth) {
+			this.book = book;
+			this.depth = depth;
+		}
+
+	}
+
+	private final MappedByteBuffer buffer;
+	private final int slotCount;
+
+	private long cursor;
+	private boolean closed;
+	private Book[] books = new Book[0];
+	private Timer snapshotTimer;
+
+	private volatile int fence;
+
+	/**
+	 * Opens a publisher that writes to a ring of the specified number of
+	 * slots in the given file. A file that already holds a ring of the same
+	 * size is continued, so that sequences are not reused; otherwise the
+	 * file is initialized.
+	 */
+	public MarketDataPublisher(File file, int slotCount) throws IOException {
+		if (slotCount <= 0 || slotCount > (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE) {
+			throw new IllegalArgumentException("slotCount out of range");
+		}
+		buffer = Journal.map(file, FileChannel.MapMode.READ_WRITE, HEADER_SIZE + slotCount * SLOT_SIZE);
+		buffer.order(ByteOrder.nativeOrder());
+		this.slotCount = slotCount;
+		if (buffer.getInt(HEADER_MAGIC) == MAGIC && buffer.getInt(HEADER_VERSION) == VERSION && buffer.getInt(HEADER_SLOT_COUNT) == slotCount && buffer.getInt(HEADER_SLOT_SIZE) == SLOT_SIZE) {
+			cursor = buffer.getLong(HEADER_CURSOR);
+		}
+		else {
+			buffer.putInt(HEADER_MAGIC, 0);
+			fence();
+			for (int i = 0; i < slotCount; ++i) {
+				buffer.putLong(HEADER_SIZE + i * SLOT_SIZE + SLOT_SEQUENCE, 0);
+			}
+			buffer.putInt(HEADER_VERSION, VERSION);
+			buffer.putInt(HEADER_SLOT_COUNT, slotCount);
+			buffer.putInt(HEADER_SLOT_SIZE, SLOT_SIZE);
+			buffer.putLong(HEADER_CURSOR, 0);
+			fence();
+			buffer.putInt(HEADER_MAGIC, MAGIC);
+		}
+		buffer.putInt(HEADER_CLOSED, 0);
+	}
+
+	public final int getSlotCount() {
+		return slotCount;
+	}
+
+	/**
+	 * Returns the number of records that have been published to the file,
+	 * which is also the sequence that the next record will have.
+	 */
+	public final synchronized long getCursor() {
+		return cursor;
+	}
+
+	@Override
+	public synchronized void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+		publish(TYPE_TICKER, base, counter, last, bid, ask, low, high, volume);
+	}
+
+	@Override
+	public synchronized void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+		publish(TYPE_TRADE, base, counter, time, price, quantity, total, bid < 0 ? 0 : bid, ask < 0 ? 0 : ask);
+	}
+
+	@Override
+	public synchronized void depthChanged(OrderBook book, int side, long price, long quantity) {
+		publish(TYPE_DEPTH, book.getBase(), book.getCounter(), side, price, quantity, 0, 0, 0);
+	}
+
+	/**
+	 * Registers this publisher with the given book for changes to its top
+	 * levels, down to the specified depth, and publishes a snapshot of them.
+	 * The book is included in every later snapshot until it is removed.
+	 */
+	public final void addOrderBook(OrderBook book, int depth) {
+		book.addDepthListener(this, depth);
+		synchronized (this) {
+			Book[] books = Arrays.copyOf(this.books, this.books.length + 1);
+			books[books.length - 1] = new Book(book, depth);
+			this.books = books;
+		}
+		publishSnapshot(book, depth);
+	}
+
+	/**
+	 * Unregisters this publisher from the given book.
+	 */
+	public final void removeOrderBook(OrderBook book) {
+		book.removeDepthListener(this);
+		synchronized (this) {
+			int n = 0;
+			Book[] books = new Book[this.books.length];
+			for (Book b : this.books) {
+				if (b.book != book) {
+					books[n++] = b;
+				}
+			}
+			this.books = Arrays.copyOf(books, n);
+		}
+	}
+
+	/**
+	 * Publishes a snapshot of the top levels of each book that has been added
+	 * by {@link #addOrderBook(OrderBook, int)}.
+	 */
+	public final void publishSnapshots() {
+		Book[] books;
+		synchronized (this) {
+			books = this.books;
+		}
+		for (Book b : books) {
+			publishSnapshot(b.book, b.depth);
+		}
+	}
+
+	/**
+	 * Starts publishing snapshots of the books at a fixed period, on a
+	 * background thread, until {@link #stopSnapshots()} is called or this
+	 * publisher is closed.
+	 */
+	public final synchronized void startSnapshots(long period, TimeUnit unit) {
+		stopSnapshots();
+		long millis = Math.max(unit.toMillis(period), 1);
+		snapshotTimer = new Timer(getClass().getSimpleName() + " Snapshot", true);
+		snapshotTimer.scheduleAtFixedRate(new TimerTask() {
+
+			@Override
+			public void run() {
+				publishSnapshots();
+			}
+
+		}, millis, millis);
+	}
+
+	public final synchronized void stopSnapshots() {
+		if (snapshotTimer != null) {
+			snapshotTimer.cancel();
+			snapshotTimer = null;
+		}
+	}
+
+	/**
+	 * Writes the file to the disk. This is needed only for the records to
+	 * survive the failure of the machine.
+	 */
+	public final synchronized void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Marks the file as closed, so that subscribers may tell that no more
+	 * records will follow, and stops publishing.
+	 */
+	@Override
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			stopSnapshots();
+			fence();
+			buffer.putInt(HEADER_CLOSED, 1);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[slotCount=" + slotCount + ", cursor=" + getCursor() + ']';
+	}
+
+	private void publishSnapshot(OrderBook book, int depth) {
+		// the lock on the book is taken first, as when it reports a change to its levels
+		synchronized (book) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				int base = book.getBase(), counter = book.getCounter();
+				long begin = cursor;
+				publish(TYPE_SNAPSHOT_BEGIN, base, counter, depth, 0, 0, 0, 0, 0);
+				for (int i = 0, n = 0, count = book.getBidLevelCount(); i < count && n < depth; ++i) {
+					long quantity = book.getBidQuantity(i);
+					if (quantity != 0) { // a level that has been filled but not yet closed is left out, as for changes
+						publish(TYPE_DEPTH_SNAPSHOT, base, counter, OrderBook.SIDE_BID, book.getBidPrice(i), quantity, 0, 0, 0);
+						++n;
+					}
+				}
+				for (int i = 0, n = 0, count = book.getAskLevelCount(); i < count && n < depth; ++i) {
+					long quantity = book.getAskQuantity(i);
+					if (quantity != 0) {
+						publish(TYPE_DEPTH_SNAPSHOT, base, counter, OrderBook.SIDE_ASK, book.getAskPrice(i), quantity, 0, 0, 0);
+						++n;
+					}
+				}
+				publish(TYPE_SNAPSHOT_END, base, counter, begin, 0, 0, 0, 0, 0);
+			}
+		}
+	}
+
+	private void publish(int type, int base, int counter, long f0, long f1, long f2, long f3, long f4, long f5) {
+		if (closed) {
+			return;
+		}
+		long sequence = cursor;
+		int offset = HEADER_SIZE + (int) (sequence % slotCount) * SLOT_SIZE;
+		MappedByteBuffer buffer = this.buffer;
+		buffer.putLong(offset + SLOT_SEQUENCE, 0);
+		fence();
+		buffer.putInt(offset + SLOT_TYPE, type);
+		buffer.putInt(offset + SLOT_MARKET, base << 16 | counter);
+		buffer.putLong(offset + SLOT_FIELDS, f0);
+		buffer.putLong(offset + SLOT_FIELDS + 8, f1);
+		buffer.putLong(offset + SLOT_FIELDS + 16, f2);
+		buffer.putLong(offset + SLOT_FIELDS + 24, f3);
+		buffer.putLong(offset + SLOT_FIELDS + 32, f4);
+		buffer.putLong(offset + SLOT_FIELDS + 40, f5);
+		fence();
+		buffer.putLong(offset + SLOT_SEQUENCE, sequence + 1);
+		buffer.putLong(HEADER_CURSOR, cursor = sequence + 1);
+	}
+
+	/**
+	 * Orders the accesses to the file before this call before those after it.
+	 * A volatile write followed by a volatile read of the same field is a
+	 * full fence, which on the usual platforms also orders the accesses as
+	 * seen by other processes.
+	 */
+	private int fence() {
+		fence = 0;
+		return fence;
+	}
+
+}
@@ -0,0 +1,353 @@
+package uk.co.coinfloor.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the records that a {@link MarketDataPublisher}, possibly in another
+ * process, writes to a ring file. Records are read in place: each is
+ * presented to a {@link Handler} through a single reusable {@link Record}
+ * whose accessors read straight from the mapped file, so polling neither
+ * copies nor allocates.
+ * <p>
+ * A subscriber never blocks the publisher, so one that falls more than a
+ * ring behind loses the records that were overwritten, skips ahead to the
+ * oldest record still held and counts the loss. A subscriber is meant for
+ * use by a single thread.
+ * <p>
+ * A subscriber that keeps the top levels of order books, and has just been
+ * opened, positioned by {@link #seek(long)} or has lost records, should
+ * discard the levels that it holds and ignore changes to them until it has
+ * read a whole snapshot of each book: a
+ * {@link MarketDataPublisher#TYPE_SNAPSHOT_BEGIN} record, its levels and the
+ * {@link MarketDataPublisher#TYPE_SNAPSHOT_END} record whose
+ * {@link Record#getSnapshotBegin()} is the sequence of that beginning, with no
+ * record lost in between. From then on, the changes to the levels of that
+ * book apply to the snapshot.
+ */
+public class MarketDataSubscriber {
+
+	/**
+	 * Receives the records read by {@link MarketDataSubscriber#poll}.
+	 */
+	public interface Handler {
+
+		/**
+		 * Invoked for each record. The record is valid only until this method
+		 * returns, and a handler that must be sure that it was not
+		 * overwritten while being read may check {@link Record#isValid()}
+		 * after reading it.
+		 */
+		public void onRecord(Record record);
+
+	}
+
+	/**
+	 * A view of the record in one slot of the ring. The meaning of the
+	 * fields depends on the type of the record; each accessor reads the
+	 * field that it names for the types that have it, and is meaningless for
+	 * the others.
+	 */
+	public final class Record {
+
+		long sequence;
+		int offset;
+
+		Record() {
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Returns one of the <code>TYPE_</code> constants of
+		 * {@link MarketDataPublisher}.
+		 */
+		public int getType() {
+			return buffer.getInt(offset + MarketDataPublisher.SLOT_TYPE);
+		}
+
+		public int getBase() {
+			return buffer.getInt(offset + MarketDataPublisher.SLOT_MARKET) >>> 16;
+		}
+
+		public int getCounter() {
+			return buffer.getInt(offset + MarketDataPublisher.SLOT_MARKET) & 0xFFFF;
+		}
+
+		/**
+		 * Returns the field at the specified index, from 0 to 5.
+		 */
+		public long getField(int index) {
+			if (index < 0 || index >= 6) {
+				throw new IndexOutOfBoundsException("field " + index);
+			}
+			return field(index);
+		}
+
+		/**
+		 * Returns the last price of a ticker.
+		 */
+		public long getLast() {
+			return field(0);
+		}
+
+		/**
+		 * Returns the best bid of a ticker.
+		 */
+		public long getBid() {
+			return field(1);
+		}
+
+		/**
+		 * Returns the best ask of a ticker.
+		 */
+		public long getAsk() {
+			return field(2);
+		}
+
+		/**
+		 * Returns the low price of a ticker.
+		 */
+		public long getLow() {
+			return field(3);
+		}
+
+		/**
+		 * Returns the high price of a ticker.
+		 */
+		public long getHigh() {
+			return field(4);
+		}
+
+		/**
+		 * Returns the volume of a ticker.
+		 */
+		public long getVolume() {
+			return field(5);
+		}
+
+		/**
+		 * Returns the time of a trade, in microseconds since the epoch.
+		 */
+		public long getTime() {
+			return field(0);
+		}
+
+		/**
+		 * Returns the side of a depth change or of a level of a snapshot,
+		 * which is one of the <code>SIDE_</code> constants of
+		 * {@link OrderBook}.
+		 */
+		public int getSide() {
+			return (int) field(0);
+		}
+
+		/**
+		 * Returns the price of a trade, of a depth change or of a level of a
+		 * snapshot.
+		 */
+		public long getPrice() {
+			return field(1);
+		}
+
+		/**
+		 * Returns the quantity of a trade or of a level of a snapshot, or the
+		 * new quantity of the level of a depth change.
+		 */
+		public long getQuantity() {
+			return field(2);
+		}
+
+		/**
+		 * Returns the total of a trade.
+		 */
+		public long getTotal() {
+			return field(3);
+		}
+
+		/**
+		 * Returns the ID of the bid of a trade, or 0 if it is not known.
+		 */
+		public long getBidID() {
+			return field(4);
+		}
+
+		/**
+		 * Returns the ID of the ask of a trade, or 0 if it is not known.
+		 */
+		public long getAskID() {
+			return field(5);
+		}
+
+		/**
+		 * Returns the depth of the beginning of a snapshot.
+		 */
+		public int getDepth() {
+			return (int) field(0);
+		}
+
+		/**
+		 * Returns the sequence of the beginning of the snapshot that an end
+		 * of a snapshot ends.
+		 */
+		public long getSnapshotBegin() {
+			return field(0);
+		}
+
+		/**
+		 * Returns whether the slot still holds this record, so that all that
+		 * has been read from it so far is consistent.
+		 */
+		public boolean isValid() {
+			fence();
+			return buffer.getLong(offset + MarketDataPublisher.SLOT_SEQUENCE) == sequence + 1;
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[sequence=" + sequence + ", type=" + getType() + ", base=0x" + Integer.toHexString(getBase()) + ", counter=0x" + Integer.toHexString(getCounter()) + ", fields=" + field(0) + ',' + field(1) + ',' + field(2) + ',' + field(3) + ',' + field(4) + ',' + field(5) + ']';
+		}
+
+		private long field(int index) {
+			return buffer.getLong(offset + MarketDataPublisher.SLOT_FIELDS + (index << 3));
+		}
+
+	}
+
+	final MappedByteBuffer buffer;
+	private final int slotCount;
+	private final Record record = new Record();
+
+	private long next, lostCount;
+
+	private volatile int fence;
+
+	/**
+	 * Opens the ring file that a publisher writes and positions this
+	 * subscriber at the next record to be published.
+	 */
+	public MarketDataSubscriber(File file) throws IOException {
+		buffer = Journal.map(file, FileChannel.MapMode.READ_ONLY, 0);
+		buffer.order(ByteOrder.nativeOrder());
+		if (buffer.capacity() < MarketDataPublisher.HEADER_SIZE || buffer.getInt(MarketDataPublisher.HEADER_MAGIC) != MarketDataPublisher.MAGIC) {
+			throw new IOException("not a market data file: " + file);
+		}
+		if (buffer.getInt(MarketDataPublisher.HEADER_VERSION) != MarketDataPublisher.VERSION || buffer.getInt(MarketDataPublisher.HEADER_SLOT_SIZE) != MarketDataPublisher.SLOT_SIZE) {
+			throw new IOException("unsupported market data file: " + file);
+		}
+		slotCount = buffer.getInt(MarketDataPublisher.HEADER_SLOT_COUNT);
+		if (buffer.capacity() < MarketDataPublisher.HEADER_SIZE + (long) slotCount * MarketDataPublisher.SLOT_SIZE) {
+			throw new IOException("truncated market data file: " + file);
+		}
+		next = getCursor();
+	}
+
+	public final int getSlotCount() {
+		return slotCount;
+	}
+
+	/**
+	 * Returns the number of records that the publisher has published.
+	 */
+	public final long getCursor() {
+		return buffer.getLong(MarketDataPublisher.HEADER_CURSOR);
+	}
+
+	/**
+	 * Returns the sequence of the next record that this subscriber will read.
+	 */
+	public final long getSequence() {
+		return next;
+	}
+
+	/**
+	 * Positions this subscriber at the record with the specified sequence,
+	 * or at the oldest record still held if that record has been overwritten.
+	 */
+	public final void seek(long sequence) {
+		next = Math.max(sequence, oldest(getCursor()));
+	}
+
+	/**
+	 * Positions this subscriber at the oldest record still held.
+	 */
+	public final void seekOldest() {
+		next = oldest(getCursor());
+	}
+
+	/**
+	 * Returns the number of records that this subscriber has lost by falling
+	 * behind the publisher.
+	 */
+	public final long getLostCount() {
+		return lostCount;
+	}
+
+	/**
+	 * Returns whether the publisher has been closed.
+	 */
+	public final boolean isClosed() {
+		return buffer.getInt(MarketDataPublisher.HEADER_CLOSED) != 0;
+	}
+
+	/**
+	 * Presents up to the specified number of records, in order, to the given
+	 * handler and returns the number presented, which is 0 if no record is
+	 * available yet.
+	 */
+	public final int poll(Handler handler, int limit) {
+		MappedByteBuffer buffer = this.buffer;
+		Record record = this.record;
+		int n = 0;
+		while (n < limit) {
+			int offset = MarketDataPublisher.HEADER_SIZE + (int) (next % slotCount) * MarketDataPublisher.SLOT_SIZE;
+			if (buffer.getLong(offset + MarketDataPublisher.SLOT_SEQUENCE) != next + 1) {
+				long oldest = oldest(getCursor());
+				if (next >= oldest) {
+					break; // not yet published
+				}
+				lostCount += oldest - next;
+				next = oldest;
+				continue;
+			}
+			fence();
+			record.sequence = next;
+			record.offset = offset;
+			handler.onRecord(record);
+			if (!record.isValid()) {
+				++lostCount;
+			}
+			++next;
+			++n;
+		}
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[slotCount=" + slotCount + ", sequence=" + next + ", lost=" + lostCount + ']';
+	}
+
+	/**
+	 * Returns the oldest sequence whose slot the publisher is not about to
+	 * overwrite, given its cursor.
+	 */
+	private long oldest(long cursor) {
+		return Math.max(cursor - slotCount + 1, 0);
+	}
+
+	/**
+	 * Orders the reads from the file before this call before those after it,
+	 * as in {@link MarketDataPublisher}.
+	 */
+	int fence() {
+		fence = 0;
+		return fence;
+	}
+
+}
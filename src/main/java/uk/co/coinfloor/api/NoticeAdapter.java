@@ -0,0 +1,29 @@
+package uk.co.coinfloor.api;
+
+/**
+ * A {@link NoticeListener} that ignores all notices, for subclasses that are
+ * interested in only some of them.
+ */
+public abstract class NoticeAdapter implements NoticeListener {
+
+	@Override
+	public void balanceChanged(int asset, long balance) {
+	}
+
+	@Override
+	public void orderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time, boolean own) {
+	}
+
+	@Override
+	public void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+	}
+
+	@Override
+	public void orderClosed(long id, long tonce, int base, int counter, long quantity, long price, boolean own) {
+	}
+
+	@Override
+	public void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+	}
+
+}
@@ -0,0 +1,33 @@
+package uk.co.coinfloor.api;
+
+/**
+ * Receives the notices that a {@link Coinfloor} client receives from the
+ * server. Any number of listeners may be registered with a client by
+ * {@link Coinfloor#addNoticeListener(NoticeListener, int, int, int)}, each for
+ * a subset of the notice types and optionally for a single market. Listeners
+ * are invoked on the client's pump thread, after the client's own notice
+ * hooks, and so must complete their work quickly.
+ * <p>
+ * The methods and their parameters correspond exactly to the notice hooks of
+ * {@link Coinfloor}.
+ */
+public interface NoticeListener {
+
+	public static final int BALANCE_CHANGED = 1 << 0;
+	public static final int ORDER_OPENED = 1 << 1;
+	public static final int ORDERS_MATCHED = 1 << 2;
+	public static final int ORDER_CLOSED = 1 << 3;
+	public static final int TICKER_CHANGED = 1 << 4;
+	public static final int ALL = BALANCE_CHANGED | ORDER_OPENED | ORDERS_MATCHED | ORDER_CLOSED | TICKER_CHANGED;
+
+	public void balanceChanged(int asset, long balance);
+
+	public void orderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time, boolean own);
+
+	public void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee);
+
+	public void orderClosed(long id, long tonce, int base, int counter, long quantity, long price, boolean own);
+
+	public void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume);
+
+}
@@ -0,0 +1,327 @@
+package uk.co.coinfloor.api;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.coinfloor.api.NoticeRingBuffer.Notice;
+
+/**
+ * Publishes the notices that a client receives to any number of subscribers,
+ * each of which signals its demand and so applies backpressure to the
+ * stream. The publisher is registered with a client as a
+ * {@link NoticeListener}. Each subscription buffers up to a fixed number of
+ * notices for which there is not yet demand, and its overflow policy decides
+ * what happens when the buffer is full.
+ * <p>
+ * The {@link Subscriber} and {@link Subscription} interfaces follow the
+ * Reactive Streams specification, so that adapting a subscriber to another
+ * implementation of it is a matter of forwarding calls. Notices are
+ * delivered on the pump thread or on the thread that requests more of them,
+ * but never concurrently to the same subscriber. Notices are shared between
+ * subscribers and must not be modified.
+ */
+public class NoticePublisher extends NoticeAdapter {
+
+	public interface Subscriber {
+
+		public void onSubscribe(Subscription subscription);
+
+		public void onNext(Notice notice);
+
+		public void onError(Throwable throwable);
+
+		public void onComplete();
+
+	}
+
+	public interface Subscription {
+
+		/**
+		 * Adds the specified number of notices to the demand of the
+		 * subscriber, which must be positive.
+		 */
+		public void request(long n);
+
+		public void cancel();
+
+	}
+
+	private class SubscriptionImpl implements Subscription {
+
+		final Subscriber subscriber;
+		final ArrayDeque<Notice> buffer = new ArrayDeque<Notice>();
+
+		long demand;
+		boolean emitting, completed, cancelled;
+		Throwable error;
+
+		SubscriptionImpl(Subscriber subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (this) {
+				if (cancelled) {
+					return;
+				}
+				if (n <= 0) {
+					buffer.clear();
+					error = new IllegalArgumentException("non-positive request: " + n);
+				}
+				else if ((demand += n) < 0) {
+					demand = Long.MAX_VALUE;
+				}
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				cancelled = true;
+				buffer.clear();
+			}
+			subscriptions.remove(this);
+		}
+
+		void offer(Notice notice) {
+			synchronized (this) {
+				if (cancelled || error != null || completed) {
+					return;
+				}
+				if (overflowPolicy == OVERFLOW_CONFLATE && notice.type == NoticeListener.TICKER_CHANGED) {
+					for (Iterator<Notice> it = buffer.iterator(); it.hasNext();) {
+						Notice buffered = it.next();
+						if (buffered.type == NoticeListener.TICKER_CHANGED && buffered.base == notice.base && buffered.counter == notice.counter) {
+							it.remove();
+							conflatedCount.incrementAndGet();
+							break;
+						}
+					}
+				}
+				if (buffer.size() >= bufferSize) {
+					if (overflowPolicy == OVERFLOW_DROP_OLDEST) {
+						buffer.poll();
+						droppedCount.incrementAndGet();
+					}
+					else {
+						buffer.clear();
+						error = new IllegalStateException("subscriber fell more than " + bufferSize + " notices behind");
+					}
+				}
+				if (error == null) {
+					buffer.add(notice);
+				}
+			}
+			drain();
+		}
+
+		void terminate(Throwable throwable) {
+			synchronized (this) {
+				if (error == null) {
+					if (throwable == null) {
+						completed = true;
+					}
+					else {
+						buffer.clear();
+						error = throwable;
+					}
+				}
+			}
+			drain();
+		}
+
+		/**
+		 * Delivers buffered notices for as long as there is demand. Only one
+		 * thread emits at a time; a thread that finds another emitting leaves
+		 * its work to it.
+		 */
+		void drain() {
+			synchronized (this) {
+				if (emitting) {
+					return;
+				}
+				emitting = true;
+			}
+			for (;;) {
+				Notice notice = null;
+				Throwable error = null;
+				boolean terminated = false;
+				synchronized (this) {
+					if (cancelled) {
+						emitting = false;
+						return;
+					}
+					if (this.error != null) {
+						error = this.error;
+						terminated = true;
+					}
+					else if (demand > 0 && !buffer.isEmpty()) {
+						notice = buffer.poll();
+						if (demand != Long.MAX_VALUE) {
+							--demand;
+						}
+					}
+					else if (completed && buffer.isEmpty()) {
+						terminated = true;
+					}
+					else {
+						emitting = false;
+						return;
+					}
+					if (terminated) {
+						cancelled = true;
+						emitting = false;
+					}
+				}
+				if (terminated) {
+					subscriptions.remove(this);
+					if (error == null) {
+						subscriber.onComplete();
+					}
+					else {
+						subscriber.onError(error);
+					}
+					return;
+				}
+				subscriber.onNext(notice);
+			}
+		}
+
+	}
+
+	/**
+	 * Drop the oldest buffered notice to make room for a new one.
+	 */
+	public static final int OVERFLOW_DROP_OLDEST = 0;
+	/**
+	 * Replace a buffered ticker of the same market with a new one, and fail
+	 * the subscription if the buffer is nevertheless full. Other notices are
+	 * never conflated, as losing them would corrupt any state that the
+	 * subscriber derives from them.
+	 */
+	public static final int OVERFLOW_CONFLATE = 1;
+	/**
+	 * Fail the subscription, signalling an {@link IllegalStateException} to
+	 * the subscriber.
+	 */
+	public static final int OVERFLOW_FAIL = 2;
+
+	final CopyOnWriteArrayList<SubscriptionImpl> subscriptions = new CopyOnWriteArrayList<SubscriptionImpl>();
+	final int bufferSize, overflowPolicy;
+
+	final AtomicLong droppedCount = new AtomicLong(), conflatedCount = new AtomicLong();
+
+	/**
+	 * Constructs a publisher whose subscriptions each buffer up to the
+	 * specified number of notices and apply one of the <code>OVERFLOW_</code>
+	 * policies.
+	 */
+	public NoticePublisher(int bufferSize, int overflowPolicy) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+		if (overflowPolicy < OVERFLOW_DROP_OLDEST || overflowPolicy > OVERFLOW_FAIL) {
+			throw new IllegalArgumentException("unknown overflow policy");
+		}
+		this.bufferSize = bufferSize;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Subscribes the given subscriber to notices published after this call.
+	 * {@link Subscriber#onSubscribe(Subscription)} is invoked before this
+	 * method returns.
+	 */
+	public final void subscribe(Subscriber subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("subscriber");
+		}
+		SubscriptionImpl subscription = new SubscriptionImpl(subscriber);
+		subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * Signals completion to every subscriber once it has received the
+	 * notices already buffered for it, for example when the client has
+	 * disconnected.
+	 */
+	public final void complete() {
+		for (SubscriptionImpl subscription : subscriptions) {
+			subscription.terminate(null);
+		}
+	}
+
+	/**
+	 * Signals the given error to every subscriber immediately.
+	 */
+	public final void fail(Throwable throwable) {
+		if (throwable == null) {
+			throw new NullPointerException("throwable");
+		}
+		for (SubscriptionImpl subscription : subscriptions) {
+			subscription.terminate(throwable);
+		}
+	}
+
+	/**
+	 * Returns the number of notices that were dropped from full buffers.
+	 */
+	public final long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Returns the number of buffered tickers that were replaced by newer
+	 * ones.
+	 */
+	public final long getConflatedCount() {
+		return conflatedCount.get();
+	}
+
+	@Override
+	public void balanceChanged(int asset, long balance) {
+		Notice notice = new Notice();
+		notice.setBalanceChanged(asset, balance);
+		publish(notice);
+	}
+
+	@Override
+	public void orderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time, boolean own) {
+		Notice notice = new Notice();
+		notice.setOrderOpened(id, tonce, base, counter, quantity, price, time, own);
+		publish(notice);
+	}
+
+	@Override
+	public void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+		Notice notice = new Notice();
+		notice.setOrdersMatched(bid, bidTonce, ask, askTonce, base, counter, quantity, price, total, bidRem, askRem, time, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee);
+		publish(notice);
+	}
+
+	@Override
+	public void orderClosed(long id, long tonce, int base, int counter, long quantity, long price, boolean own) {
+		Notice notice = new Notice();
+		notice.setOrderClosed(id, tonce, base, counter, quantity, price, own);
+		publish(notice);
+	}
+
+	@Override
+	public void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+		Notice notice = new Notice();
+		notice.setTickerChanged(base, counter, last, bid, ask, low, high, volume);
+		publish(notice);
+	}
+
+	private void publish(Notice notice) {
+		for (SubscriptionImpl subscription : subscriptions) {
+			subscription.offer(notice);
+		}
+	}
+
+}
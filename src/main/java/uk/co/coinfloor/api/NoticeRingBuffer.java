@@ -0,0 +1,354 @@
+package uk.co.coinfloor.api;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands notices off from a client's pump thread to one or more consumer
+ * threads through a ring of pre-allocated, reusable {@link Notice} slots, so
+ * that consumers may do lengthy work without stalling the pump and without
+ * any allocation or locking per notice.
+ * <p>
+ * The ring buffer is registered with a single client as a
+ * {@link NoticeListener}; the client's pump thread is its only producer. Each
+ * consumer sees every notice, in order, and the producer waits rather than
+ * overwrite a slot that some consumer has not yet processed. Consumers are
+ * added by {@link #addConsumer(Handler)} and run on threads supplied by the
+ * caller.
+ */
+public class NoticeRingBuffer implements NoticeListener {
+
+	/**
+	 * A notice held in mutable form. The fields that are meaningful depend on
+	 * the type, and are named after the parameters of the corresponding
+	 * {@link NoticeListener} method; in particular, <code>bid</code> and
+	 * <code>ask</code> are order IDs in an
+	 * {@link NoticeListener#ORDERS_MATCHED} notice but prices in a
+	 * {@link NoticeListener#TICKER_CHANGED} notice. A notice that occupies a
+	 * slot of a ring buffer is valid only until its handler returns.
+	 */
+	public static final class Notice {
+
+		public int type;
+		public int asset, base, counter;
+		public long balance;
+		public long id, tonce;
+		public long bid, bidTonce, ask, askTonce;
+		public long quantity, price, total, time;
+		public long bidRem, askRem, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee;
+		public long last, low, high, volume;
+		public boolean own;
+
+		Notice() {
+		}
+
+		void setBalanceChanged(int asset, long balance) {
+			type = BALANCE_CHANGED;
+			this.asset = asset;
+			this.balance = balance;
+		}
+
+		void setOrderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time, boolean own) {
+			type = ORDER_OPENED;
+			this.id = id;
+			this.tonce = tonce;
+			this.base = base;
+			this.counter = counter;
+			this.quantity = quantity;
+			this.price = price;
+			this.time = time;
+			this.own = own;
+		}
+
+		void setOrdersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+			type = ORDERS_MATCHED;
+			this.bid = bid;
+			this.bidTonce = bidTonce;
+			this.ask = ask;
+			this.askTonce = askTonce;
+			this.base = base;
+			this.counter = counter;
+			this.quantity = quantity;
+			this.price = price;
+			this.total = total;
+			this.bidRem = bidRem;
+			this.askRem = askRem;
+			this.time = time;
+			this.bidBaseFee = bidBaseFee;
+			this.bidCounterFee = bidCounterFee;
+			this.askBaseFee = askBaseFee;
+			this.askCounterFee = askCounterFee;
+		}
+
+		void setOrderClosed(long id, long tonce, int base, int counter, long quantity, long price, boolean own) {
+			type = ORDER_CLOSED;
+			this.id = id;
+			this.tonce = tonce;
+			this.base = base;
+			this.counter = counter;
+			this.quantity = quantity;
+			this.price = price;
+			this.own = own;
+		}
+
+		void setTickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+			type = TICKER_CHANGED;
+			this.base = base;
+			this.counter = counter;
+			this.last = last;
+			this.bid = bid;
+			this.ask = ask;
+			this.low = low;
+			this.high = high;
+			this.volume = volume;
+		}
+
+		/**
+		 * Invokes the method of the given listener that corresponds to this
+		 * notice.
+		 */
+		public void dispatch(NoticeListener listener) {
+			switch (type) {
+				case BALANCE_CHANGED:
+					listener.balanceChanged(asset, balance);
+					break;
+				case ORDER_OPENED:
+					listener.orderOpened(id, tonce, base, counter, quantity, price, time, own);
+					break;
+				case ORDERS_MATCHED:
+					listener.ordersMatched(bid, bidTonce, ask, askTonce, base, counter, quantity, price, total, bidRem, askRem, time, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee);
+					break;
+				case ORDER_CLOSED:
+					listener.orderClosed(id, tonce, base, counter, quantity, price, own);
+					break;
+				case TICKER_CHANGED:
+					listener.tickerChanged(base, counter, last, bid, ask, low, high, volume);
+					break;
+			}
+		}
+
+	}
+
+	public interface Handler {
+
+		/**
+		 * Processes a notice. The end-of-batch flag is set on the last notice
+		 * that was available when the consumer woke, so that a handler may
+		 * defer expensive work, such as flushing, until then.
+		 */
+		public void onNotice(Notice notice, long sequence, boolean endOfBatch);
+
+	}
+
+	/**
+	 * Reads notices from the ring buffer and passes them to a handler. A
+	 * consumer processes notices until it is halted or its handler throws,
+	 * and from then on no longer holds back the producer.
+	 */
+	public final class Consumer implements Runnable {
+
+		final Handler handler;
+		final AtomicLong sequence;
+
+		volatile boolean halted;
+
+		Consumer(Handler handler, long sequence) {
+			this.handler = handler;
+			this.sequence = new AtomicLong(sequence);
+		}
+
+		@Override
+		public void run() {
+			try {
+				long next = sequence.get() + 1;
+				for (int idleCount = 0; !halted;) {
+					long available = cursor.get();
+					if (available < next) {
+						idle(++idleCount);
+						continue;
+					}
+					idleCount = 0;
+					for (; next <= available; ++next) {
+						handler.onNotice(slots[(int) next & mask], next, next == available);
+					}
+					sequence.lazySet(available);
+				}
+			}
+			finally {
+				removeConsumer(this);
+			}
+		}
+
+		/**
+		 * Returns the sequence number of the last notice processed.
+		 */
+		public long getSequence() {
+			return sequence.get();
+		}
+
+		/**
+		 * Stops this consumer after the current batch.
+		 */
+		public void halt() {
+			halted = true;
+		}
+
+	}
+
+	/**
+	 * Spin in a tight loop while waiting. This gives the lowest latency but
+	 * occupies a core.
+	 */
+	public static final int WAIT_BUSY_SPIN = 0;
+	/**
+	 * Yield the processor while waiting.
+	 */
+	public static final int WAIT_YIELD = 1;
+	/**
+	 * Spin briefly and then park for short intervals while waiting.
+	 */
+	public static final int WAIT_PARK = 2;
+
+	static final int SPIN_TRIES = 100;
+	static final long PARK_NANOS = 50 * 1000; // 50 microseconds
+
+	private static final Consumer[] noConsumers = new Consumer[0];
+
+	final Notice[] slots;
+	final int mask;
+	final AtomicLong cursor = new AtomicLong(-1);
+
+	private final int waitStrategy;
+	private volatile Consumer[] consumers = noConsumers;
+	private long nextSequence, gatingSequence = -1;
+
+	/**
+	 * Constructs a ring buffer with the specified number of slots, which must
+	 * be a power of two, and one of the <code>WAIT_</code> strategies, which
+	 * applies both to idle consumers and to the producer when the ring is
+	 * full.
+	 */
+	public NoticeRingBuffer(int capacity, int waitStrategy) {
+		if (capacity <= 0 || (capacity & capacity - 1) != 0) {
+			throw new IllegalArgumentException("capacity must be a power of two");
+		}
+		if (waitStrategy < WAIT_BUSY_SPIN || waitStrategy > WAIT_PARK) {
+			throw new IllegalArgumentException("unknown wait strategy");
+		}
+		slots = new Notice[capacity];
+		for (int i = 0; i < capacity; ++i) {
+			slots[i] = new Notice();
+		}
+		mask = capacity - 1;
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Adds a consumer that will receive every notice published after this
+	 * call. The returned consumer must be run on a thread of the caller's
+	 * choosing.
+	 */
+	public final synchronized Consumer addConsumer(Handler handler) {
+		if (handler == null) {
+			throw new NullPointerException("handler");
+		}
+		Consumer consumer = new Consumer(handler, cursor.get());
+		Consumer[] consumers = Arrays.copyOf(this.consumers, this.consumers.length + 1);
+		consumers[consumers.length - 1] = consumer;
+		this.consumers = consumers;
+		return consumer;
+	}
+
+	/**
+	 * Returns the sequence number of the last notice published.
+	 */
+	public final long getCursor() {
+		return cursor.get();
+	}
+
+	@Override
+	public void balanceChanged(int asset, long balance) {
+		long sequence = next();
+		slots[(int) sequence & mask].setBalanceChanged(asset, balance);
+		cursor.lazySet(sequence);
+	}
+
+	@Override
+	public void orderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time, boolean own) {
+		long sequence = next();
+		slots[(int) sequence & mask].setOrderOpened(id, tonce, base, counter, quantity, price, time, own);
+		cursor.lazySet(sequence);
+	}
+
+	@Override
+	public void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+		long sequence = next();
+		slots[(int) sequence & mask].setOrdersMatched(bid, bidTonce, ask, askTonce, base, counter, quantity, price, total, bidRem, askRem, time, bidBaseFee, bidCounterFee, askBaseFee, askCounterFee);
+		cursor.lazySet(sequence);
+	}
+
+	@Override
+	public void orderClosed(long id, long tonce, int base, int counter, long quantity, long price, boolean own) {
+		long sequence = next();
+		slots[(int) sequence & mask].setOrderClosed(id, tonce, base, counter, quantity, price, own);
+		cursor.lazySet(sequence);
+	}
+
+	@Override
+	public void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+		long sequence = next();
+		slots[(int) sequence & mask].setTickerChanged(base, counter, last, bid, ask, low, high, volume);
+		cursor.lazySet(sequence);
+	}
+
+	/**
+	 * Claims the next sequence number, waiting until every consumer has
+	 * processed the notice that previously occupied its slot.
+	 */
+	private long next() {
+		long sequence = nextSequence++, wrapPoint = sequence - slots.length;
+		if (wrapPoint > gatingSequence) {
+			long minimum;
+			for (int idleCount = 0; wrapPoint > (minimum = minimumSequence(sequence - 1));) {
+				idle(++idleCount);
+			}
+			gatingSequence = minimum;
+		}
+		return sequence;
+	}
+
+	private long minimumSequence(long minimum) {
+		for (Consumer consumer : consumers) {
+			minimum = Math.min(minimum, consumer.sequence.get());
+		}
+		return minimum;
+	}
+
+	final synchronized void removeConsumer(Consumer consumer) {
+		Consumer[] consumers = this.consumers;
+		for (int i = 0; i < consumers.length; ++i) {
+			if (consumers[i] == consumer) {
+				Consumer[] newConsumers = consumers.length == 1 ? noConsumers : new Consumer[consumers.length - 1];
+				System.arraycopy(consumers, 0, newConsumers, 0, i);
+				System.arraycopy(consumers, i + 1, newConsumers, i, consumers.length - i - 1);
+				this.consumers = newConsumers;
+				return;
+			}
+		}
+	}
+
+	final void idle(int idleCount) {
+		switch (waitStrategy) {
+			case WAIT_YIELD:
+				Thread.yield();
+				break;
+			case WAIT_PARK:
+				if (idleCount > SPIN_TRIES) {
+					LockSupport.parkNanos(PARK_NANOS);
+				}
+				break;
+		}
+	}
+
+}
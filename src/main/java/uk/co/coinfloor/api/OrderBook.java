@@ -0,0 +1,912 @@
+package uk.co.coinfloor.api;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local replica of the order book of one market, built from a snapshot of
+ * its orders and kept up to date by the order notices that follow. The book
+ * is usually maintained by {@link Coinfloor#watchOrderBook(OrderBook, boolean)},
+ * which registers it as a {@link NoticeListener} and loads the snapshot into
+ * it as an {@link Coinfloor.OrderVisitor}.
+ * <p>
+ * Orders are held in an {@link OrderTable}, and each side of the book is
+ * aggregated into price levels that are kept sorted in arrays of primitives,
+ * so that market orders can be estimated locally by walking the levels
+ * rather than by asking the server. The estimates follow the server's
+ * arithmetic, in which the total of each order that a market order fills is
+ * its quantity times its price divided by the total divisor of the market,
+ * rounded down. A level that is filled only in part is rounded as a whole,
+ * so an estimate that ends within a level of several orders may differ from
+ * the server's by a few units of the counter asset; periodic
+ * {@linkplain #startCrossChecks cross-checks} against the server measure any
+ * such drift.
+ * <p>
+ * A book checks each notice against its own state and counts any
+ * inconsistency that reveals a missed or misordered notice: the closing of
+ * an order that it does not hold, a remaining quantity that disagrees with
+ * the quantity it holds for an order, or a ticker whose best bid or ask
+ * disagrees with its own. A book that is maintained by a client then
+ * resubscribes to the orders feed of its market on a background thread and
+ * loads the new snapshot into a fresh state, which replaces its current
+ * state at once when the snapshot has been loaded.
+ * <p>
+ * Consumers that need only the top levels of the book may register a
+ * {@link DepthListener}, which is told of each change to the aggregate
+ * quantity of a level within its depth as the book is updated, rather than
+ * of every order notice.
+ * <p>
+ * All methods are synchronized, so a book may be read by any thread while it
+ * is being updated.
+ */
+public class OrderBook extends NoticeAdapter implements Coinfloor.OrderVisitor {
+
+	/**
+	 * Receives changes to the top levels of a book. A level that leaves the
+	 * top levels, whether because it is emptied or because a better level
+	 * pushes it out, is reported with a quantity of 0. A level whose orders
+	 * have all been filled but not yet closed is treated as absent, so it
+	 * leaves the top levels when it is emptied, not when it is closed.
+	 */
+	public interface DepthListener {
+
+		/**
+		 * Invoked when the aggregate quantity of the level at the specified
+		 * price on the specified side (one of the <code>SIDE_</code>
+		 * constants) has changed, while holding the lock on the book.
+		 */
+		public void depthChanged(OrderBook book, int side, long price, long quantity);
+
+	}
+
+	private static class DepthSubscription {
+
+		final DepthListener listener;
+		final int depth;
+
+		DepthSubscription(DepthListener listener, int depth) {
+			this.listener = listener;
+			this.depth = depth;
+		}
+
+	}
+
+	/**
+	 * The price levels of one side of a book, in parallel arrays sorted best
+	 * first. The keys are prices for asks and negated prices for bids, so
+	 * that both sides ascend.
+	 */
+	static final class Levels {
+
+		long[] keys = new long[16], quantities = new long[16], totals = new long[16];
+		int[] counts = new int[16];
+		int size;
+
+		/**
+		 * Returns the index of the level with the specified key, or
+		 * <code>-(insertion point) - 1</code> if there is no such level.
+		 */
+		int find(long key) {
+			return Arrays.binarySearch(keys, 0, size, key);
+		}
+
+		/**
+		 * Adds an order to a level and returns the index of the level, or
+		 * <code>-(index) - 1</code> if the level is new.
+		 */
+		int add(long key, long quantity, long total) {
+			int i = find(key), result = i;
+			if (i < 0) {
+				i = -i - 1;
+				if (size == keys.length) {
+					int capacity = size << 1;
+					keys = Arrays.copyOf(keys, capacity);
+					quantities = Arrays.copyOf(quantities, capacity);
+					totals = Arrays.copyOf(totals, capacity);
+					counts = Arrays.copyOf(counts, capacity);
+				}
+				int n = size - i;
+				System.arraycopy(keys, i, keys, i + 1, n);
+				System.arraycopy(quantities, i, quantities, i + 1, n);
+				System.arraycopy(totals, i, totals, i + 1, n);
+				System.arraycopy(counts, i, counts, i + 1, n);
+				keys[i] = key;
+				quantities[i] = totals[i] = counts[i] = 0;
+				++size;
+			}
+			quantities[i] += quantity;
+			totals[i] += total;
+			++counts[i];
+			return result;
+		}
+
+		int update(long key, long quantityDelta, long totalDelta) {
+			int i = find(key);
+			quantities[i] += quantityDelta;
+			totals[i] += totalDelta;
+			return i;
+		}
+
+		/**
+		 * Removes an order from a level and returns the index of the level,
+		 * or <code>-(index) - 1</code> if the level is removed too.
+		 */
+		int remove(long key, long quantity, long total) {
+			int i = find(key);
+			if (--counts[i] == 0) {
+				int n = size - i - 1;
+				System.arraycopy(keys, i + 1, keys, i, n);
+				System.arraycopy(quantities, i + 1, quantities, i, n);
+				System.arraycopy(totals, i + 1, totals, i, n);
+				System.arraycopy(counts, i + 1, counts, i, n);
+				--size;
+				return -i - 1;
+			}
+			quantities[i] -= quantity;
+			totals[i] -= total;
+			return i;
+		}
+
+		/**
+		 * Returns the index of the first level at or after the specified
+		 * index whose quantity is not 0, or the number of levels if there is
+		 * none.
+		 */
+		int nextVisible(int i) {
+			while (i < size && quantities[i] == 0) {
+				++i;
+			}
+			return i;
+		}
+
+		/**
+		 * Returns the number of levels before the specified index whose
+		 * quantity is not 0, counting no further than the specified limit.
+		 */
+		int visibleRank(int index, int limit) {
+			int rank = 0;
+			for (int i = 0; i < index && rank < limit; ++i) {
+				if (quantities[i] != 0) {
+					++rank;
+				}
+			}
+			return rank;
+		}
+
+		/**
+		 * Returns the index of the level of the specified rank among those
+		 * whose quantity is not 0, or -1 if there are not so many.
+		 */
+		int visibleIndex(int rank) {
+			for (int i = nextVisible(0); i < size; i = nextVisible(i + 1)) {
+				if (rank-- == 0) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+	}
+
+	public static final long DEFAULT_TOTAL_DIVISOR = 10000;
+
+	public static final int SIDE_BID = 0;
+	public static final int SIDE_ASK = 1;
+
+	private static final DepthSubscription[] noDepthSubscriptions = new DepthSubscription[0];
+
+	/**
+	 * An order notice referred to an order that the book does not hold.
+	 */
+	public static final int INCONSISTENCY_UNKNOWN_ORDER = 1;
+	/**
+	 * A notice reported a remaining quantity that disagrees with the quantity
+	 * that the book holds for the order.
+	 */
+	public static final int INCONSISTENCY_REMAINING_MISMATCH = 2;
+	/**
+	 * A ticker reported a best bid or ask that disagrees with the book's.
+	 */
+	public static final int INCONSISTENCY_STALE_TICKER = 3;
+
+	final int base, counter;
+	final long totalDivisor;
+	// the state, which a resync replaces as a whole
+	OrderTable orders = new OrderTable(); // remaining quantities and level keys in place of quantities and prices
+	Levels bids = new Levels(), asks = new Levels();
+
+	private Timer crossCheckTimer;
+	private long crossCheckCount, driftCount, maxDrift;
+
+	private DepthSubscription[] depthSubscriptions = noDepthSubscriptions;
+
+	private Coinfloor client; // the client that maintains this book
+	private boolean autoResync = true, resyncing;
+	private long inconsistencyCount, resyncCount, resyncFailureCount, lastResyncTime;
+
+	/**
+	 * Constructs an empty book of the specified market, whose totals are the
+	 * product of quantity and price divided by
+	 * {@link #DEFAULT_TOTAL_DIVISOR}.
+	 */
+	public OrderBook(int base, int counter) {
+		this(base, counter, DEFAULT_TOTAL_DIVISOR);
+	}
+
+	/**
+	 * Constructs an empty book of the specified market, whose totals are the
+	 * product of quantity and price divided by the specified divisor.
+	 */
+	public OrderBook(int base, int counter, long totalDivisor) {
+		if (totalDivisor <= 0) {
+			throw new IllegalArgumentException("totalDivisor must be positive");
+		}
+		this.base = base;
+		this.counter = counter;
+		this.totalDivisor = totalDivisor;
+	}
+
+	public final int getBase() {
+		return base;
+	}
+
+	public final int getCounter() {
+		return counter;
+	}
+
+	public final synchronized int getOrderCount() {
+		return orders.size();
+	}
+
+	public final synchronized int getBidLevelCount() {
+		return bids.size;
+	}
+
+	public final synchronized int getAskLevelCount() {
+		return asks.size;
+	}
+
+	/**
+	 * Returns the price of the specified bid level, counting from 0 at the
+	 * best bid.
+	 */
+	public final synchronized long getBidPrice(int level) {
+		checkLevel(bids, level);
+		return -bids.keys[level];
+	}
+
+	public final synchronized long getBidQuantity(int level) {
+		checkLevel(bids, level);
+		return bids.quantities[level];
+	}
+
+	/**
+	 * Returns the price of the specified ask level, counting from 0 at the
+	 * best ask.
+	 */
+	public final synchronized long getAskPrice(int level) {
+		checkLevel(asks, level);
+		return asks.keys[level];
+	}
+
+	public final synchronized long getAskQuantity(int level) {
+		checkLevel(asks, level);
+		return asks.quantities[level];
+	}
+
+	/**
+	 * Returns the best bid price, or -1 if there are no bids. As for changes
+	 * to the top levels, a level whose orders have all been filled but not
+	 * yet closed is not counted.
+	 */
+	public final synchronized long getBestBid() {
+		int i = bids.nextVisible(0);
+		return i == bids.size ? -1 : -bids.keys[i];
+	}
+
+	/**
+	 * Returns the best ask price, or -1 if there are no asks. As for changes
+	 * to the top levels, a level whose orders have all been filled but not
+	 * yet closed is not counted.
+	 */
+	public final synchronized long getBestAsk() {
+		int i = asks.nextVisible(0);
+		return i == asks.size ? -1 : asks.keys[i];
+	}
+
+	/**
+	 * Estimates locally the quantity and total that a market order to trade
+	 * up to the specified quantity (in units of the base asset) would trade,
+	 * as {@link Coinfloor#estimateBaseMarketOrder(int, int, long)} does
+	 * remotely.
+	 */
+	public final Coinfloor.MarketOrderEstimate estimateBaseMarketOrder(long quantity) {
+		Coinfloor.MarketOrderEstimateView view = new Coinfloor.MarketOrderEstimateView();
+		estimateBaseMarketOrder(quantity, view);
+		return view.toMarketOrderEstimate();
+	}
+
+	/**
+	 * As {@link #estimateBaseMarketOrder(long)}, but stores the estimate in
+	 * the given view and returns it.
+	 */
+	public final synchronized Coinfloor.MarketOrderEstimateView estimateBaseMarketOrder(long quantity, Coinfloor.MarketOrderEstimateView view) {
+		Levels levels = quantity > 0 ? asks : bids;
+		long remaining = Math.abs(quantity), tradedQuantity = 0, tradedTotal = 0;
+		for (int i = 0; i < levels.size && remaining > 0; ++i) {
+			long levelQuantity = levels.quantities[i];
+			if (remaining >= levelQuantity) {
+				tradedQuantity += levelQuantity;
+				tradedTotal += levels.totals[i];
+				remaining -= levelQuantity;
+			}
+			else {
+				tradedQuantity += remaining;
+				tradedTotal += remaining * Math.abs(levels.keys[i]) / totalDivisor;
+				remaining = 0;
+			}
+		}
+		return setEstimate(view, quantity > 0, tradedQuantity, tradedTotal);
+	}
+
+	/**
+	 * Estimates locally the quantity and total that a market order to trade
+	 * up to the specified total (in units of the counter asset) would trade,
+	 * as {@link Coinfloor#estimateCounterMarketOrder(int, int, long)} does
+	 * remotely.
+	 */
+	public final Coinfloor.MarketOrderEstimate estimateCounterMarketOrder(long total) {
+		Coinfloor.MarketOrderEstimateView view = new Coinfloor.MarketOrderEstimateView();
+		estimateCounterMarketOrder(total, view);
+		return view.toMarketOrderEstimate();
+	}
+
+	/**
+	 * As {@link #estimateCounterMarketOrder(long)}, but stores the estimate
+	 * in the given view and returns it.
+	 */
+	public final synchronized Coinfloor.MarketOrderEstimateView estimateCounterMarketOrder(long total, Coinfloor.MarketOrderEstimateView view) {
+		Levels levels = total > 0 ? asks : bids;
+		long remaining = Math.abs(total), tradedQuantity = 0, tradedTotal = 0;
+		for (int i = 0; i < levels.size && remaining > 0; ++i) {
+			long price = Math.abs(levels.keys[i]), levelQuantity = levels.quantities[i];
+			if (remaining * totalDivisor >= levelQuantity * price) {
+				tradedQuantity += levelQuantity;
+				tradedTotal += levels.totals[i];
+				remaining -= levels.totals[i];
+			}
+			else {
+				long quantity = remaining * totalDivisor / price, levelTotal = quantity * price / totalDivisor;
+				tradedQuantity += quantity;
+				tradedTotal += levelTotal;
+				break;
+			}
+		}
+		return setEstimate(view, total > 0, tradedQuantity, tradedTotal);
+	}
+
+	/**
+	 * Asks the server to estimate a market order for the specified quantity
+	 * and compares its estimate with the local one. The local estimate is
+	 * made when the response arrives, at which point the book reflects the
+	 * same notices as the server's estimate did, provided that the response
+	 * is delivered on the same thread as the notices.
+	 */
+	public final void crossCheck(Coinfloor client, final long quantity) throws IOException {
+		client.estimateBaseMarketOrderAsync(base, counter, quantity, new Callback<Coinfloor.MarketOrderEstimate>() {
+
+			@Override
+			public void operationCompleted(Coinfloor.MarketOrderEstimate remote) {
+				Coinfloor.MarketOrderEstimate local = estimateBaseMarketOrder(quantity);
+				long drift = Math.max(Math.abs(local.quantity - remote.quantity), Math.abs(local.total - remote.total));
+				synchronized (OrderBook.this) {
+					++crossCheckCount;
+					if (drift != 0) {
+						++driftCount;
+						maxDrift = Math.max(maxDrift, drift);
+					}
+				}
+			}
+
+			@Override
+			public void operationFailed(Exception exception) {
+			}
+
+		});
+	}
+
+	/**
+	 * Cross-checks market orders to buy and to sell the specified quantity
+	 * against the server at a fixed period, on a background thread, until
+	 * {@link #stopCrossChecks()} is called.
+	 */
+	public final synchronized void startCrossChecks(final Coinfloor client, final long quantity, long period, TimeUnit unit) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("quantity must be positive");
+		}
+		stopCrossChecks();
+		long millis = Math.max(unit.toMillis(period), 1);
+		crossCheckTimer = new Timer(getClass().getSimpleName() + " Cross-Check", true);
+		crossCheckTimer.scheduleAtFixedRate(new TimerTask() {
+
+			@Override
+			public void run() {
+				try {
+					crossCheck(client, quantity);
+					crossCheck(client, -quantity);
+				}
+				catch (IOException ignored) {
+				}
+				catch (IllegalStateException ignored) {
+					// not connected
+				}
+			}
+
+		}, millis, millis);
+	}
+
+	public final synchronized void stopCrossChecks() {
+		if (crossCheckTimer != null) {
+			crossCheckTimer.cancel();
+			crossCheckTimer = null;
+		}
+	}
+
+	/**
+	 * Returns the number of cross-checks that have completed.
+	 */
+	public final synchronized long getCrossCheckCount() {
+		return crossCheckCount;
+	}
+
+	/**
+	 * Returns the number of cross-checks in which the local estimate differed
+	 * from the server's.
+	 */
+	public final synchronized long getDriftCount() {
+		return driftCount;
+	}
+
+	/**
+	 * Returns the greatest difference, in quantity or total, between a local
+	 * estimate and the server's.
+	 */
+	public final synchronized long getMaxDrift() {
+		return maxDrift;
+	}
+
+	/**
+	 * Registers a listener for changes to the top levels of each side of this
+	 * book, down to the specified depth, and reports the current top levels
+	 * to it. A listener that is registered more than once is invoked once for
+	 * each registration.
+	 */
+	public final synchronized void addDepthListener(DepthListener listener, int depth) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		if (depth <= 0) {
+			throw new IllegalArgumentException("depth must be positive");
+		}
+		DepthSubscription subscription = new DepthSubscription(listener, depth);
+		DepthSubscription[] subscriptions = Arrays.copyOf(depthSubscriptions, depthSubscriptions.length + 1);
+		subscriptions[subscriptions.length - 1] = subscription;
+		depthSubscriptions = subscriptions;
+		Levels empty = new Levels();
+		fireDepthDifferences(subscription, SIDE_BID, empty, bids);
+		fireDepthDifferences(subscription, SIDE_ASK, empty, asks);
+	}
+
+	/**
+	 * Unregisters all registrations of the specified depth listener.
+	 */
+	public final synchronized void removeDepthListener(DepthListener listener) {
+		int n = 0;
+		DepthSubscription[] subscriptions = new DepthSubscription[depthSubscriptions.length];
+		for (DepthSubscription subscription : depthSubscriptions) {
+			if (subscription.listener != listener) {
+				subscriptions[n++] = subscription;
+			}
+		}
+		depthSubscriptions = n == 0 ? noDepthSubscriptions : Arrays.copyOf(subscriptions, n);
+	}
+
+	/**
+	 * Sets whether this book resubscribes to the orders feed of its market
+	 * when it detects an inconsistency, which it does by default.
+	 */
+	public final synchronized void setAutoResync(boolean autoResync) {
+		this.autoResync = autoResync;
+	}
+
+	/**
+	 * Returns whether a snapshot of the order book has been requested and is
+	 * yet to be loaded.
+	 */
+	public final synchronized boolean isResyncing() {
+		return resyncing;
+	}
+
+	/**
+	 * Returns the number of inconsistencies that have been detected.
+	 */
+	public final synchronized long getInconsistencyCount() {
+		return inconsistencyCount;
+	}
+
+	/**
+	 * Returns the number of resyncs that have replaced the state of this
+	 * book, not counting the initial load of its snapshot.
+	 */
+	public final synchronized long getResyncCount() {
+		return resyncCount;
+	}
+
+	/**
+	 * Returns the number of resyncs that have failed.
+	 */
+	public final synchronized long getResyncFailureCount() {
+		return resyncFailureCount;
+	}
+
+	/**
+	 * Returns the time at which the state of this book was last replaced by a
+	 * resync, in milliseconds since the epoch, or 0 if it never has been.
+	 */
+	public final synchronized long getLastResyncTime() {
+		return lastResyncTime;
+	}
+
+	/**
+	 * Removes all orders from this book.
+	 */
+	public final synchronized void clear() {
+		replaceState(new OrderTable(), new Levels(), new Levels());
+	}
+
+	/**
+	 * Adds the viewed order to this book if it belongs to the book's market.
+	 */
+	@Override
+	public synchronized void visitOrder(Coinfloor.OrderView order) {
+		if (order.base == base && order.counter == counter) {
+			putOrder(order.id, order.tonce, order.quantity, order.price, order.time);
+		}
+	}
+
+	@Override
+	public synchronized void orderOpened(long id, long tonce, int base, int counter, long quantity, long price, long time, boolean own) {
+		if (base == this.base && counter == this.counter) {
+			putOrder(id, tonce, quantity, price, time);
+		}
+	}
+
+	@Override
+	public synchronized void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+		if (base == this.base && counter == this.counter) {
+			// the taker of a match may not be held yet, but the maker must be; a
+			// market order taker has no ID, so then the side that has one is the maker
+			int bidRow = bid > 0 ? orders.indexOf(bid) : -1, askRow = ask > 0 ? orders.indexOf(ask) : -1;
+			if ((bid > 0 || ask > 0) && bidRow < 0 && askRow < 0) {
+				inconsistent(INCONSISTENCY_UNKNOWN_ORDER);
+			}
+			if (bidRow >= 0 && bidRem >= 0) {
+				if (orders.getQuantity(bidRow) - quantity != bidRem) {
+					inconsistent(INCONSISTENCY_REMAINING_MISMATCH);
+				}
+				setRemaining(bid, bidRem);
+			}
+			if (askRow >= 0 && askRem >= 0) {
+				if (orders.getQuantity(askRow) - quantity != askRem) {
+					inconsistent(INCONSISTENCY_REMAINING_MISMATCH);
+				}
+				setRemaining(ask, askRem);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void orderClosed(long id, long tonce, int base, int counter, long quantity, long price, boolean own) {
+		if (base == this.base && counter == this.counter) {
+			int row = orders.indexOf(id);
+			if (row < 0) {
+				inconsistent(INCONSISTENCY_UNKNOWN_ORDER);
+				return;
+			}
+			if (orders.getQuantity(row) != Math.abs(quantity)) {
+				inconsistent(INCONSISTENCY_REMAINING_MISMATCH);
+			}
+			removeOrder(id);
+		}
+	}
+
+	/**
+	 * Checks the best bid and ask of the ticker, where known, against this
+	 * book's.
+	 */
+	@Override
+	public synchronized void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+		if (base == this.base && counter == this.counter) {
+			if (bid >= 0 && bid != getBestBid() || ask >= 0 && ask != getBestAsk()) {
+				inconsistent(INCONSISTENCY_STALE_TICKER);
+			}
+		}
+	}
+
+	/**
+	 * A user-supplied callback that is invoked when an inconsistency of one of
+	 * the <code>INCONSISTENCY_</code> types is detected, while holding the
+	 * lock on this book. It is not invoked while a snapshot is being loaded,
+	 * since notices may then refer to orders that only the snapshot holds.
+	 */
+	protected void inconsistencyDetected(int type) {
+	}
+
+	@Override
+	public synchronized String toString() {
+		return getClass().getSimpleName() + "[base=0x" + Integer.toHexString(base) + ", counter=0x" + Integer.toHexString(counter) + ", orders=" + orders.size() + ", bid=" + getBestBid() + ", ask=" + getBestAsk() + ']';
+	}
+
+	/**
+	 * Adds an order, replacing any order with the same ID. The quantity is
+	 * positive for a bid and negative for an ask.
+	 */
+	final void putOrder(long id, long tonce, long quantity, long price, long time) {
+		removeOrder(id);
+		long key = quantity > 0 ? -price : price, absQuantity = Math.abs(quantity);
+		orders.put(id, tonce, base, counter, absQuantity, key, time);
+		Levels levels = key < 0 ? bids : asks;
+		int index = levels.add(key, absQuantity, absQuantity * price / totalDivisor);
+		if (depthSubscriptions.length != 0 && absQuantity != 0) {
+			index = index < 0 ? -index - 1 : index;
+			fireDepthChanged(levels, index, key, levels.quantities[index] - absQuantity, levels.quantities[index]);
+		}
+	}
+
+	/**
+	 * Sets the remaining quantity of an order after a match and returns
+	 * whether the order is in this book. An order whose remaining quantity
+	 * reaches 0 stays in the book until it is closed.
+	 */
+	final boolean setRemaining(long id, long remaining) {
+		int row = orders.indexOf(id);
+		if (row < 0) {
+			return false;
+		}
+		long quantity = orders.getQuantity(row), key = orders.getPrice(row), price = Math.abs(key);
+		if (remaining != quantity) {
+			Levels levels = key < 0 ? bids : asks;
+			int index = levels.update(key, remaining - quantity, remaining * price / totalDivisor - quantity * price / totalDivisor);
+			orders.setQuantity(row, remaining);
+			if (depthSubscriptions.length != 0) {
+				fireDepthChanged(levels, index, key, levels.quantities[index] - (remaining - quantity), levels.quantities[index]);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes an order and returns whether it was in this book.
+	 */
+	final boolean removeOrder(long id) {
+		int row = orders.indexOf(id);
+		if (row < 0) {
+			return false;
+		}
+		long quantity = orders.getQuantity(row), key = orders.getPrice(row);
+		Levels levels = key < 0 ? bids : asks;
+		long levelQuantity = levels.quantities[levels.find(key)];
+		int index = levels.remove(key, quantity, quantity * Math.abs(key) / totalDivisor);
+		orders.remove(id);
+		if (depthSubscriptions.length != 0 && quantity != 0) {
+			if (index < 0) {
+				fireDepthChanged(levels, -index - 1, key, levelQuantity, 0);
+			}
+			else {
+				fireDepthChanged(levels, index, key, levelQuantity, levels.quantities[index]);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the state of this book and reports the differences in its top
+	 * levels.
+	 */
+	private void replaceState(OrderTable orders, Levels bids, Levels asks) {
+		Levels oldBids = this.bids, oldAsks = this.asks;
+		this.orders = orders;
+		this.bids = bids;
+		this.asks = asks;
+		for (DepthSubscription subscription : depthSubscriptions) {
+			fireDepthDifferences(subscription, SIDE_BID, oldBids, bids);
+			fireDepthDifferences(subscription, SIDE_ASK, oldAsks, asks);
+		}
+	}
+
+	/**
+	 * Reports a change to the quantity of the level with the specified key,
+	 * which is or was at the specified index. A level whose quantity becomes
+	 * 0 is reported as removed, along with the level that this brings into
+	 * the top levels, and one whose quantity was 0 as inserted, along with
+	 * the level that this pushes out.
+	 */
+	private void fireDepthChanged(Levels levels, int index, long key, long oldQuantity, long newQuantity) {
+		int side = levels == bids ? SIDE_BID : SIDE_ASK, maxDepth = 0;
+		for (DepthSubscription subscription : depthSubscriptions) {
+			maxDepth = Math.max(maxDepth, subscription.depth);
+		}
+		long price = Math.abs(key);
+		int rank = levels.visibleRank(index, maxDepth);
+		for (DepthSubscription subscription : depthSubscriptions) {
+			int depth = subscription.depth;
+			if (rank < depth) {
+				subscription.listener.depthChanged(this, side, price, newQuantity);
+				if (oldQuantity == 0) {
+					int pushed = levels.visibleIndex(depth);
+					if (pushed >= 0) {
+						subscription.listener.depthChanged(this, side, Math.abs(levels.keys[pushed]), 0);
+					}
+				}
+				else if (newQuantity == 0) {
+					int brought = levels.visibleIndex(depth - 1);
+					if (brought >= 0) {
+						subscription.listener.depthChanged(this, side, Math.abs(levels.keys[brought]), levels.quantities[brought]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reports the differences between the top levels of two states of one
+	 * side of this book to one subscription.
+	 */
+	private void fireDepthDifferences(DepthSubscription subscription, int side, Levels from, Levels to) {
+		int depth = subscription.depth;
+		for (int i = from.nextVisible(0), j = to.nextVisible(0), fromRank = 0, toRank = 0;;) {
+			boolean fromLeft = i < from.size && fromRank < depth, toLeft = j < to.size && toRank < depth;
+			if (!toLeft && !fromLeft) {
+				break;
+			}
+			if (!toLeft || fromLeft && from.keys[i] < to.keys[j]) {
+				subscription.listener.depthChanged(this, side, Math.abs(from.keys[i]), 0);
+				i = from.nextVisible(i + 1);
+				++fromRank;
+			}
+			else if (!fromLeft || to.keys[j] < from.keys[i]) {
+				subscription.listener.depthChanged(this, side, Math.abs(to.keys[j]), to.quantities[j]);
+				j = to.nextVisible(j + 1);
+				++toRank;
+			}
+			else {
+				if (from.quantities[i] != to.quantities[j]) {
+					subscription.listener.depthChanged(this, side, Math.abs(to.keys[j]), to.quantities[j]);
+				}
+				i = from.nextVisible(i + 1);
+				j = to.nextVisible(j + 1);
+				++fromRank;
+				++toRank;
+			}
+		}
+	}
+
+	/**
+	 * Subscribes to the orders feed of this book's market through the given
+	 * client and loads the snapshot into a fresh state, which then replaces
+	 * the state of this book. Notices that arrive before the snapshot are
+	 * applied to the old state, which the snapshot supersedes.
+	 */
+	final void subscribe(Coinfloor client, final boolean resync, final Callback<? super OrderBook> callback) throws IOException {
+		final OrderBook fresh = new OrderBook(base, counter, totalDivisor);
+		synchronized (this) {
+			if (resync && this.client != client) {
+				resyncing = false; // unsubscribed since the inconsistency
+				return;
+			}
+			this.client = client;
+			resyncing = true;
+		}
+		try {
+			client.watchOrdersAsync(base, counter, true, new Coinfloor.OrderView(), fresh, new Callback<Void>() {
+
+				@Override
+				public void operationCompleted(Void result) {
+					synchronized (OrderBook.this) {
+						replaceState(fresh.orders, fresh.bids, fresh.asks);
+						resyncing = false;
+						if (resync) {
+							++resyncCount;
+							lastResyncTime = System.currentTimeMillis();
+						}
+					}
+					if (callback != null) {
+						callback.operationCompleted(OrderBook.this);
+					}
+				}
+
+				@Override
+				public void operationFailed(Exception exception) {
+					resyncFailed();
+					if (callback != null) {
+						callback.operationFailed(exception);
+					}
+				}
+
+			});
+		}
+		catch (IOException e) {
+			resyncFailed();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			resyncFailed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Detaches this book from the client that maintains it, so that it no
+	 * longer resyncs.
+	 */
+	final synchronized void unsubscribe() {
+		client = null;
+		resyncing = false;
+	}
+
+	private void inconsistent(int type) {
+		if (resyncing) {
+			return;
+		}
+		++inconsistencyCount;
+		inconsistencyDetected(type);
+		if (autoResync && client != null) {
+			final Coinfloor client = this.client;
+			resyncing = true;
+			Thread thread = new Thread(getClass().getSimpleName() + " Resync") {
+
+				@Override
+				public void run() {
+					try {
+						subscribe(client, true, null);
+					}
+					catch (IOException ignored) {
+					}
+					catch (RuntimeException ignored) {
+						// not connected, or the request was rejected
+					}
+				}
+
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private synchronized void resyncFailed() {
+		++resyncFailureCount;
+		resyncing = false;
+	}
+
+	private Coinfloor.MarketOrderEstimateView setEstimate(Coinfloor.MarketOrderEstimateView view, boolean buy, long quantity, long total) {
+		view.base = base;
+		view.counter = counter;
+		view.quantity = buy ? quantity : -quantity;
+		view.total = buy ? total : -total;
+		return view;
+	}
+
+	private static void checkLevel(Levels levels, int level) {
+		if (level < 0 || level >= levels.size) {
+			throw new IndexOutOfBoundsException("level " + level + " of " + levels.size);
+		}
+	}
+
+}
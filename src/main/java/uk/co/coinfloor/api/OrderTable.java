@@ -0,0 +1,256 @@
+package uk.co.coinfloor.api;
+
+import java.util.Arrays;
+
+/**
+ * A compact table of orders, stored as parallel columns of primitives with an
+ * open-addressed index by order ID. It needs 48 bytes per row of capacity
+ * and at most 16 bytes per row for the index, where an equivalent
+ * <code>Map&lt;Long, OrderInfo&gt;</code> needs more than 100 bytes per
+ * order, and it creates no objects per order. Rows are numbered from 0 to
+ * {@link #size()}<code> - 1</code>; removing an order moves the last row into
+ * its place.
+ * <p>
+ * A table may be passed to the order-returning methods of {@link Coinfloor},
+ * which fill it as the response is parsed. It is not safe for use by
+ * multiple threads at once.
+ */
+public class OrderTable implements Coinfloor.OrderVisitor {
+
+	private long[] ids, tonces, quantities, prices, times;
+	private int[] bases, counters;
+	private int size;
+
+	private int[] index; // rows plus one, 0 marking an empty slot
+
+	public OrderTable() {
+		this(16);
+	}
+
+	public OrderTable(int initialCapacity) {
+		allocate(Math.max(initialCapacity, 1));
+	}
+
+	public final int size() {
+		return size;
+	}
+
+	public final long getID(int row) {
+		checkRow(row);
+		return ids[row];
+	}
+
+	public final long getTonce(int row) {
+		checkRow(row);
+		return tonces[row];
+	}
+
+	public final int getBase(int row) {
+		checkRow(row);
+		return bases[row];
+	}
+
+	public final int getCounter(int row) {
+		checkRow(row);
+		return counters[row];
+	}
+
+	public final long getQuantity(int row) {
+		checkRow(row);
+		return quantities[row];
+	}
+
+	public final long getPrice(int row) {
+		checkRow(row);
+		return prices[row];
+	}
+
+	public final long getTime(int row) {
+		checkRow(row);
+		return times[row];
+	}
+
+	public final void setQuantity(int row, long quantity) {
+		checkRow(row);
+		quantities[row] = quantity;
+	}
+
+	/**
+	 * Returns the row of the order with the specified ID, or -1 if there is
+	 * no such order.
+	 */
+	public final int indexOf(long id) {
+		int[] index = this.index;
+		int mask = index.length - 1;
+		for (int slot = hash(id) & mask;; slot = slot + 1 & mask) {
+			int entry = index[slot];
+			if (entry == 0) {
+				return -1;
+			}
+			if (ids[entry - 1] == id) {
+				return entry - 1;
+			}
+		}
+	}
+
+	public final boolean contains(long id) {
+		return indexOf(id) >= 0;
+	}
+
+	/**
+	 * Adds an order, or replaces the order with the same ID, and returns its
+	 * row.
+	 */
+	public final int put(long id, long tonce, int base, int counter, long quantity, long price, long time) {
+		if (id == 0) {
+			throw new IllegalArgumentException("id must not be 0");
+		}
+		int row = indexOf(id);
+		if (row < 0) {
+			if (size == ids.length) {
+				allocate(size << 1);
+			}
+			row = size++;
+			ids[row] = id;
+			insertIndex(id, row);
+		}
+		tonces[row] = tonce;
+		bases[row] = base;
+		counters[row] = counter;
+		quantities[row] = quantity;
+		prices[row] = price;
+		times[row] = time;
+		return row;
+	}
+
+	/**
+	 * Removes the order with the specified ID and returns whether it was
+	 * present. The order in the last row moves into the vacated row.
+	 */
+	public final boolean remove(long id) {
+		int row = indexOf(id);
+		if (row < 0) {
+			return false;
+		}
+		removeIndex(row);
+		int last = --size;
+		if (row != last) {
+			moveIndex(last, row);
+			ids[row] = ids[last];
+			tonces[row] = tonces[last];
+			bases[row] = bases[last];
+			counters[row] = counters[last];
+			quantities[row] = quantities[last];
+			prices[row] = prices[last];
+			times[row] = times[last];
+		}
+		return true;
+	}
+
+	public final void clear() {
+		size = 0;
+		Arrays.fill(index, 0);
+	}
+
+	/**
+	 * Returns the order in the specified row as an {@link Coinfloor.OrderInfo}.
+	 */
+	public final Coinfloor.OrderInfo getOrderInfo(int row) {
+		checkRow(row);
+		return new Coinfloor.OrderInfo(tonces[row], bases[row], counters[row], quantities[row], prices[row], times[row]);
+	}
+
+	/**
+	 * Adds the viewed order to this table.
+	 */
+	@Override
+	public void visitOrder(Coinfloor.OrderView order) {
+		put(order.id, order.tonce, order.base, order.counter, order.quantity, order.price, order.time);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + size + ']';
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("row " + row + " of " + size);
+		}
+	}
+
+	private void allocate(int capacity) {
+		if (ids == null) {
+			ids = new long[capacity];
+			tonces = new long[capacity];
+			quantities = new long[capacity];
+			prices = new long[capacity];
+			times = new long[capacity];
+			bases = new int[capacity];
+			counters = new int[capacity];
+		}
+		else {
+			ids = Arrays.copyOf(ids, capacity);
+			tonces = Arrays.copyOf(tonces, capacity);
+			quantities = Arrays.copyOf(quantities, capacity);
+			prices = Arrays.copyOf(prices, capacity);
+			times = Arrays.copyOf(times, capacity);
+			bases = Arrays.copyOf(bases, capacity);
+			counters = Arrays.copyOf(counters, capacity);
+		}
+		// keep the index at most half full
+		int indexCapacity = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		if (index == null || index.length < indexCapacity) {
+			index = new int[indexCapacity];
+			for (int row = 0; row < size; ++row) {
+				insertIndex(ids[row], row);
+			}
+		}
+	}
+
+	private void insertIndex(long id, int row) {
+		int[] index = this.index;
+		int mask = index.length - 1, slot = hash(id) & mask;
+		while (index[slot] != 0) {
+			slot = slot + 1 & mask;
+		}
+		index[slot] = row + 1;
+	}
+
+	private int findIndex(int row) {
+		int[] index = this.index;
+		int mask = index.length - 1, slot = hash(ids[row]) & mask;
+		while (index[slot] != row + 1) {
+			slot = slot + 1 & mask;
+		}
+		return slot;
+	}
+
+	private void moveIndex(int from, int to) {
+		index[findIndex(from)] = to + 1;
+	}
+
+	/**
+	 * Removes a row from the index, shifting back any entries in the same
+	 * probe sequence so that no tombstones are needed.
+	 */
+	private void removeIndex(int row) {
+		int[] index = this.index;
+		int mask = index.length - 1, slot = findIndex(row);
+		for (int next = slot + 1 & mask; index[next] != 0; next = next + 1 & mask) {
+			int home = hash(ids[index[next] - 1]) & mask;
+			// move the entry back if its home slot is not cyclically within (slot, next]
+			if (slot <= next ? home <= slot || home > next : home <= slot && home > next) {
+				index[slot] = index[next];
+				slot = next;
+			}
+		}
+		index[slot] = 0;
+	}
+
+	private static int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L; // Fibonacci hashing
+		return (int) (h ^ h >>> 32);
+	}
+
+}
@@ -0,0 +1,202 @@
+package uk.co.coinfloor.api;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate at which requests are sent, so that bursts are shaped by
+ * the client rather than rejected by the server. A rate limiter is a token
+ * bucket that holds up to a burst of permits and is refilled at a steady
+ * rate. It is implemented by the generic cell rate algorithm, in which the
+ * whole state of the bucket is a single theoretical arrival time that is
+ * updated by compare-and-set, so acquiring a permit never takes a lock.
+ * <p>
+ * A rate limiter is given to a client by
+ * {@link Coinfloor#setRateLimiter(RateLimiter)} or
+ * {@link Coinfloor#setRateLimiter(String, RateLimiter)}, and its mode decides
+ * what becomes of a request for which no permit is available.
+ */
+public class RateLimiter {
+
+	private static class Task implements Comparable<Task> {
+
+		final int priority;
+		final long sequence;
+		final Runnable runnable;
+
+		Task(int priority, long sequence, Runnable runnable) {
+			this.priority = priority;
+			this.sequence = sequence;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			return priority != o.priority ? priority < o.priority ? -1 : 1 : sequence < o.sequence ? -1 : sequence > o.sequence ? 1 : 0;
+		}
+
+	}
+
+	/**
+	 * Fail the request with a
+	 * {@link java.util.concurrent.RejectedExecutionException} without sending
+	 * it.
+	 */
+	public static final int MODE_REJECT = 0;
+	/**
+	 * Block the requesting thread until a permit is available.
+	 */
+	public static final int MODE_DELAY = 1;
+	/**
+	 * Queue the request, to be sent by a background thread once a permit is
+	 * available. Queued requests are sent in order of priority and then in
+	 * the order in which they were queued.
+	 */
+	public static final int MODE_QUEUE = 2;
+
+	private final long interval, tolerance;
+	private final int mode;
+	private final AtomicLong arrivalTime;
+	private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+
+	private long taskCounter;
+	private boolean draining;
+
+	/**
+	 * Constructs a rate limiter that permits the specified number of requests
+	 * per second on average and bursts of up to the specified number of
+	 * requests, and that applies one of the <code>MODE_</code> policies.
+	 */
+	public RateLimiter(double permitsPerSecond, int burst, int mode) {
+		if (!(permitsPerSecond > 0)) {
+			throw new IllegalArgumentException("permitsPerSecond must be positive");
+		}
+		if (burst <= 0) {
+			throw new IllegalArgumentException("burst must be positive");
+		}
+		if (mode < MODE_REJECT || mode > MODE_QUEUE) {
+			throw new IllegalArgumentException("unknown mode");
+		}
+		interval = Math.max((long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond), 1);
+		tolerance = interval * burst;
+		this.mode = mode;
+		arrivalTime = new AtomicLong(System.nanoTime() - tolerance);
+	}
+
+	public final int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Acquires a permit if one is available now and returns whether it did.
+	 */
+	public final boolean tryAcquire() {
+		for (;;) {
+			long now = System.nanoTime(), arrivalTime = this.arrivalTime.get(), next = Math.max(arrivalTime, now - tolerance) + interval;
+			if (next - now > 0) {
+				return false;
+			}
+			if (this.arrivalTime.compareAndSet(arrivalTime, next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Acquires a permit unconditionally and returns the number of nanoseconds
+	 * for which the caller must wait before using it.
+	 */
+	public final long reserve() {
+		for (;;) {
+			long now = System.nanoTime(), arrivalTime = this.arrivalTime.get(), next = Math.max(arrivalTime, now - tolerance) + interval;
+			if (this.arrivalTime.compareAndSet(arrivalTime, next)) {
+				return Math.max(next - now, 0);
+			}
+		}
+	}
+
+	/**
+	 * Returns a permit that was acquired but not used.
+	 */
+	public final void refund() {
+		long arrivalTime;
+		do {
+			arrivalTime = this.arrivalTime.get();
+		} while (!this.arrivalTime.compareAndSet(arrivalTime, arrivalTime - interval));
+	}
+
+	/**
+	 * Returns the number of nanoseconds until a permit will be available,
+	 * which is 0 if one is available now.
+	 */
+	public final long getWaitTime() {
+		long now = System.nanoTime();
+		return Math.max(Math.max(arrivalTime.get(), now - tolerance) + interval - now, 0);
+	}
+
+	/**
+	 * Returns the number of tasks waiting in the queue.
+	 */
+	public final synchronized int getQueueLength() {
+		return queue.size();
+	}
+
+	/**
+	 * Acquires a permit and returns <code>true</code> if no task is queued
+	 * and a permit is available now. Otherwise queues the given task, to be
+	 * run on a background thread once a permit has been acquired for it, and
+	 * returns <code>false</code>. Queued tasks of a lower priority number run
+	 * first. A task must not throw.
+	 */
+	public final boolean acquireOrQueue(int priority, Runnable task) {
+		synchronized (this) {
+			if (queue.isEmpty() && tryAcquire()) {
+				return true;
+			}
+			queue.add(new Task(priority, taskCounter++, task));
+			if (!draining) {
+				draining = true;
+				startDrainer();
+			}
+			return false;
+		}
+	}
+
+	private void startDrainer() {
+		Thread thread = new Thread(getClass().getSimpleName() + " Drainer") {
+
+			@Override
+			public void run() {
+				for (;;) {
+					Task task;
+					synchronized (RateLimiter.this) {
+						for (;;) {
+							if (queue.isEmpty()) {
+								draining = false;
+								return;
+							}
+							long waitTime = getWaitTime();
+							if (waitTime == 0 && tryAcquire()) {
+								break;
+							}
+							try {
+								TimeUnit.NANOSECONDS.timedWait(RateLimiter.this, waitTime);
+							}
+							catch (InterruptedException e) {
+								draining = false;
+								return;
+							}
+						}
+						task = queue.poll();
+					}
+					task.runnable.run();
+				}
+			}
+
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+}
@@ -0,0 +1,155 @@
+package uk.co.coinfloor.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the messages recorded in a {@link Journal} through the same decoding
+ * and dispatching path that {@link Coinfloor} uses for messages received from
+ * the server, so that the notice hooks and request callbacks of a
+ * <code>Coinfloor</code> subclass can be exercised without a network
+ * connection.
+ * <p>
+ * While a replay is in progress, requests made by the client are not sent
+ * anywhere, but their callbacks are registered under the same tags that the
+ * recorded session used, so a strategy that issues the same requests in the
+ * same order receives the recorded responses.
+ */
+public class Replayer {
+
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			ByteBuffer buffer = this.buffer;
+			int remaining = buffer.remaining();
+			if (remaining == 0) {
+				return len == 0 ? 0 : -1;
+			}
+			buffer.get(b, off, len = Math.min(len, remaining));
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+	}
+
+	/**
+	 * Dispatches messages as fast as they can be decoded.
+	 */
+	public static final int MODE_AS_FAST_AS_POSSIBLE = 0;
+
+	/**
+	 * Dispatches messages with the same spacing in time at which they were
+	 * originally received.
+	 */
+	public static final int MODE_REAL_TIME = 1;
+
+	private final Coinfloor coinfloor;
+	private final int mode;
+
+	private long messageCount, elapsedTime;
+
+	public Replayer(Coinfloor coinfloor, int mode) {
+		if (coinfloor == null) {
+			throw new NullPointerException("coinfloor");
+		}
+		if (mode != MODE_AS_FAST_AS_POSSIBLE && mode != MODE_REAL_TIME) {
+			throw new IllegalArgumentException("mode");
+		}
+		this.coinfloor = coinfloor;
+		this.mode = mode;
+	}
+
+	/**
+	 * Replays the records from the current position of the given reader to
+	 * the end of the journal. Requests still awaiting a response when the
+	 * replay ends are failed as if the client had been disconnected.
+	 */
+	public void replay(Journal.Reader reader) throws IOException, InterruptedException {
+		replay(reader, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Replays the records from the current position of the given reader up to
+	 * (but not including) the first record received at or after the
+	 * specified time (in nanoseconds since the epoch).
+	 */
+	public void replay(Journal.Reader reader, long endTimestamp) throws IOException, InterruptedException {
+		Coinfloor coinfloor = this.coinfloor;
+		coinfloor.beginReplay();
+		long messageCount = 0, startTime = System.nanoTime(), firstTimestamp = 0;
+		try {
+			while (reader.next()) {
+				long timestamp = reader.getTimestamp();
+				if (timestamp >= endTimestamp) {
+					break;
+				}
+				if (reader.getOpcode() != WebSocket.OP_TEXT) {
+					continue;
+				}
+				if (mode == MODE_REAL_TIME) {
+					if (messageCount == 0) {
+						firstTimestamp = timestamp;
+					}
+					else {
+						long delay = startTime + (timestamp - firstTimestamp) - System.nanoTime();
+						if (delay > 0) {
+							TimeUnit.NANOSECONDS.sleep(delay);
+						}
+					}
+				}
+				coinfloor.dispatch(new ByteBufferInputStream(reader.getPayload()));
+				++messageCount;
+			}
+		}
+		finally {
+			long elapsedTime = System.nanoTime() - startTime;
+			coinfloor.endReplay();
+			coinfloor.failRequests(null);
+			synchronized (this) {
+				this.messageCount = messageCount;
+				this.elapsedTime = elapsedTime;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of messages dispatched by the most recent replay.
+	 */
+	public synchronized long getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * Returns the duration of the most recent replay, in nanoseconds.
+	 */
+	public synchronized long getElapsedTime() {
+		return elapsedTime;
+	}
+
+	/**
+	 * Returns the rate at which messages were dispatched by the most recent
+	 * replay, in messages per second.
+	 */
+	public synchronized double getMessagesPerSecond() {
+		return elapsedTime == 0 ? 0 : messageCount * 1e9 / elapsedTime;
+	}
+
+}
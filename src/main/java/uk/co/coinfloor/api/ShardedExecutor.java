@@ -0,0 +1,91 @@
+package uk.co.coinfloor.api;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a fixed number of worker threads, each of which serves a
+ * subset of the markets. All tasks submitted for a market run on the same
+ * worker in the order in which they were submitted, while tasks for markets
+ * that map to different workers run in parallel.
+ * <p>
+ * A client that is given a sharded executor by
+ * {@link Coinfloor#setDispatchExecutor(ShardedExecutor)} uses it to deliver
+ * its notices and request completions.
+ */
+public class ShardedExecutor {
+
+	private final ExecutorService[] shards;
+
+	/**
+	 * Constructs a sharded executor with the specified number of worker
+	 * threads. The workers are daemon threads.
+	 */
+	public ShardedExecutor(int shardCount) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("shardCount must be positive");
+		}
+		shards = new ExecutorService[shardCount];
+		for (int i = 0; i < shardCount; ++i) {
+			final String name = getClass().getSimpleName() + " Shard " + i;
+			shards[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+		}
+	}
+
+	public final int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns the index of the worker that serves the specified market. A
+	 * negative counter denotes a single asset, and a negative base and counter
+	 * denote tasks that are not specific to any market or asset.
+	 */
+	public int getShard(int base, int counter) {
+		int hash = (base << 16 ^ counter) * 0x9E3779B9; // Fibonacci hashing
+		hash ^= hash >>> 16;
+		return (hash & Integer.MAX_VALUE) % shards.length;
+	}
+
+	/**
+	 * Submits a task to the worker that serves the specified market.
+	 */
+	public final void execute(int base, int counter, Runnable task) {
+		shards[getShard(base, counter)].execute(task);
+	}
+
+	/**
+	 * Stops accepting new tasks. Tasks already submitted are still run.
+	 */
+	public final void shutdown() {
+		for (ExecutorService shard : shards) {
+			shard.shutdown();
+		}
+	}
+
+	/**
+	 * Waits until all workers have finished after a shutdown, or until the
+	 * timeout elapses, and returns whether they have finished.
+	 */
+	public final boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (ExecutorService shard : shards) {
+			if (!shard.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
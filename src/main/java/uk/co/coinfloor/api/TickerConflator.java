@@ -0,0 +1,131 @@
+package uk.co.coinfloor.api;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conflates ticker notices for consumers that may fall behind. The conflator
+ * is registered with a client as a {@link NoticeListener} and keeps only the
+ * latest ticker of each market, which includes the top of its order book. A
+ * market whose ticker has changed since it was last delivered is marked
+ * dirty, and a consumer that polls receives the merged state of each dirty
+ * market once, in the order in which the markets became dirty. The backlog is
+ * thus bounded by the number of markets rather than by the rate of notices.
+ */
+public class TickerConflator extends NoticeAdapter {
+
+	private static class Entry {
+
+		final int base, counter;
+
+		long last = -1, bid = -1, ask = -1, low = -1, high = -1, volume = -1;
+		boolean dirty;
+
+		Entry(int base, int counter) {
+			this.base = base;
+			this.counter = counter;
+		}
+
+	}
+
+	private final HashMap<Integer, Entry> entries = new HashMap<Integer, Entry>();
+	private final ArrayDeque<Entry> dirtyEntries = new ArrayDeque<Entry>();
+
+	private long updateCount, deliveryCount;
+
+	@Override
+	public synchronized void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+		Entry entry = entries.get(base << 16 | counter);
+		if (entry == null) {
+			entries.put(base << 16 | counter, entry = new Entry(base, counter));
+		}
+		entry.last = last;
+		entry.bid = bid;
+		entry.ask = ask;
+		entry.low = low;
+		entry.high = high;
+		entry.volume = volume;
+		++updateCount;
+		if (!entry.dirty) {
+			entry.dirty = true;
+			dirtyEntries.add(entry);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Delivers the latest ticker of the market that has been dirty the
+	 * longest to the given listener, if any market is dirty, and returns
+	 * whether a ticker was delivered. The listener is invoked without holding
+	 * any lock, so it does not hold up incoming notices.
+	 */
+	public final boolean poll(NoticeListener listener) {
+		int base, counter;
+		long last, bid, ask, low, high, volume;
+		synchronized (this) {
+			Entry entry = dirtyEntries.poll();
+			if (entry == null) {
+				return false;
+			}
+			entry.dirty = false;
+			base = entry.base;
+			counter = entry.counter;
+			last = entry.last;
+			bid = entry.bid;
+			ask = entry.ask;
+			low = entry.low;
+			high = entry.high;
+			volume = entry.volume;
+			++deliveryCount;
+		}
+		listener.tickerChanged(base, counter, last, bid, ask, low, high, volume);
+		return true;
+	}
+
+	/**
+	 * Delivers the latest ticker of every market that is dirty to the given
+	 * listener and returns the number of tickers delivered. Only the markets
+	 * that are dirty on entry are delivered, so that a drain ends even while
+	 * tickers keep arriving; markets that become dirty meanwhile are left for
+	 * the next poll or drain.
+	 */
+	public final int drain(NoticeListener listener) {
+		int count = 0;
+		for (int n = getBacklog(); count < n && poll(listener);) {
+			++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Waits until some market is dirty or the timeout elapses, and returns
+	 * whether some market is dirty.
+	 */
+	public final synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout), remaining;
+		while (dirtyEntries.isEmpty()) {
+			if ((remaining = deadline - System.nanoTime()) <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of markets that are dirty.
+	 */
+	public final synchronized int getBacklog() {
+		return dirtyEntries.size();
+	}
+
+	/**
+	 * Returns the number of ticker notices that were superseded before they
+	 * could be delivered.
+	 */
+	public final synchronized long getConflatedCount() {
+		return updateCount - deliveryCount - dirtyEntries.size();
+	}
+
+}
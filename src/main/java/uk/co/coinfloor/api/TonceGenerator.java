@@ -0,0 +1,96 @@
+package uk.co.coinfloor.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates strictly increasing tonces for any number of threads, at the cost
+ * of one atomic increment per tonce. Tonces are seeded from the current time
+ * in microseconds since the epoch.
+ * <p>
+ * A generator that is given a file persists a high-water mark in it, so that
+ * tonces are never reused after a restart even if the clock has gone back.
+ * The mark reserves a range of tonces ahead of those issued and is advanced
+ * only when the range is used up. It is written to a memory-mapped file,
+ * which survives the termination of the process without any call to the
+ * disk; {@link #force()} makes it survive the failure of the machine too.
+ * <p>
+ * A client that is given a generator by
+ * {@link Coinfloor#setTonceGenerator(TonceGenerator)} uses it for orders that
+ * are placed without a tonce.
+ */
+public class TonceGenerator {
+
+	static final int HIGH_WATER_SIZE = 8;
+
+	private final AtomicLong counter;
+	private final MappedByteBuffer highWater;
+	private final int reservation;
+
+	private volatile long limit; // tonces below this have been reserved
+
+	/**
+	 * Constructs a generator that persists nothing.
+	 */
+	public TonceGenerator() {
+		counter = new AtomicLong(currentTimeMicros());
+		highWater = null;
+		reservation = 0;
+		limit = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Constructs a generator that persists its high-water mark in the given
+	 * file, creating the file if it does not exist, and that reserves the
+	 * specified number of tonces at a time.
+	 */
+	public TonceGenerator(File file, int reservation) throws IOException {
+		if (reservation <= 0) {
+			throw new IllegalArgumentException("reservation must be positive");
+		}
+		highWater = Journal.map(file, FileChannel.MapMode.READ_WRITE, HIGH_WATER_SIZE);
+		long seed = Math.max(currentTimeMicros(), highWater.getLong(0));
+		counter = new AtomicLong(seed);
+		this.reservation = reservation;
+		highWater.putLong(0, limit = seed + 1 + reservation);
+	}
+
+	/**
+	 * Returns a tonce greater than any that this generator, or a previous
+	 * generator with the same file, has returned.
+	 */
+	public final long next() {
+		long tonce = counter.incrementAndGet();
+		if (tonce >= limit) {
+			reserve(tonce);
+		}
+		return tonce;
+	}
+
+	/**
+	 * Writes the high-water mark to the disk, if this generator has a file.
+	 */
+	public final void force() {
+		if (highWater != null) {
+			synchronized (this) {
+				highWater.force();
+			}
+		}
+	}
+
+	private synchronized void reserve(long tonce) {
+		if (tonce >= limit) {
+			long limit = tonce + reservation;
+			highWater.putLong(0, limit);
+			this.limit = limit;
+		}
+	}
+
+	static long currentTimeMicros() {
+		return System.currentTimeMillis() * 1000;
+	}
+
+}
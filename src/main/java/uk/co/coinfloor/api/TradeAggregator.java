@@ -0,0 +1,294 @@
+package uk.co.coinfloor.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates the trades of one market, as reported by
+ * {@link NoticeListener#ordersMatched ordersMatched} notices, into running
+ * analytics: the volume-weighted average price (VWAP), turnover and trade
+ * count since the aggregator was created, a ring of open-high-low-close-volume
+ * bars of a fixed interval, and the same figures over the rolling window
+ * spanned by the ring. Each trade updates the aggregator in constant time
+ * (amortized over any empty bars that it skips) and without allocation.
+ * <p>
+ * An aggregator is registered with a client as a {@link NoticeListener}, for
+ * instance by <code>addNoticeListener(aggregator,
+ * NoticeListener.ORDERS_MATCHED, base, counter)</code>, and ignores trades in
+ * other markets. Its state is held in a single array of atomic longs guarded
+ * by a sequence lock, so that {@link #getSnapshot(Snapshot)} and
+ * {@link #getBars(Bar[])} never block the thread that delivers notices;
+ * instead, a reader that overlaps an update simply reads again.
+ * <p>
+ * Times are in microseconds since the epoch, as in notices. The rolling
+ * window covers the bars up to and including that of the latest trade, so it
+ * does not move on while no trades occur.
+ */
+public class TradeAggregator extends NoticeAdapter {
+
+	/**
+	 * A consistent view of the running analytics of an aggregator. Prices are
+	 * -1 when there have been no trades to determine them.
+	 */
+	public static final class Snapshot {
+
+		public int base, counter;
+		public long time, last;
+		public long tradeCount, volume, turnover, vwap;
+		public long rollingTradeCount, rollingVolume, rollingTurnover, rollingVWAP;
+
+		public Snapshot() {
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[base=0x" + Integer.toHexString(base) + ", counter=0x" + Integer.toHexString(counter) + ", time=" + time + ", last=" + last + ", tradeCount=" + tradeCount + ", volume=" + volume + ", turnover=" + turnover + ", vwap=" + vwap + ", rollingTradeCount=" + rollingTradeCount + ", rollingVolume=" + rollingVolume + ", rollingTurnover=" + rollingTurnover + ", rollingVWAP=" + rollingVWAP + ']';
+		}
+
+	}
+
+	/**
+	 * One bar of an aggregator. The prices of a bar without trades are -1.
+	 */
+	public static final class Bar {
+
+		public long start, open, high, low, close;
+		public long tradeCount, volume, turnover;
+
+		public Bar() {
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[start=" + start + ", open=" + open + ", high=" + high + ", low=" + low + ", close=" + close + ", tradeCount=" + tradeCount + ", volume=" + volume + ", turnover=" + turnover + ']';
+		}
+
+	}
+
+	// layout of the header of the state array
+	private static final int TIME = 0, LAST = 1, TRADE_COUNT = 2, VOLUME = 3, TURNOVER = 4, ROLLING_TRADE_COUNT = 5, ROLLING_VOLUME = 6, ROLLING_TURNOVER = 7, CURRENT_BAR = 8, HEADER_SIZE = 9;
+	// layout of each bar following the header
+	private static final int BAR_INDEX = 0, BAR_OPEN = 1, BAR_HIGH = 2, BAR_LOW = 3, BAR_CLOSE = 4, BAR_TRADE_COUNT = 5, BAR_VOLUME = 6, BAR_TURNOVER = 7, BAR_SIZE = 8;
+
+	final int base, counter;
+	final long barInterval, totalDivisor;
+	final int barCount;
+
+	private final AtomicLongArray state;
+
+	private volatile long sequence; // odd while an update is in progress
+
+	/**
+	 * Constructs an aggregator of the specified market that keeps the
+	 * specified number of bars of the specified interval, and whose VWAPs are
+	 * computed with {@link OrderBook#DEFAULT_TOTAL_DIVISOR}.
+	 */
+	public TradeAggregator(int base, int counter, long barInterval, TimeUnit unit, int barCount) {
+		this(base, counter, barInterval, unit, barCount, OrderBook.DEFAULT_TOTAL_DIVISOR);
+	}
+
+	/**
+	 * Constructs an aggregator of the specified market that keeps the
+	 * specified number of bars of the specified interval, and whose VWAPs are
+	 * turnover times the specified divisor divided by volume, which makes
+	 * them prices.
+	 */
+	public TradeAggregator(int base, int counter, long barInterval, TimeUnit unit, int barCount, long totalDivisor) {
+		if ((this.barInterval = unit.toMicros(barInterval)) <= 0) {
+			throw new IllegalArgumentException("barInterval must be at least 1 microsecond");
+		}
+		if (barCount <= 0) {
+			throw new IllegalArgumentException("barCount must be positive");
+		}
+		if (totalDivisor <= 0) {
+			throw new IllegalArgumentException("totalDivisor must be positive");
+		}
+		this.base = base;
+		this.counter = counter;
+		this.barCount = barCount;
+		this.totalDivisor = totalDivisor;
+		state = new AtomicLongArray(HEADER_SIZE + barCount * BAR_SIZE);
+		state.set(LAST, -1);
+		state.set(CURRENT_BAR, Long.MIN_VALUE);
+		for (int i = 0; i < barCount; ++i) {
+			resetBar(HEADER_SIZE + i * BAR_SIZE, Long.MIN_VALUE);
+		}
+	}
+
+	public final int getBase() {
+		return base;
+	}
+
+	public final int getCounter() {
+		return counter;
+	}
+
+	/**
+	 * Returns the interval of each bar, in microseconds.
+	 */
+	public final long getBarInterval() {
+		return barInterval;
+	}
+
+	public final int getBarCount() {
+		return barCount;
+	}
+
+	/**
+	 * Stores a consistent view of the running analytics in the given snapshot
+	 * and returns it.
+	 */
+	public final Snapshot getSnapshot(Snapshot snapshot) {
+		AtomicLongArray state = this.state;
+		for (;;) {
+			long sequence = this.sequence;
+			if ((sequence & 1) != 0) {
+				continue;
+			}
+			snapshot.time = state.get(TIME);
+			snapshot.last = state.get(LAST);
+			snapshot.tradeCount = state.get(TRADE_COUNT);
+			snapshot.volume = state.get(VOLUME);
+			snapshot.turnover = state.get(TURNOVER);
+			snapshot.rollingTradeCount = state.get(ROLLING_TRADE_COUNT);
+			snapshot.rollingVolume = state.get(ROLLING_VOLUME);
+			snapshot.rollingTurnover = state.get(ROLLING_TURNOVER);
+			if (this.sequence == sequence) {
+				break;
+			}
+		}
+		snapshot.base = base;
+		snapshot.counter = counter;
+		snapshot.vwap = vwap(snapshot.turnover, snapshot.volume);
+		snapshot.rollingVWAP = vwap(snapshot.rollingTurnover, snapshot.rollingVolume);
+		return snapshot;
+	}
+
+	/**
+	 * Stores a consistent view of the most recent bars in the given array,
+	 * starting with the bar of the latest trade, and returns the number of
+	 * bars stored. Bars without trades are included, so the bars are
+	 * consecutive. At most {@link #getBarCount()} bars are stored, and none
+	 * before the first trade. Any <code>null</code> element of the array is
+	 * replaced by a new bar.
+	 */
+	public final int getBars(Bar[] bars) {
+		AtomicLongArray state = this.state;
+		for (;;) {
+			long sequence = this.sequence;
+			if ((sequence & 1) != 0) {
+				continue;
+			}
+			long current = state.get(CURRENT_BAR);
+			int n = 0;
+			if (current != Long.MIN_VALUE) {
+				for (long limit = Math.min(Math.min(bars.length, barCount), current + 1); n < limit; ++n) {
+					int offset = offset(current - n);
+					if (state.get(offset + BAR_INDEX) != current - n) {
+						break;
+					}
+					Bar bar = bars[n];
+					if (bar == null) {
+						bars[n] = bar = new Bar();
+					}
+					bar.start = (current - n) * barInterval;
+					bar.open = state.get(offset + BAR_OPEN);
+					bar.high = state.get(offset + BAR_HIGH);
+					bar.low = state.get(offset + BAR_LOW);
+					bar.close = state.get(offset + BAR_CLOSE);
+					bar.tradeCount = state.get(offset + BAR_TRADE_COUNT);
+					bar.volume = state.get(offset + BAR_VOLUME);
+					bar.turnover = state.get(offset + BAR_TURNOVER);
+				}
+			}
+			if (this.sequence == sequence) {
+				return n;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+		if (base != this.base || counter != this.counter || time < 0) {
+			return;
+		}
+		AtomicLongArray state = this.state;
+		long sequence = this.sequence;
+		this.sequence = sequence + 1;
+		long barIndex = time / barInterval, current = state.get(CURRENT_BAR);
+		if (barIndex > current) {
+			// evict the bars that the new bar pushes out of the ring
+			for (long i = current == Long.MIN_VALUE ? barIndex : Math.max(current + 1, barIndex - barCount + 1); i <= barIndex; ++i) {
+				int offset = offset(i);
+				add(ROLLING_TRADE_COUNT, -state.get(offset + BAR_TRADE_COUNT));
+				add(ROLLING_VOLUME, -state.get(offset + BAR_VOLUME));
+				add(ROLLING_TURNOVER, -state.get(offset + BAR_TURNOVER));
+				resetBar(offset, i);
+			}
+			state.lazySet(CURRENT_BAR, current = barIndex);
+		}
+		if (barIndex > current - barCount) {
+			int offset = offset(barIndex);
+			if (state.get(offset + BAR_TRADE_COUNT) == 0) {
+				state.lazySet(offset + BAR_OPEN, price);
+				state.lazySet(offset + BAR_HIGH, price);
+				state.lazySet(offset + BAR_LOW, price);
+			}
+			else if (price > state.get(offset + BAR_HIGH)) {
+				state.lazySet(offset + BAR_HIGH, price);
+			}
+			else if (price < state.get(offset + BAR_LOW)) {
+				state.lazySet(offset + BAR_LOW, price);
+			}
+			state.lazySet(offset + BAR_CLOSE, price);
+			add(offset + BAR_TRADE_COUNT, 1);
+			add(offset + BAR_VOLUME, quantity);
+			add(offset + BAR_TURNOVER, total);
+			add(ROLLING_TRADE_COUNT, 1);
+			add(ROLLING_VOLUME, quantity);
+			add(ROLLING_TURNOVER, total);
+		}
+		if (time >= state.get(TIME)) {
+			state.lazySet(TIME, time);
+			state.lazySet(LAST, price);
+		}
+		add(TRADE_COUNT, 1);
+		add(VOLUME, quantity);
+		add(TURNOVER, total);
+		this.sequence = sequence + 2;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[base=0x" + Integer.toHexString(base) + ", counter=0x" + Integer.toHexString(counter) + ", barInterval=" + barInterval + ", barCount=" + barCount + ']';
+	}
+
+	private int offset(long barIndex) {
+		return HEADER_SIZE + (int) (barIndex % barCount) * BAR_SIZE;
+	}
+
+	private void resetBar(int offset, long barIndex) {
+		state.lazySet(offset + BAR_INDEX, barIndex);
+		state.lazySet(offset + BAR_OPEN, -1);
+		state.lazySet(offset + BAR_HIGH, -1);
+		state.lazySet(offset + BAR_LOW, -1);
+		state.lazySet(offset + BAR_CLOSE, -1);
+		state.lazySet(offset + BAR_TRADE_COUNT, 0);
+		state.lazySet(offset + BAR_VOLUME, 0);
+		state.lazySet(offset + BAR_TURNOVER, 0);
+	}
+
+	/**
+	 * Adds to an element of the state array. Only the thread that holds the
+	 * lock on this aggregator writes to the array, so no atomic addition is
+	 * needed.
+	 */
+	private void add(int i, long delta) {
+		state.lazySet(i, state.get(i) + delta);
+	}
+
+	private long vwap(long turnover, long volume) {
+		return volume == 0 ? -1 : turnover * totalDivisor / volume;
+	}
+
+}
@@ -0,0 +1,210 @@
+package uk.co.coinfloor.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the most recent trades of one market, as reported by
+ * {@link NoticeListener#ordersMatched ordersMatched} notices, in a bounded
+ * ring that is allocated up front. Each trade occupies one row of primitive
+ * columns for its time, price, quantity, total and the IDs of the bid and
+ * the ask, and is numbered by a sequence that starts at 0 and never wraps.
+ * Once the ring is full, each new trade overwrites the oldest.
+ * <p>
+ * A tape is registered with a client as a {@link NoticeListener}, for
+ * instance by <code>addNoticeListener(tape, NoticeListener.ORDERS_MATCHED,
+ * base, counter)</code>, and ignores trades in other markets. Readers never
+ * take a lock, so they never block the thread that delivers notices; a
+ * reader detects a row that was overwritten while it was being read and
+ * treats it as gone. Trades are assumed to arrive in order of time, which
+ * lets {@link #findSince(long)} search the ring by bisection.
+ */
+public class TradeTape extends NoticeAdapter {
+
+	/**
+	 * A trade read from a tape. The IDs of the bid and the ask are 0 for
+	 * orders that the notice did not identify.
+	 */
+	public static final class Trade {
+
+		public long sequence, time, price, quantity, total, bid, ask;
+
+		public Trade() {
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[sequence=" + sequence + ", time=" + time + ", price=" + price + ", quantity=" + quantity + ", total=" + total + ", bid=" + bid + ", ask=" + ask + ']';
+		}
+
+	}
+
+	// layout of each row
+	private static final int TIME = 0, PRICE = 1, QUANTITY = 2, TOTAL = 3, BID = 4, ASK = 5, ROW_SIZE = 6;
+
+	final int base, counter, capacity;
+
+	private final AtomicLongArray rows;
+	private final AtomicLong claimed = new AtomicLong(); // trades whose rows have been or are being written
+	private final AtomicLong published = new AtomicLong(); // trades whose rows have been written
+
+	/**
+	 * Constructs a tape of the specified market that holds up to the
+	 * specified number of trades.
+	 */
+	public TradeTape(int base, int counter, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.base = base;
+		this.counter = counter;
+		this.capacity = capacity;
+		rows = new AtomicLongArray(capacity * ROW_SIZE);
+	}
+
+	public final int getBase() {
+		return base;
+	}
+
+	public final int getCounter() {
+		return counter;
+	}
+
+	public final int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of trades that have been recorded, which is also the
+	 * sequence that the next trade will have.
+	 */
+	public final long getCount() {
+		return published.get();
+	}
+
+	/**
+	 * Returns the sequence of the oldest trade that is still held.
+	 */
+	public final long getFirstSequence() {
+		return Math.max(claimed.get() - capacity, 0);
+	}
+
+	/**
+	 * Reads the trade with the specified sequence into the given trade and
+	 * returns whether it is held, which it is not if it has not yet been
+	 * recorded or has been overwritten.
+	 */
+	public final boolean get(long sequence, Trade trade) {
+		if (sequence < 0 || sequence >= published.get()) {
+			return false;
+		}
+		int offset = offset(sequence);
+		trade.time = rows.get(offset + TIME);
+		trade.price = rows.get(offset + PRICE);
+		trade.quantity = rows.get(offset + QUANTITY);
+		trade.total = rows.get(offset + TOTAL);
+		trade.bid = rows.get(offset + BID);
+		trade.ask = rows.get(offset + ASK);
+		trade.sequence = sequence;
+		return sequence >= claimed.get() - capacity;
+	}
+
+	/**
+	 * Returns the sequence of the oldest held trade whose time is at or after
+	 * the specified time, or {@link #getCount()} if there is no such trade.
+	 */
+	public final long findSince(long time) {
+		for (;;) {
+			long first = getFirstSequence(), low = first, high = published.get();
+			while (low < high) {
+				long mid = low + high >>> 1;
+				if (rows.get(offset(mid) + TIME) < time) {
+					low = mid + 1;
+				}
+				else {
+					high = mid;
+				}
+			}
+			// the search is valid only if no row that it read was overwritten
+			if (first >= claimed.get() - capacity) {
+				return low;
+			}
+		}
+	}
+
+	/**
+	 * Reads the most recent trades into the given array, newest first, and
+	 * returns the number read. Any <code>null</code> element of the array is
+	 * replaced by a new trade.
+	 */
+	public final int getLast(Trade[] trades) {
+		long sequence = published.get();
+		int n = 0;
+		while (n < trades.length && --sequence >= 0) {
+			Trade trade = trades[n];
+			if (trade == null) {
+				trades[n] = trade = new Trade();
+			}
+			if (!get(sequence, trade)) {
+				break;
+			}
+			++n;
+		}
+		return n;
+	}
+
+	/**
+	 * Reads the held trades whose time is at or after the specified time into
+	 * the given array, oldest first, and returns the number read. Any
+	 * <code>null</code> element of the array is replaced by a new trade. If
+	 * the array is too small, the oldest such trades are read, and the rest
+	 * may be read by a further call from the time of the last trade read.
+	 */
+	public final int getSince(long time, Trade[] trades) {
+		for (;;) {
+			long sequence = findSince(time);
+			int n = 0;
+			while (n < trades.length) {
+				Trade trade = trades[n];
+				if (trade == null) {
+					trades[n] = trade = new Trade();
+				}
+				if (!get(sequence + n, trade)) {
+					break;
+				}
+				++n;
+			}
+			// start again if the first trade was overwritten before it could be read
+			if (n > 0 || sequence >= getFirstSequence()) {
+				return n;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void ordersMatched(long bid, long bidTonce, long ask, long askTonce, int base, int counter, long quantity, long price, long total, long bidRem, long askRem, long time, long bidBaseFee, long bidCounterFee, long askBaseFee, long askCounterFee) {
+		if (base != this.base || counter != this.counter) {
+			return;
+		}
+		long sequence = published.get();
+		claimed.set(sequence + 1);
+		int offset = offset(sequence);
+		rows.lazySet(offset + TIME, time);
+		rows.lazySet(offset + PRICE, price);
+		rows.lazySet(offset + QUANTITY, quantity);
+		rows.lazySet(offset + TOTAL, total);
+		rows.lazySet(offset + BID, bid < 0 ? 0 : bid);
+		rows.lazySet(offset + ASK, ask < 0 ? 0 : ask);
+		published.lazySet(sequence + 1);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[base=0x" + Integer.toHexString(base) + ", counter=0x" + Integer.toHexString(counter) + ", capacity=" + capacity + ", count=" + published.get() + ']';
+	}
+
+	private int offset(long sequence) {
+		return (int) (sequence % capacity) * ROW_SIZE;
+	}
+
+}
@@ -257,7 +257,7 @@ class WebSocket implements Closeable {
 
 	}
 
-	private static class MaskedMessageOutputStream extends MessageOutputStream {
+	static class MaskedMessageOutputStream extends MessageOutputStream {
 
 		static final int MASK_OFFSET = MessageOutputStream.PAYLOAD_OFFSET, PAYLOAD_OFFSET = MASK_OFFSET + 4;
 
@@ -568,6 +568,23 @@ class WebSocket implements Closeable {
 		return mask ? new MaskedMessageOutputStream(out, flags, opcode, secureRandom) : new MessageOutputStream(out, flags, opcode);
 	}
 
+	/**
+	 * Returns a stream that frames a message onto the given stream rather
+	 * than onto the socket, so that the frames of several messages may be
+	 * collected and then sent together by {@link #send(byte[], int, int)}.
+	 */
+	public MessageOutputStream getOutputStream(OutputStream out, int flags, int opcode, boolean mask) {
+		return mask ? new MaskedMessageOutputStream(out, flags, opcode, secureRandom) : new MessageOutputStream(out, flags, opcode);
+	}
+
+	/**
+	 * Writes already framed messages to the socket in a single write.
+	 */
+	public void send(byte[] buf, int off, int len) throws IOException {
+		out.write(buf, off, len);
+		out.flush();
+	}
+
 	@Override
 	public void close() {
 		// TODO send proper disconnection message
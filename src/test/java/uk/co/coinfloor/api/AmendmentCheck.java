@@ -0,0 +1,122 @@
+package uk.co.coinfloor.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A standalone check that the two legs of an amendment are admitted by the
+ * in-flight window and the rate limiters together, run against a loopback
+ * {@link SimulatedExchange}. When a limiter or the window is saturated, both
+ * legs must fail without either reaching the server, and when a limiter
+ * queues the amendment, the cancellation must still reach the server
+ * immediately before the placement. Exits with a nonzero status if any check
+ * fails.
+ * <p>
+ * As for {@link Benchmark}, the Bouncy Castle provider is needed on the class
+ * path when run on Java 16 or newer.
+ */
+public class AmendmentCheck {
+
+	static final int XBT = Example.XBT, GBP = Example.GBP;
+
+	private final List<String> methods = new ArrayList<String>();
+	private int failures;
+
+	public static void main(String[] args) throws Exception {
+		Benchmark.useBouncyCastleIfPresent();
+		AmendmentCheck check = new AmendmentCheck();
+		check.run();
+		if (check.failures > 0) {
+			System.out.println(check.failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+	}
+
+	void run() throws Exception {
+		SimulatedExchange exchange = new SimulatedExchange() {
+
+			@Override
+			protected Map<String, Object> handleRequest(Session session, String method, Map<?, ?> request) throws CoinfloorException {
+				synchronized (methods) {
+					methods.add(method);
+				}
+				return super.handleRequest(session, method, request);
+			}
+
+		};
+		try {
+			exchange.addUser(1, "cookie", "passphrase");
+			exchange.setBalance(1, XBT, 1000000000L);
+			exchange.setBalance(1, GBP, 1000000000L);
+			Coinfloor coinfloor = new Coinfloor();
+			coinfloor.connect(exchange.getURI());
+			coinfloor.authenticate(1, "cookie", "passphrase");
+			try {
+				long id = coinfloor.placeLimitOrder(XBT, GBP, 10000, 30000, 1, true);
+
+				// a rejecting limiter of the cancellations that has no permit left
+				RateLimiter limiter = new RateLimiter(0.001, 1, RateLimiter.MODE_REJECT);
+				limiter.tryAcquire();
+				coinfloor.setRateLimiter("CancelOrder", limiter);
+				expectRejected("rejecting limiter", coinfloor, id);
+				coinfloor.setRateLimiter("CancelOrder", null);
+
+				// an in-flight window with room for only one of the legs
+				coinfloor.setMaxInFlight(1, 0, TimeUnit.SECONDS);
+				expectRejected("in-flight window", coinfloor, id);
+				coinfloor.setMaxInFlight(0, 0, TimeUnit.SECONDS);
+
+				// a queueing global limiter that has no permit left
+				limiter = new RateLimiter(20, 1, RateLimiter.MODE_QUEUE);
+				limiter.tryAcquire();
+				coinfloor.setRateLimiter(limiter);
+				clearMethods();
+				Coinfloor.AmendResult result = coinfloor.amendOrder(id, XBT, GBP, 12000, 30100, 2, true);
+				coinfloor.setRateLimiter(null);
+				List<String> sent = getMethods();
+				check("queueing limiter: both legs succeed", result.isCancelled() && result.isPlaced());
+				check("queueing limiter: cancellation sent just before placement " + sent, sent.indexOf("CancelOrder") >= 0 && sent.indexOf("CancelOrder") + 1 == sent.indexOf("PlaceOrder"));
+				check("queueing limiter: only the new order is open", coinfloor.getOrders().keySet().equals(Collections.singleton(result.id)));
+			}
+			finally {
+				coinfloor.disconnect();
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private void expectRejected(String name, Coinfloor coinfloor, long id) throws Exception {
+		clearMethods();
+		Coinfloor.AmendResult result = coinfloor.amendOrder(id, XBT, GBP, 12000, 30100, 0, true);
+		check(name + ": both legs rejected", result.cancelException instanceof RejectedExecutionException && result.placeException instanceof RejectedExecutionException);
+		check(name + ": nothing sent " + getMethods(), getMethods().isEmpty());
+		check(name + ": the old order is still open", coinfloor.getOrders().keySet().equals(Collections.singleton(id)));
+	}
+
+	private void clearMethods() {
+		synchronized (methods) {
+			methods.clear();
+		}
+	}
+
+	private List<String> getMethods() {
+		synchronized (methods) {
+			return new ArrayList<String>(methods);
+		}
+	}
+
+	private void check(String name, boolean passed) {
+		System.out.println((passed ? "pass: " : "FAIL: ") + name);
+		if (!passed) {
+			++failures;
+		}
+	}
+
+}
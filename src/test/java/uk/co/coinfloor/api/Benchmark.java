@@ -0,0 +1,493 @@
+package uk.co.coinfloor.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PushbackReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A standalone benchmark driver. It measures the JSON codec, WebSocket
+ * framing and {@link AsyncResult} handoff in isolation, and pipelined request
+ * latency, notice throughput and notice-to-order ("tick-to-trade") latency
+ * end to end against a loopback {@link SimulatedExchange}. Results are
+ * written as JSON so that runs against different releases can be compared.
+ * <p>
+ * Authentication uses secp224k1, which newer JDKs can no longer sign with, so
+ * the end-to-end benchmarks need the Bouncy Castle provider on the class path
+ * when run on Java 16 or newer.
+ */
+public class Benchmark {
+
+	/**
+	 * A unit of work to be timed.
+	 */
+	interface Operation {
+
+		public void run(int iterations) throws Exception;
+
+	}
+
+	static final int XBT = Example.XBT, GBP = Example.GBP;
+
+	static final Charset utf8 = Charset.forName("UTF-8");
+
+	static final String ORDERS_MATCHED = "{\"notice\":\"OrdersMatched\",\"bid\":123456789,\"bid_tonce\":1414141414141,\"ask\":123456790,\"base\":63488,\"counter\":64032,\"quantity\":12500,\"price\":32075,\"total\":40093,\"bid_rem\":0,\"ask_rem\":7500,\"time\":1414141414141414,\"bid_base_fee\":0,\"bid_counter_fee\":120}";
+
+	private final List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+	private final long measurementNanos;
+
+	Benchmark(long measurementNanos) {
+		this.measurementNanos = measurementNanos;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String output = args.length > 0 ? args[0] : "benchmark-results.json";
+		String filter = args.length > 1 ? args[1] : "";
+		Benchmark benchmark = new Benchmark(TimeUnit.SECONDS.toNanos(1));
+		if ("json.parse".startsWith(filter)) {
+			benchmark.jsonParse();
+		}
+		if ("json.format".startsWith(filter)) {
+			benchmark.jsonFormat();
+		}
+		if ("framing".startsWith(filter)) {
+			benchmark.framing();
+		}
+		if ("asyncresult".startsWith(filter)) {
+			benchmark.asyncResultHandoff();
+		}
+		if ("footprint".startsWith(filter)) {
+			benchmark.footprint(10000);
+			benchmark.footprint(100000);
+		}
+		if ("e2e".startsWith(filter)) {
+			useBouncyCastleIfPresent();
+			benchmark.pipelinedRoundTrip(100000, 64);
+			benchmark.noticeThroughput(500000);
+			benchmark.tickToTrade(20000);
+		}
+		benchmark.write(output);
+	}
+
+	void jsonParse() throws Exception {
+		measure("json.parse.ordersMatched", new Operation() {
+
+			@Override
+			public void run(int iterations) throws IOException {
+				for (int i = 0; i < iterations; ++i) {
+					JSON.parse(new PushbackReader(new StringReader(ORDERS_MATCHED)));
+				}
+			}
+
+		});
+	}
+
+	void jsonFormat() throws Exception {
+		final Map<String, Object> request = new LinkedHashMap<String, Object>();
+		request.put("method", "PlaceOrder");
+		request.put("base", XBT);
+		request.put("counter", GBP);
+		request.put("quantity", 12500L);
+		request.put("price", 32075L);
+		request.put("tonce", 1414141414141L);
+		request.put("tag", 42);
+		measure("json.format.placeOrder", new Operation() {
+
+			@Override
+			public void run(int iterations) throws IOException {
+				StringWriter writer = new StringWriter(128);
+				for (int i = 0; i < iterations; ++i) {
+					writer.getBuffer().setLength(0);
+					JSON.format(writer, request);
+				}
+			}
+
+		});
+	}
+
+	void framing() throws Exception {
+		final byte[] payload = ORDERS_MATCHED.getBytes(utf8);
+		final Random random = new Random();
+		measure("framing.maskedOutput", new Operation() {
+
+			@Override
+			public void run(int iterations) throws IOException {
+				ByteArrayOutputStream sink = new ByteArrayOutputStream(payload.length + 16);
+				for (int i = 0; i < iterations; ++i) {
+					sink.reset();
+					WebSocket.MessageOutputStream out = new WebSocket.MaskedMessageOutputStream(sink, 0, WebSocket.OP_TEXT, random);
+					out.write(payload);
+					out.close();
+				}
+			}
+
+		});
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		WebSocket.MessageOutputStream out = new WebSocket.MaskedMessageOutputStream(sink, 0, WebSocket.OP_TEXT, random);
+		out.write(payload);
+		out.close();
+		final byte[] frame = sink.toByteArray();
+		measure("framing.input", new Operation() {
+
+			@Override
+			public void run(int iterations) throws IOException {
+				byte[] buffer = new byte[payload.length];
+				for (int i = 0; i < iterations; ++i) {
+					WebSocket.MessageInputStream in = new WebSocket.MessageInputStream(new ByteArrayInputStream(frame));
+					for (int off = 0, n; (n = in.read(buffer, off, buffer.length - off)) > 0;) {
+						off += n;
+					}
+				}
+			}
+
+		});
+	}
+
+	void asyncResultHandoff() throws Exception {
+		measure("asyncResult.handoff", new Operation() {
+
+			@Override
+			public void run(final int iterations) throws Exception {
+				final AsyncResult<?>[] slots = new AsyncResult<?>[iterations];
+				for (int i = 0; i < iterations; ++i) {
+					slots[i] = new AsyncResult<Object>();
+				}
+				Thread completer = new Thread() {
+
+					@Override
+					@SuppressWarnings("unchecked")
+					public void run() {
+						for (int i = 0; i < iterations; ++i) {
+							((AsyncResult<Object>) slots[i]).operationCompleted(this);
+						}
+					}
+
+				};
+				completer.start();
+				for (int i = 0; i < iterations; ++i) {
+					slots[i].get();
+				}
+				completer.join();
+			}
+
+		});
+	}
+
+	/**
+	 * Measures the heap retained by the specified number of orders held in a
+	 * map of {@link Coinfloor.OrderInfo}, as returned by
+	 * {@link Coinfloor#getOrders()}, and in an {@link OrderTable}.
+	 */
+	void footprint(int count) {
+		Object[] holder = new Object[1];
+		long before = usedMemory();
+		HashMap<Long, Coinfloor.OrderInfo> map = new HashMap<Long, Coinfloor.OrderInfo>();
+		for (int i = 0; i < count; ++i) {
+			map.put(1000000L + i, new Coinfloor.OrderInfo(1414141414141L + i, XBT, GBP, 10000 + i, 30000 + i, 1414141414141414L + i));
+		}
+		holder[0] = map;
+		long mapBytes = usedMemory() - before;
+		holder[0] = map = null;
+		before = usedMemory();
+		OrderTable table = new OrderTable();
+		for (int i = 0; i < count; ++i) {
+			table.put(1000000L + i, 1414141414141L + i, XBT, GBP, 10000 + i, 30000 + i, 1414141414141414L + i);
+		}
+		holder[0] = table;
+		long tableBytes = usedMemory() - before;
+		Map<String, Object> result = result("footprint.orderInfoMap." + count, "bytes/order", (double) mapBytes / count);
+		result.put("count", count);
+		record(result);
+		result = result("footprint.orderTable." + count, "bytes/order", (double) tableBytes / count);
+		result.put("count", count);
+		record(result);
+		if (holder[0] == null) { // keep the table reachable until it has been measured
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Measures the round-trip latency of requests pipelined with the given
+	 * number of requests in flight.
+	 */
+	void pipelinedRoundTrip(int count, int window) throws Exception {
+		SimulatedExchange server = new SimulatedExchange();
+		server.addUser(1, "cookie", "passphrase");
+		Coinfloor coinfloor = new Coinfloor();
+		try {
+			coinfloor.connect(server.getURI());
+			coinfloor.authenticate(1, "cookie", "passphrase");
+			for (int pass = 0; pass < 2; ++pass) { // the first pass is a warm-up
+				final long[] latencies = new long[count];
+				final Semaphore inFlight = new Semaphore(window);
+				final CountDownLatch done = new CountDownLatch(count);
+				long start = System.nanoTime();
+				for (int i = 0; i < count; ++i) {
+					inFlight.acquire();
+					final int index = i;
+					final long sent = System.nanoTime();
+					coinfloor.getTradeVolumeAsync(XBT, new Callback<Long>() {
+
+						@Override
+						public void operationCompleted(Long result) {
+							latencies[index] = System.nanoTime() - sent;
+							inFlight.release();
+							done.countDown();
+						}
+
+						@Override
+						public void operationFailed(Exception exception) {
+							operationCompleted(null);
+						}
+
+					});
+				}
+				done.await();
+				long elapsed = System.nanoTime() - start;
+				if (pass > 0) {
+					Map<String, Object> result = latencyResult("e2e.pipelinedRoundTrip", latencies);
+					result.put("window", window);
+					result.put("requestsPerSecond", count * 1e9 / elapsed);
+					record(result);
+				}
+			}
+		}
+		finally {
+			coinfloor.disconnect();
+			server.close();
+		}
+	}
+
+	/**
+	 * Measures the rate at which notices pass through the pump to a notice
+	 * hook.
+	 */
+	void noticeThroughput(final int count) throws Exception {
+		MockServer server = new MockServer();
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicLong received = new AtomicLong();
+		Coinfloor coinfloor = new Coinfloor() {
+
+			@Override
+			protected void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+				if (received.incrementAndGet() == count) {
+					done.countDown();
+				}
+			}
+
+		};
+		try {
+			coinfloor.connect(server.getURI());
+			coinfloor.watchTicker(XBT, GBP, true);
+			long start = System.nanoTime();
+			server.emit(new MockServer.NoticeGenerator() {
+
+				@Override
+				public Map<String, ?> next(long sequence) {
+					Map<String, Object> notice = new LinkedHashMap<String, Object>();
+					notice.put("notice", "TickerChanged");
+					notice.put("base", XBT);
+					notice.put("counter", GBP);
+					notice.put("last", 30000 + sequence % 100);
+					notice.put("bid", 29990 + sequence % 100);
+					notice.put("ask", 30010 + sequence % 100);
+					return notice;
+				}
+
+			}, 0, count);
+			done.await();
+			Map<String, Object> result = result("e2e.noticeThroughput", "notices/s", count * 1e9 / (System.nanoTime() - start));
+			result.put("count", count);
+			record(result);
+		}
+		finally {
+			coinfloor.disconnect();
+			server.close();
+		}
+	}
+
+	/**
+	 * Measures the time from the server sending a ticker notice to it
+	 * receiving the order that a strategy places in reaction.
+	 */
+	void tickToTrade(final int count) throws Exception {
+		final long[] sent = new long[count], latencies = new long[count];
+		final CountDownLatch done = new CountDownLatch(count);
+		final SimulatedExchange server = new SimulatedExchange() {
+
+			@Override
+			protected Map<String, Object> handleRequest(Session session, String method, Map<?, ?> request) throws CoinfloorException {
+				Object tonce = request.get("tonce");
+				if ("PlaceOrder".equals(method) && tonce != null) {
+					int tick = (int) (((Number) tonce).longValue() - 1);
+					latencies[tick] = System.nanoTime() - sent[tick];
+					done.countDown();
+				}
+				return super.handleRequest(session, method, request);
+			}
+
+		};
+		server.addUser(1, "cookie", "passphrase");
+		final Coinfloor coinfloor = new Coinfloor() {
+
+			@Override
+			protected void tickerChanged(int base, int counter, long last, long bid, long ask, long low, long high, long volume) {
+				try {
+					placeLimitOrderAsync(base, counter, 1, bid, last + 1, false, new Callback<Long>() {
+
+						@Override
+						public void operationCompleted(Long result) {
+						}
+
+						@Override
+						public void operationFailed(Exception exception) {
+						}
+
+					});
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+		};
+		try {
+			coinfloor.connect(server.getURI());
+			coinfloor.authenticate(1, "cookie", "passphrase");
+			coinfloor.watchTicker(XBT, GBP, true);
+			server.emit(new MockServer.NoticeGenerator() {
+
+				@Override
+				public Map<String, ?> next(long sequence) {
+					Map<String, Object> notice = new LinkedHashMap<String, Object>();
+					notice.put("notice", "TickerChanged");
+					notice.put("base", XBT);
+					notice.put("counter", GBP);
+					notice.put("last", sequence); // the strategy uses this as its tonce, less one
+					notice.put("bid", 30000L);
+					sent[(int) sequence] = System.nanoTime();
+					return notice;
+				}
+
+			}, 10000, count);
+			done.await();
+			record(latencyResult("e2e.tickToTrade", latencies));
+		}
+		finally {
+			coinfloor.disconnect();
+			server.close();
+		}
+	}
+
+	/**
+	 * Runs the operation repeatedly for warm-up and then for five measured
+	 * iterations, each lasting about the measurement time.
+	 */
+	void measure(String name, Operation operation) throws Exception {
+		int batch = 1;
+		for (long deadline = System.nanoTime() + measurementNanos; System.nanoTime() < deadline; batch <<= batch < 1 << 20 ? 1 : 0) {
+			operation.run(batch);
+		}
+		double[] samples = new double[5];
+		for (int i = 0; i < samples.length; ++i) {
+			long operations = 0, start = System.nanoTime(), elapsed;
+			do {
+				operation.run(batch);
+				operations += batch;
+			} while ((elapsed = System.nanoTime() - start) < measurementNanos);
+			samples[i] = (double) elapsed / operations;
+		}
+		double mean = 0, variance = 0;
+		for (double sample : samples) {
+			mean += sample / samples.length;
+		}
+		for (double sample : samples) {
+			variance += (sample - mean) * (sample - mean) / (samples.length - 1);
+		}
+		Map<String, Object> result = result(name, "ns/op", mean);
+		result.put("stddev", Math.sqrt(variance));
+		result.put("opsPerSecond", 1e9 / mean);
+		record(result);
+	}
+
+	void record(Map<String, Object> result) {
+		System.out.println(result);
+		results.add(result);
+	}
+
+	void write(String path) throws IOException {
+		Map<String, Object> document = new LinkedHashMap<String, Object>();
+		document.put("time", System.currentTimeMillis());
+		document.put("javaVersion", System.getProperty("java.version"));
+		document.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+		document.put("results", results);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(path), utf8);
+		try {
+			JSON.format(writer, document);
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; ++i) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	static Map<String, Object> result(String name, String unit, double value) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("name", name);
+		result.put("unit", unit);
+		result.put("value", value);
+		return result;
+	}
+
+	static Map<String, Object> latencyResult(String name, long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		Map<String, Object> result = result(name, "ns", (double) percentile(sorted, 0.5));
+		result.put("p50", percentile(sorted, 0.5));
+		result.put("p90", percentile(sorted, 0.9));
+		result.put("p99", percentile(sorted, 0.99));
+		result.put("p999", percentile(sorted, 0.999));
+		result.put("max", sorted[sorted.length - 1]);
+		result.put("count", sorted.length);
+		return result;
+	}
+
+	static long percentile(long[] sorted, double fraction) {
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+	}
+
+	static void useBouncyCastleIfPresent() {
+		try {
+			Security.insertProviderAt((Provider) Class.forName("org.bouncycastle.jce.provider.BouncyCastleProvider").newInstance(), 1);
+		}
+		catch (Exception ignored) {
+		}
+	}
+
+}
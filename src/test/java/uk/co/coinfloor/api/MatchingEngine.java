@@ -0,0 +1,368 @@
+package uk.co.coinfloor.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A deterministic, in-memory, price-time priority matching engine for any
+ * number of markets. Quantities are signed as in the Coinfloor API: positive
+ * for bids (buy orders) and negative for asks (sell orders). Totals are
+ * computed as quantity times price divided by the market's total divisor
+ * (10,000 unless set otherwise, as for XBT:GBP).
+ * <p>
+ * The engine does not check that users can afford their orders; it merely
+ * reports the resulting balance changes.
+ */
+public class MatchingEngine {
+
+	/**
+	 * Receives the events produced by the engine, in order, while the engine's
+	 * lock is held.
+	 */
+	public interface Listener {
+
+		public void orderOpened(Order order);
+
+		/**
+		 * Reports a trade between a bid and an ask. The taker may be a market
+		 * order, in which case its ID is 0.
+		 */
+		public void ordersMatched(Order bid, Order ask, int base, int counter, long quantity, long price, long total, long time);
+
+		public void orderClosed(Order order);
+
+		public void balanceChanged(long userID, int asset, long delta);
+
+	}
+
+	public static class Order {
+
+		public final long id, userID, tonce;
+		public final int base, counter;
+		public final long price, time;
+
+		long quantity;
+
+		Order(long id, long userID, long tonce, int base, int counter, long quantity, long price, long time) {
+			this.id = id;
+			this.userID = userID;
+			this.tonce = tonce;
+			this.base = base;
+			this.counter = counter;
+			this.quantity = quantity;
+			this.price = price;
+			this.time = time;
+		}
+
+		/**
+		 * Returns the remaining quantity of this order, signed as it was
+		 * placed.
+		 */
+		public long getQuantity() {
+			return quantity;
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + "[id=" + id + ", userID=" + userID + ", tonce=" + tonce + ", base=0x" + Integer.toHexString(base) + ", counter=0x" + Integer.toHexString(counter) + ", quantity=" + quantity + ", price=" + price + ", time=" + time + ']';
+		}
+
+	}
+
+	private static class Level {
+
+		final ArrayDeque<Order> orders = new ArrayDeque<Order>();
+
+		Level() {
+		}
+
+	}
+
+	private static class Market {
+
+		final int base, counter;
+		final long totalDivisor;
+		final TreeMap<Long, Level> bids = new TreeMap<Long, Level>(Collections.reverseOrder()), asks = new TreeMap<Long, Level>();
+
+		Market(int base, int counter, long totalDivisor) {
+			this.base = base;
+			this.counter = counter;
+			this.totalDivisor = totalDivisor;
+		}
+
+	}
+
+	public static final long DEFAULT_TOTAL_DIVISOR = 10000;
+
+	public static final int ERROR_BAD_REQUEST = MockServer.ERROR_BAD_REQUEST;
+	public static final int ERROR_NOT_FOUND = MockServer.ERROR_NOT_FOUND;
+	public static final int ERROR_CONFLICT = MockServer.ERROR_CONFLICT;
+
+	private final Listener listener;
+	private final HashMap<Integer, Market> markets = new HashMap<Integer, Market>();
+	private final HashMap<Long, Order> orders = new HashMap<Long, Order>();
+	private final HashMap<Long, HashSet<Long>> tonces = new HashMap<Long, HashSet<Long>>();
+	private final HashMap<Long, HashMap<Long, Order>> ordersByTonce = new HashMap<Long, HashMap<Long, Order>>();
+
+	private long idCounter, clock;
+
+	public MatchingEngine(Listener listener) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the divisor used to compute totals in the specified market.
+	 */
+	public synchronized void addMarket(int base, int counter, long totalDivisor) {
+		markets.put(base << 16 | counter, new Market(base, counter, totalDivisor));
+	}
+
+	public synchronized Order placeLimitOrder(long userID, int base, int counter, long quantity, long price, long tonce, boolean persist) throws CoinfloorException {
+		if (quantity == 0 || price <= 0) {
+			throw new CoinfloorException(ERROR_BAD_REQUEST, "invalid quantity or price");
+		}
+		claimTonce(userID, tonce);
+		Market market = market(base, counter);
+		Order order = new Order(++idCounter, userID, tonce, base, counter, quantity, price, now());
+		match(market, order, Long.MAX_VALUE);
+		if (order.quantity != 0 && persist) {
+			TreeMap<Long, Level> side = quantity > 0 ? market.bids : market.asks;
+			Level level = side.get(price);
+			if (level == null) {
+				side.put(price, level = new Level());
+			}
+			level.orders.addLast(order);
+			orders.put(order.id, order);
+			if (tonce > 0) {
+				ordersByTonce.get(userID).put(tonce, order);
+			}
+			listener.orderOpened(order);
+		}
+		return order;
+	}
+
+	/**
+	 * Executes a market order for the specified quantity (if the total is 0)
+	 * or for the specified total (if the quantity is 0). Returns the remaining
+	 * unfilled quantity or total.
+	 */
+	public synchronized long executeMarketOrder(long userID, int base, int counter, long quantity, long total, long tonce) throws CoinfloorException {
+		if ((quantity == 0) == (total == 0)) {
+			throw new CoinfloorException(ERROR_BAD_REQUEST, "exactly one of quantity and total must be given");
+		}
+		claimTonce(userID, tonce);
+		Market market = market(base, counter);
+		if (quantity != 0) {
+			Order order = new Order(0, userID, tonce, base, counter, quantity, quantity > 0 ? Long.MAX_VALUE : 0, now());
+			match(market, order, Long.MAX_VALUE);
+			return order.quantity;
+		}
+		Order order = new Order(0, userID, tonce, base, counter, total > 0 ? Long.MAX_VALUE : -Long.MAX_VALUE, total > 0 ? Long.MAX_VALUE : 0, now());
+		return match(market, order, Math.abs(total)) * Long.signum(total);
+	}
+
+	/**
+	 * Returns the quantity and total that a market order for the specified
+	 * quantity (if the total is 0) or total (if the quantity is 0) would
+	 * trade, without executing it.
+	 */
+	public synchronized long[] estimateMarketOrder(int base, int counter, long quantity, long total) {
+		Market market = market(base, counter);
+		boolean buy = quantity > 0 || total > 0;
+		long remainingQuantity = quantity == 0 ? Long.MAX_VALUE : Math.abs(quantity), remainingTotal = total == 0 ? Long.MAX_VALUE : Math.abs(total);
+		long tradedQuantity = 0, tradedTotal = 0;
+		walk: for (Level level : (buy ? market.asks : market.bids).values()) {
+			for (Order maker : level.orders) {
+				long q = Math.min(remainingQuantity, Math.abs(maker.quantity));
+				if (remainingTotal != Long.MAX_VALUE) {
+					q = Math.min(q, remainingTotal * market.totalDivisor / maker.price);
+				}
+				if (q <= 0) {
+					break walk;
+				}
+				long t = q * maker.price / market.totalDivisor;
+				tradedQuantity += q;
+				tradedTotal += t;
+				remainingQuantity -= q;
+				remainingTotal -= remainingTotal == Long.MAX_VALUE ? 0 : t;
+			}
+		}
+		return new long[] { buy ? tradedQuantity : -tradedQuantity, buy ? tradedTotal : -tradedTotal };
+	}
+
+	public synchronized Order cancelOrder(long userID, long id) throws CoinfloorException {
+		Order order = orders.get(id);
+		if (order == null || order.userID != userID) {
+			throw new CoinfloorException(ERROR_NOT_FOUND, "no such order");
+		}
+		remove(order);
+		return order;
+	}
+
+	public synchronized Order cancelOrderByTonce(long userID, long tonce) throws CoinfloorException {
+		HashMap<Long, Order> map = ordersByTonce.get(userID);
+		Order order = map == null ? null : map.get(tonce);
+		if (order == null) {
+			throw new CoinfloorException(ERROR_NOT_FOUND, "no such order");
+		}
+		remove(order);
+		return order;
+	}
+
+	public synchronized List<Order> cancelAllOrders(long userID) {
+		List<Order> ret = getOrders(userID);
+		for (Order order : ret) {
+			remove(order);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the open orders of the specified user in all markets.
+	 */
+	public synchronized List<Order> getOrders(long userID) {
+		ArrayList<Order> ret = new ArrayList<Order>();
+		for (Order order : orders.values()) {
+			if (order.userID == userID) {
+				ret.add(order);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns all open orders in the specified market, bids first.
+	 */
+	public synchronized List<Order> getOrders(int base, int counter) {
+		Market market = market(base, counter);
+		ArrayList<Order> ret = new ArrayList<Order>();
+		for (Level level : market.bids.values()) {
+			ret.addAll(level.orders);
+		}
+		for (Level level : market.asks.values()) {
+			ret.addAll(level.orders);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the best bid and ask prices of the specified market, or -1 for
+	 * an empty side.
+	 */
+	public synchronized long[] getBestPrices(int base, int counter) {
+		Market market = market(base, counter);
+		return new long[] { market.bids.isEmpty() ? -1 : market.bids.firstKey(), market.asks.isEmpty() ? -1 : market.asks.firstKey() };
+	}
+
+	/**
+	 * Returns the time stamp to be given to the next order, in microseconds.
+	 * Successive calls return strictly increasing values, so that the outcome
+	 * of matching never depends on the wall clock.
+	 */
+	protected long now() {
+		return clock = Math.max(clock + 1, System.currentTimeMillis() * 1000);
+	}
+
+	/**
+	 * Matches the taker against the opposite side of the book until its
+	 * quantity is exhausted, its price no longer crosses, or (for market
+	 * orders by total) the specified total is spent. Returns the unspent
+	 * total.
+	 */
+	private long match(Market market, Order taker, long total) {
+		boolean buy = taker.quantity > 0;
+		TreeMap<Long, Level> side = buy ? market.asks : market.bids;
+		for (Iterator<Map.Entry<Long, Level>> it = side.entrySet().iterator(); taker.quantity != 0 && total > 0 && it.hasNext();) {
+			Map.Entry<Long, Level> entry = it.next();
+			long price = entry.getKey();
+			if (buy ? price > taker.price : price < taker.price) {
+				break;
+			}
+			ArrayDeque<Order> queue = entry.getValue().orders;
+			while (taker.quantity != 0 && total > 0 && !queue.isEmpty()) {
+				Order maker = queue.peekFirst();
+				long quantity = Math.min(Math.abs(taker.quantity), Math.abs(maker.quantity));
+				if (total != Long.MAX_VALUE) {
+					quantity = Math.min(quantity, total * market.totalDivisor / price);
+					if (quantity <= 0) {
+						// the unspent total cannot buy a single unit
+						taker.quantity = 0;
+						break;
+					}
+				}
+				long amount = quantity * price / market.totalDivisor;
+				if (total != Long.MAX_VALUE) {
+					total -= amount;
+				}
+				taker.quantity -= buy ? quantity : -quantity;
+				maker.quantity -= buy ? -quantity : quantity;
+				Order bid = buy ? taker : maker, ask = buy ? maker : taker;
+				listener.ordersMatched(bid, ask, market.base, market.counter, quantity, price, amount, now());
+				listener.balanceChanged(bid.userID, market.base, quantity);
+				listener.balanceChanged(bid.userID, market.counter, -amount);
+				listener.balanceChanged(ask.userID, market.base, -quantity);
+				listener.balanceChanged(ask.userID, market.counter, amount);
+				if (maker.quantity == 0) {
+					queue.removeFirst();
+					forget(maker);
+					listener.orderClosed(maker);
+				}
+			}
+			if (queue.isEmpty()) {
+				it.remove();
+			}
+		}
+		return total == Long.MAX_VALUE ? 0 : total;
+	}
+
+	private void remove(Order order) {
+		forget(order);
+		Market market = markets.get(order.base << 16 | order.counter);
+		TreeMap<Long, Level> side = order.quantity > 0 ? market.bids : market.asks;
+		Level level = side.get(order.price);
+		level.orders.remove(order);
+		if (level.orders.isEmpty()) {
+			side.remove(order.price);
+		}
+		listener.orderClosed(order);
+	}
+
+	private void forget(Order order) {
+		orders.remove(order.id);
+		if (order.tonce > 0) {
+			ordersByTonce.get(order.userID).remove(order.tonce);
+		}
+	}
+
+	private void claimTonce(long userID, long tonce) throws CoinfloorException {
+		if (tonce > 0) {
+			HashSet<Long> set = tonces.get(userID);
+			if (set == null) {
+				tonces.put(userID, set = new HashSet<Long>());
+				ordersByTonce.put(userID, new HashMap<Long, Order>());
+			}
+			if (!set.add(tonce)) {
+				throw new CoinfloorException(ERROR_CONFLICT, "tonce has already been used");
+			}
+		}
+	}
+
+	private Market market(int base, int counter) {
+		Market market = markets.get(base << 16 | counter);
+		if (market == null) {
+			markets.put(base << 16 | counter, market = new Market(base, counter, DEFAULT_TOTAL_DIVISOR));
+		}
+		return market;
+	}
+
+}
@@ -0,0 +1,640 @@
+package uk.co.coinfloor.api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PushbackReader;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A loopback stand-in for a Coinfloor API server. It performs the WebSocket
+ * handshake, sends the welcome nonce, checks authentication signatures, and
+ * answers requests, and it can be scripted to emit notices at a configurable
+ * rate. Requests other than those handled here are passed to
+ * {@link #handleRequest(Session, String, Map)}, which subclasses may override.
+ */
+public class MockServer implements Closeable {
+
+	/**
+	 * A client connection to the mock server.
+	 */
+	public class Session {
+
+		final Socket socket;
+		final OutputStream out;
+		final byte[] nonce = new byte[16];
+		final HashSet<Integer> watchedOrders = new HashSet<Integer>(), watchedTickers = new HashSet<Integer>();
+
+		long userID;
+
+		Session(Socket socket) throws IOException {
+			this.socket = socket;
+			out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+			random.nextBytes(nonce);
+		}
+
+		/**
+		 * Returns the ID of the user as whom this session has authenticated,
+		 * or 0 if it has not authenticated.
+		 */
+		public long getUserID() {
+			return userID;
+		}
+
+		public synchronized boolean isWatchingOrders(int base, int counter) {
+			return watchedOrders.contains(base << 16 | counter);
+		}
+
+		public synchronized boolean isWatchingTicker(int base, int counter) {
+			return watchedTickers.contains(base << 16 | counter);
+		}
+
+		/**
+		 * Sends a message to the client.
+		 */
+		public void send(Map<String, ?> message) throws IOException {
+			synchronized (out) {
+				OutputStreamWriter writer = new OutputStreamWriter(new WebSocket.MessageOutputStream(out, 0, WebSocket.OP_TEXT), utf8);
+				JSON.format(writer, message);
+				writer.close();
+			}
+		}
+
+		/**
+		 * Closes the connection to the client.
+		 */
+		public void close() {
+			try {
+				socket.close();
+			}
+			catch (IOException ignored) {
+			}
+		}
+
+		synchronized void watch(HashSet<Integer> set, int base, int counter, boolean watch) {
+			if (watch) {
+				set.add(base << 16 | counter);
+			}
+			else {
+				set.remove(base << 16 | counter);
+			}
+		}
+
+		void run() {
+			try {
+				InputStream in = new BufferedInputStream(socket.getInputStream(), 8192);
+				synchronized (out) {
+					handshake(in, out);
+				}
+				HashMap<String, Object> welcome = new HashMap<String, Object>();
+				welcome.put("nonce", Base64.encode(nonce));
+				send(welcome);
+				sessions.add(this);
+				for (;;) {
+					WebSocket.MessageInputStream min = new WebSocket.MessageInputStream(in);
+					switch (min.getOpcode()) {
+						case WebSocket.OP_TEXT: {
+							Map<?, ?> request = (Map<?, ?>) JSON.parse(new PushbackReader(new InputStreamReader(min, utf8)));
+							min.close();
+							requestCount.incrementAndGet();
+							send(respond(this, request));
+							break;
+						}
+						case WebSocket.OP_PING: {
+							synchronized (out) {
+								WebSocket.MessageOutputStream mout = new WebSocket.MessageOutputStream(out, 0, WebSocket.OP_PONG);
+								for (int c; (c = min.read()) >= 0;) {
+									mout.write(c);
+								}
+								mout.close();
+							}
+							break;
+						}
+						case WebSocket.OP_CLOSE:
+							return;
+						default:
+							min.close();
+							break;
+					}
+				}
+			}
+			catch (IOException ignored) {
+			}
+			finally {
+				sessions.remove(this);
+				close();
+				disconnected(this);
+			}
+		}
+
+	}
+
+	/**
+	 * Supplies the notices emitted by {@link MockServer#emit}.
+	 */
+	public interface NoticeGenerator {
+
+		/**
+		 * Returns the notice with the given sequence number, or
+		 * <code>null</code> to stop emitting.
+		 */
+		public Map<String, ?> next(long sequence);
+
+	}
+
+	/**
+	 * A running notice emitter.
+	 */
+	public static class Emitter extends Thread {
+
+		volatile boolean stopped;
+		volatile long emitted;
+
+		Emitter(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		public long getEmittedCount() {
+			return emitted;
+		}
+
+		public void halt() throws InterruptedException {
+			stopped = true;
+			join();
+		}
+
+	}
+
+	public static final int ERROR_BAD_REQUEST = 400;
+	public static final int ERROR_UNAUTHORIZED = 401;
+	public static final int ERROR_NOT_FOUND = 404;
+	public static final int ERROR_CONFLICT = 409;
+	public static final int ERROR_NOT_IMPLEMENTED = 501;
+
+	static final Charset ascii = Charset.forName("US-ASCII"), utf8 = Charset.forName("UTF-8");
+
+	private static final ECParameterSpec secp224k1;
+
+	final SecureRandom random = new SecureRandom();
+	final CopyOnWriteArrayList<Session> sessions = new CopyOnWriteArrayList<Session>();
+
+	private final ServerSocket serverSocket;
+	private final HashMap<Long, Object[]> users = new HashMap<Long, Object[]>();
+	private final HashMap<Long, Map<Integer, Long>> balances = new HashMap<Long, Map<Integer, Long>>();
+	private final HashMap<Integer, Map<String, Object>> tickers = new HashMap<Integer, Map<String, Object>>();
+
+	final AtomicLong requestCount = new AtomicLong();
+
+	static {
+		// the domain parameters of secp224k1, from SEC 2 (version 2.0), section 2.3.1,
+		// so that verification does not depend on any security provider
+		EllipticCurve curve = new EllipticCurve(new ECFieldFp(new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFE56D", 16)), BigInteger.ZERO, BigInteger.valueOf(5));
+		ECPoint generator = new ECPoint(new BigInteger("A1455B334DF099DF30FC28A169A467E9E47075A90F7E650EB6B7A45C", 16), new BigInteger("7E089FED7FBA344282CAFBD6F7E319F7C0B0BD59E2CA4BDB556D61A5", 16));
+		secp224k1 = new ECParameterSpec(curve, generator, new BigInteger("010000000000000000000000000001DCE8D2EC6184CAF0A971769FB1F7", 16), 1);
+	}
+
+	/**
+	 * Starts a mock server listening on an ephemeral port of the loopback
+	 * interface.
+	 */
+	public MockServer() throws IOException {
+		this(0);
+	}
+
+	public MockServer(int port) throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+		Thread acceptor = new Thread(getClass().getSimpleName() + " Acceptor") {
+
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						final Session session = new Session(serverSocket.accept());
+						session.socket.setTcpNoDelay(true);
+						Thread thread = new Thread(MockServer.this.getClass().getSimpleName() + " Session") {
+
+							@Override
+							public void run() {
+								session.run();
+							}
+
+						};
+						thread.setDaemon(true);
+						thread.start();
+					}
+				}
+				catch (IOException ignored) {
+				}
+			}
+
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Returns the URI at which clients can connect to this server.
+	 */
+	public URI getURI() {
+		return URI.create("ws://127.0.0.1:" + serverSocket.getLocalPort() + '/');
+	}
+
+	/**
+	 * Returns the number of requests received from all clients.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Registers a user who may authenticate with the given cookie and
+	 * passphrase.
+	 */
+	public synchronized void addUser(long userID, String cookie, String passphrase) {
+		users.put(userID, new Object[] { cookie, publicKey(userID, passphrase) });
+	}
+
+	public synchronized void setBalance(long userID, int asset, long balance) {
+		Map<Integer, Long> map = balances.get(userID);
+		if (map == null) {
+			balances.put(userID, map = new HashMap<Integer, Long>());
+		}
+		map.put(asset, balance);
+	}
+
+	public synchronized long getBalance(long userID, int asset) {
+		Map<Integer, Long> map = balances.get(userID);
+		Long balance;
+		return map == null || (balance = map.get(asset)) == null ? 0 : balance;
+	}
+
+	/**
+	 * Updates the stored ticker of the specified market and sends a
+	 * <code>TickerChanged</code> notice to every session watching it. Fields
+	 * given as -1 are sent as <code>null</code>.
+	 */
+	public void setTicker(int base, int counter, long last, long bid, long ask, long low, long high, long volume) throws IOException {
+		Map<String, Object> ticker = new LinkedHashMap<String, Object>();
+		ticker.put("last", last < 0 ? null : last);
+		ticker.put("bid", bid < 0 ? null : bid);
+		ticker.put("ask", ask < 0 ? null : ask);
+		ticker.put("low", low < 0 ? null : low);
+		ticker.put("high", high < 0 ? null : high);
+		ticker.put("volume", volume < 0 ? null : volume);
+		synchronized (this) {
+			tickers.put(base << 16 | counter, ticker);
+		}
+		Map<String, Object> notice = new LinkedHashMap<String, Object>();
+		notice.put("notice", "TickerChanged");
+		notice.put("base", base);
+		notice.put("counter", counter);
+		notice.putAll(ticker);
+		for (Session session : sessions) {
+			if (session.isWatchingTicker(base, counter)) {
+				sendQuietly(session, notice);
+			}
+		}
+	}
+
+	/**
+	 * Sends a notice to every connected session.
+	 */
+	public void broadcast(Map<String, ?> notice) {
+		for (Session session : sessions) {
+			sendQuietly(session, notice);
+		}
+	}
+
+	/**
+	 * Starts a thread that broadcasts the notices supplied by the given
+	 * generator at the specified rate (in notices per second), or as fast as
+	 * possible if the rate is not positive, until the generator returns
+	 * <code>null</code> or the specified count is reached.
+	 */
+	public Emitter emit(final NoticeGenerator generator, final double rate, final long count) {
+		Emitter emitter = new Emitter(getClass().getSimpleName() + " Emitter") {
+
+			@Override
+			public void run() {
+				long interval = rate > 0 ? (long) (1e9 / rate) : 0, start = System.nanoTime();
+				for (long sequence = 0; sequence < count && !stopped; ++sequence) {
+					if (interval > 0) {
+						long delay = start + sequence * interval - System.nanoTime();
+						if (delay > 0) {
+							try {
+								TimeUnit.NANOSECONDS.sleep(delay);
+							}
+							catch (InterruptedException e) {
+								return;
+							}
+						}
+					}
+					Map<String, ?> notice = generator.next(sequence);
+					if (notice == null) {
+						break;
+					}
+					broadcast(notice);
+					emitted = sequence + 1;
+				}
+			}
+
+		};
+		emitter.start();
+		return emitter;
+	}
+
+	@Override
+	public void close() {
+		try {
+			serverSocket.close();
+		}
+		catch (IOException ignored) {
+		}
+		for (Session session : sessions) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Handles a request that is not handled by the mock server itself. The
+	 * returned map is sent back to the client with the request's tag added.
+	 * The default implementation rejects every request.
+	 */
+	protected Map<String, Object> handleRequest(Session session, String method, Map<?, ?> request) throws CoinfloorException {
+		throw new CoinfloorException(ERROR_NOT_IMPLEMENTED, "unsupported method: " + method);
+	}
+
+	/**
+	 * Invoked when a session has disconnected.
+	 */
+	protected void disconnected(Session session) {
+	}
+
+	final void sendQuietly(Session session, Map<String, ?> message) {
+		try {
+			session.send(message);
+		}
+		catch (IOException e) {
+			session.close();
+		}
+	}
+
+	Map<String, Object> respond(Session session, Map<?, ?> request) {
+		Map<String, Object> response;
+		try {
+			Object methodObj = request.get("method");
+			if (!(methodObj instanceof String)) {
+				throw new CoinfloorException(ERROR_BAD_REQUEST, "missing method");
+			}
+			String method = (String) methodObj;
+			if ("Authenticate".equals(method)) {
+				response = authenticate(session, request);
+			}
+			else if ("GetBalances".equals(method)) {
+				requireAuthentication(session);
+				response = getBalances(session.userID);
+			}
+			else if ("WatchTicker".equals(method)) {
+				int base = ((Number) request.get("base")).intValue(), counter = ((Number) request.get("counter")).intValue();
+				boolean watch = !Boolean.FALSE.equals(request.get("watch"));
+				session.watch(session.watchedTickers, base, counter, watch);
+				response = new LinkedHashMap<String, Object>();
+				if (watch) {
+					synchronized (this) {
+						Map<String, Object> ticker = tickers.get(base << 16 | counter);
+						if (ticker != null) {
+							response.putAll(ticker);
+						}
+					}
+				}
+			}
+			else if ("WatchOrders".equals(method)) {
+				int base = ((Number) request.get("base")).intValue(), counter = ((Number) request.get("counter")).intValue();
+				boolean watch = !Boolean.FALSE.equals(request.get("watch"));
+				session.watch(session.watchedOrders, base, counter, watch);
+				response = watch ? handleRequest(session, method, request) : new LinkedHashMap<String, Object>();
+			}
+			else {
+				response = handleRequest(session, method, request);
+			}
+			if (response == null) {
+				response = new LinkedHashMap<String, Object>();
+			}
+		}
+		catch (CoinfloorException e) {
+			response = new LinkedHashMap<String, Object>();
+			response.put("error_code", e.getErrorCode());
+			response.put("error_msg", e.getErrorMessage());
+		}
+		catch (RuntimeException e) {
+			response = new LinkedHashMap<String, Object>();
+			response.put("error_code", ERROR_BAD_REQUEST);
+			response.put("error_msg", String.valueOf(e));
+		}
+		Map<String, Object> tagged = new LinkedHashMap<String, Object>();
+		tagged.put("tag", request.get("tag")); // the tag leads so that clients can stream the rest
+		tagged.putAll(response);
+		return tagged;
+	}
+
+	static void requireAuthentication(Session session) throws CoinfloorException {
+		if (session.userID == 0) {
+			throw new CoinfloorException(ERROR_UNAUTHORIZED, "not authenticated");
+		}
+	}
+
+	private Map<String, Object> authenticate(Session session, Map<?, ?> request) throws CoinfloorException {
+		long userID = ((Number) request.get("user_id")).longValue();
+		Object[] user;
+		synchronized (this) {
+			user = users.get(userID);
+		}
+		if (user == null || !user[0].equals(request.get("cookie"))) {
+			throw new CoinfloorException(ERROR_UNAUTHORIZED, "unknown user or cookie");
+		}
+		List<?> signature = (List<?>) request.get("signature");
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-224");
+			sha.update(ByteBuffer.allocate(8).putLong(0, userID));
+			sha.update(session.nonce);
+			sha.update(Base64.decode((String) request.get("nonce")));
+			if (!verify((ECPoint) user[1], new BigInteger(1, sha.digest()), new BigInteger(1, Base64.decode((String) signature.get(0))), new BigInteger(1, Base64.decode((String) signature.get(1))))) {
+				throw new CoinfloorException(ERROR_UNAUTHORIZED, "invalid signature");
+			}
+		}
+		catch (IOException e) {
+			throw new CoinfloorException(ERROR_BAD_REQUEST, "malformed nonce or signature");
+		}
+		catch (java.security.GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+		session.userID = userID;
+		return null;
+	}
+
+	private synchronized Map<String, Object> getBalances(long userID) {
+		List<Object> list = new ArrayList<Object>();
+		Map<Integer, Long> map = balances.get(userID);
+		if (map != null) {
+			for (Map.Entry<Integer, Long> entry : map.entrySet()) {
+				Map<String, Object> balance = new LinkedHashMap<String, Object>();
+				balance.put("asset", entry.getKey());
+				balance.put("balance", entry.getValue());
+				list.add(balance);
+			}
+		}
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		response.put("balances", list);
+		return response;
+	}
+
+	private static void handshake(InputStream in, OutputStream out) throws IOException {
+		String key = null;
+		for (StringBuilder sb = new StringBuilder();;) {
+			int c = in.read();
+			if (c < 0) {
+				throw new IOException("premature EOF");
+			}
+			if (c != '\n') {
+				if (c != '\r') {
+					sb.append((char) c);
+				}
+				continue;
+			}
+			if (sb.length() == 0) {
+				break;
+			}
+			String line = sb.toString();
+			sb.setLength(0);
+			int colon = line.indexOf(':');
+			if (colon > 0 && "Sec-WebSocket-Key".equalsIgnoreCase(line.substring(0, colon).trim())) {
+				key = line.substring(colon + 1).trim();
+			}
+		}
+		if (key == null) {
+			throw new IOException("client omitted Sec-WebSocket-Key header");
+		}
+		String accept;
+		try {
+			accept = Base64.encode(MessageDigest.getInstance("SHA-1").digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(ascii)));
+		}
+		catch (java.security.NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(ascii));
+		out.flush();
+	}
+
+	/**
+	 * Runs a mock server on the specified port until the process is killed,
+	 * broadcasting ticker notices at the specified rate.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 5) {
+			System.err.println("arguments: <port> <user-id> <cookie> <passphrase> <ticker-rate>");
+			System.exit(-1);
+		}
+		MockServer server = new MockServer(Integer.parseInt(args[0]));
+		server.addUser(Long.parseLong(args[1]), args[2], args[3]);
+		System.out.println("listening at " + server.getURI());
+		server.emit(new NoticeGenerator() {
+
+			@Override
+			public Map<String, ?> next(long sequence) {
+				Map<String, Object> notice = new LinkedHashMap<String, Object>();
+				notice.put("notice", "TickerChanged");
+				notice.put("base", Example.XBT);
+				notice.put("counter", Example.GBP);
+				notice.put("last", 30000 + sequence % 100);
+				return notice;
+			}
+
+		}, Double.parseDouble(args[4]), Long.MAX_VALUE).join();
+	}
+
+	private static ECPoint publicKey(long userID, String passphrase) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-224");
+			sha.update(ByteBuffer.allocate(8).putLong(0, userID));
+			sha.update(passphrase.getBytes(utf8));
+			return multiply(secp224k1.getGenerator(), new BigInteger(1, sha.digest()));
+		}
+		catch (java.security.GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// ECDSA verification as per SEC 1, section 4.1.4
+	private static boolean verify(ECPoint q, BigInteger e, BigInteger r, BigInteger s) {
+		BigInteger n = secp224k1.getOrder();
+		if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0) {
+			return false;
+		}
+		BigInteger w = s.modInverse(n);
+		ECPoint x = add(multiply(secp224k1.getGenerator(), e.multiply(w).mod(n)), multiply(q, r.multiply(w).mod(n)));
+		return x != ECPoint.POINT_INFINITY && x.getAffineX().mod(n).equals(r);
+	}
+
+	private static ECPoint multiply(ECPoint point, BigInteger k) {
+		ECPoint result = ECPoint.POINT_INFINITY;
+		for (int i = k.bitLength() - 1; i >= 0; --i) {
+			result = add(result, result);
+			if (k.testBit(i)) {
+				result = add(result, point);
+			}
+		}
+		return result;
+	}
+
+	private static ECPoint add(ECPoint a, ECPoint b) {
+		if (a == ECPoint.POINT_INFINITY) {
+			return b;
+		}
+		if (b == ECPoint.POINT_INFINITY) {
+			return a;
+		}
+		BigInteger p = ((ECFieldFp) secp224k1.getCurve().getField()).getP();
+		BigInteger ax = a.getAffineX(), ay = a.getAffineY(), bx = b.getAffineX(), by = b.getAffineY(), lambda;
+		if (ax.equals(bx)) {
+			if (!ay.equals(by) || ay.signum() == 0) {
+				return ECPoint.POINT_INFINITY;
+			}
+			lambda = ax.multiply(ax).multiply(BigInteger.valueOf(3)).add(secp224k1.getCurve().getA()).multiply(ay.shiftLeft(1).modInverse(p)).mod(p);
+		}
+		else {
+			lambda = by.subtract(ay).multiply(bx.subtract(ax).modInverse(p)).mod(p);
+		}
+		BigInteger x = lambda.multiply(lambda).subtract(ax).subtract(bx).mod(p);
+		return new ECPoint(x, lambda.multiply(ax.subtract(x)).subtract(ay).mod(p));
+	}
+
+}
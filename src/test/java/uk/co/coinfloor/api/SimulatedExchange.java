@@ -0,0 +1,299 @@
+package uk.co.coinfloor.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link MockServer} backed by a {@link MatchingEngine}. It serves order
+ * placement, cancellation, market orders and estimates for any number of
+ * markets, and emits the <code>OrderOpened</code>, <code>OrdersMatched</code>,
+ * <code>OrderClosed</code>, <code>BalanceChanged</code> and
+ * <code>TickerChanged</code> notices that result, so that client code can be
+ * load-tested offline.
+ */
+public class SimulatedExchange extends MockServer implements MatchingEngine.Listener {
+
+	private final MatchingEngine engine = new MatchingEngine(this);
+	private final HashMap<Integer, long[]> tickers = new HashMap<Integer, long[]>();
+	private final HashMap<Long, Long> tradeVolumes = new HashMap<Long, Long>();
+
+	public SimulatedExchange() throws IOException {
+		super();
+	}
+
+	public SimulatedExchange(int port) throws IOException {
+		super(port);
+	}
+
+	public MatchingEngine getEngine() {
+		return engine;
+	}
+
+	@Override
+	public void orderOpened(MatchingEngine.Order order) {
+		Map<String, Object> notice = orderMap("OrderOpened", order, false, true), own = null;
+		for (Session session : sessions) {
+			if (session.getUserID() == order.userID) {
+				if (own == null) {
+					own = orderMap("OrderOpened", order, true, true);
+				}
+				sendQuietly(session, own);
+			}
+			else if (session.isWatchingOrders(order.base, order.counter)) {
+				sendQuietly(session, notice);
+			}
+		}
+	}
+
+	@Override
+	public void ordersMatched(MatchingEngine.Order bid, MatchingEngine.Order ask, int base, int counter, long quantity, long price, long total, long time) {
+		synchronized (tickers) {
+			long[] ticker = ticker(base, counter);
+			ticker[0] = price;
+			ticker[3] = ticker[3] < 0 ? price : Math.min(ticker[3], price);
+			ticker[4] = Math.max(ticker[4], price);
+			ticker[5] = Math.max(ticker[5], 0) + quantity;
+			addTradeVolume(bid.userID, base, quantity);
+			addTradeVolume(bid.userID, counter, total);
+			if (ask.userID != bid.userID) {
+				addTradeVolume(ask.userID, base, quantity);
+				addTradeVolume(ask.userID, counter, total);
+			}
+		}
+		Map<String, Object> notice = null;
+		for (Session session : sessions) {
+			long userID = session.getUserID();
+			boolean ownBid = userID == bid.userID, ownAsk = userID == ask.userID;
+			if (ownBid || ownAsk) {
+				sendQuietly(session, matchMap(bid, ask, base, counter, quantity, price, total, time, ownBid, ownAsk));
+			}
+			else if (session.isWatchingOrders(base, counter)) {
+				if (notice == null) {
+					notice = matchMap(bid, ask, base, counter, quantity, price, total, time, false, false);
+				}
+				sendQuietly(session, notice);
+			}
+		}
+	}
+
+	@Override
+	public void orderClosed(MatchingEngine.Order order) {
+		Map<String, Object> notice = orderMap("OrderClosed", order, false, false), own = null;
+		for (Session session : sessions) {
+			if (session.getUserID() == order.userID) {
+				if (own == null) {
+					own = orderMap("OrderClosed", order, true, false);
+				}
+				sendQuietly(session, own);
+			}
+			else if (session.isWatchingOrders(order.base, order.counter)) {
+				sendQuietly(session, notice);
+			}
+		}
+	}
+
+	@Override
+	public void balanceChanged(long userID, int asset, long delta) {
+		long balance;
+		synchronized (this) {
+			setBalance(userID, asset, balance = getBalance(userID, asset) + delta);
+		}
+		Map<String, Object> notice = new LinkedHashMap<String, Object>();
+		notice.put("notice", "BalanceChanged");
+		notice.put("asset", asset);
+		notice.put("balance", balance);
+		for (Session session : sessions) {
+			if (session.getUserID() == userID) {
+				sendQuietly(session, notice);
+			}
+		}
+	}
+
+	@Override
+	protected Map<String, Object> handleRequest(Session session, String method, Map<?, ?> request) throws CoinfloorException {
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		if ("WatchOrders".equals(method)) {
+			int base = ((Number) request.get("base")).intValue(), counter = ((Number) request.get("counter")).intValue();
+			List<Object> orders = new ArrayList<Object>();
+			for (MatchingEngine.Order order : engine.getOrders(base, counter)) {
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				map.put("id", order.id);
+				if (order.userID == session.getUserID()) {
+					map.put("tonce", order.tonce > 0 ? order.tonce : null);
+				}
+				map.put("quantity", order.getQuantity());
+				map.put("price", order.price);
+				map.put("time", order.time);
+				orders.add(map);
+			}
+			response.put("orders", orders);
+			return response;
+		}
+		requireAuthentication(session);
+		long userID = session.getUserID();
+		if ("PlaceOrder".equals(method)) {
+			int base = ((Number) request.get("base")).intValue(), counter = ((Number) request.get("counter")).intValue();
+			long quantity = number(request, "quantity"), tonce = number(request, "tonce");
+			if (request.containsKey("price")) {
+				MatchingEngine.Order order = engine.placeLimitOrder(userID, base, counter, quantity, number(request, "price"), tonce, !Boolean.FALSE.equals(request.get("persist")));
+				response.put("id", order.id);
+				response.put("time", order.time);
+			}
+			else {
+				response.put("remaining", engine.executeMarketOrder(userID, base, counter, quantity, number(request, "total"), tonce));
+			}
+			refreshTicker(base, counter);
+		}
+		else if ("CancelOrder".equals(method)) {
+			MatchingEngine.Order order = request.containsKey("id") ? engine.cancelOrder(userID, number(request, "id")) : engine.cancelOrderByTonce(userID, number(request, "tonce"));
+			putOrder(response, order, true);
+			refreshTicker(order.base, order.counter);
+		}
+		else if ("CancelAllOrders".equals(method)) {
+			List<MatchingEngine.Order> orders = engine.cancelAllOrders(userID);
+			response.put("orders", orderList(orders));
+			for (MatchingEngine.Order order : orders) {
+				refreshTicker(order.base, order.counter);
+			}
+		}
+		else if ("GetOrders".equals(method)) {
+			response.put("orders", orderList(engine.getOrders(userID)));
+		}
+		else if ("EstimateMarketOrder".equals(method)) {
+			int base = ((Number) request.get("base")).intValue(), counter = ((Number) request.get("counter")).intValue();
+			long[] estimate = engine.estimateMarketOrder(base, counter, number(request, "quantity"), number(request, "total"));
+			response.put("base", base);
+			response.put("counter", counter);
+			response.put("quantity", estimate[0]);
+			response.put("total", estimate[1]);
+		}
+		else if ("GetTradeVolume".equals(method)) {
+			int asset = ((Number) request.get("asset")).intValue();
+			synchronized (tickers) {
+				Long volume = tradeVolumes.get(userID << 16 | asset);
+				response.put("volume", volume == null ? 0 : volume);
+			}
+		}
+		else {
+			return super.handleRequest(session, method, request);
+		}
+		return response;
+	}
+
+	private void refreshTicker(int base, int counter) {
+		long[] bestPrices = engine.getBestPrices(base, counter), ticker;
+		synchronized (tickers) {
+			ticker = ticker(base, counter);
+			if (ticker[1] == bestPrices[0] && ticker[2] == bestPrices[1] && ticker[6] == ticker[0]) {
+				return;
+			}
+			ticker[1] = bestPrices[0];
+			ticker[2] = bestPrices[1];
+			ticker[6] = ticker[0];
+			ticker = ticker.clone();
+		}
+		try {
+			setTicker(base, counter, ticker[0], ticker[1], ticker[2], ticker[3], ticker[4], ticker[5]);
+		}
+		catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * Returns the ticker state of a market: last, bid, ask, low, high,
+	 * volume, and the last price most recently sent.
+	 */
+	private long[] ticker(int base, int counter) {
+		long[] ticker = tickers.get(base << 16 | counter);
+		if (ticker == null) {
+			tickers.put(base << 16 | counter, ticker = new long[] { -1, -1, -1, -1, -1, -1, -1 });
+		}
+		return ticker;
+	}
+
+	private void addTradeVolume(long userID, int asset, long amount) {
+		Long volume = tradeVolumes.get(userID << 16 | asset);
+		tradeVolumes.put(userID << 16 | asset, volume == null ? amount : volume + amount);
+	}
+
+	private static List<Object> orderList(List<MatchingEngine.Order> orders) {
+		List<Object> list = new ArrayList<Object>(orders.size());
+		for (MatchingEngine.Order order : orders) {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("id", order.id);
+			putOrder(map, order, true);
+			list.add(map);
+		}
+		return list;
+	}
+
+	private static Map<String, Object> orderMap(String notice, MatchingEngine.Order order, boolean own, boolean time) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("notice", notice);
+		map.put("id", order.id);
+		putOrder(map, order, own);
+		if (!time) {
+			map.remove("time");
+		}
+		return map;
+	}
+
+	private static void putOrder(Map<String, Object> map, MatchingEngine.Order order, boolean own) {
+		if (own) {
+			map.put("tonce", order.tonce > 0 ? order.tonce : null);
+		}
+		map.put("base", order.base);
+		map.put("counter", order.counter);
+		map.put("quantity", order.getQuantity());
+		map.put("price", order.price);
+		map.put("time", order.time);
+	}
+
+	private static Map<String, Object> matchMap(MatchingEngine.Order bid, MatchingEngine.Order ask, int base, int counter, long quantity, long price, long total, long time, boolean ownBid, boolean ownAsk) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("notice", "OrdersMatched");
+		if (bid.id != 0) {
+			map.put("bid", bid.id);
+		}
+		if (ownBid) {
+			map.put("bid_tonce", bid.tonce > 0 ? bid.tonce : null);
+		}
+		if (ask.id != 0) {
+			map.put("ask", ask.id);
+		}
+		if (ownAsk) {
+			map.put("ask_tonce", ask.tonce > 0 ? ask.tonce : null);
+		}
+		map.put("base", base);
+		map.put("counter", counter);
+		map.put("quantity", quantity);
+		map.put("price", price);
+		map.put("total", total);
+		if (bid.id != 0) {
+			map.put("bid_rem", bid.getQuantity());
+		}
+		if (ask.id != 0) {
+			map.put("ask_rem", -ask.getQuantity());
+		}
+		map.put("time", time);
+		if (ownBid) {
+			map.put("bid_base_fee", 0L);
+			map.put("bid_counter_fee", 0L);
+		}
+		if (ownAsk) {
+			map.put("ask_base_fee", 0L);
+			map.put("ask_counter_fee", 0L);
+		}
+		return map;
+	}
+
+	private static long number(Map<?, ?> request, String key) {
+		Object value = request.get(key);
+		return value == null ? 0 : ((Number) value).longValue();
+	}
+
+}